@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link CassandraGateway}.  Every
+ * operation returns right away with a future that completes once Cassandra
+ * has answered, so a handful of threads can keep thousands of operations
+ * in flight.  A failed operation completes its future exceptionally with
+ * the exception the blocking gateway would have thrown.
+ *
+ * @author Abel Perez
+ */
+public interface AsyncCassandraGateway
+{
+    /**
+     * Deletes the specified column of a row.
+     *
+     * @param columnFamily the column family to delete from.
+     * @param rowid the row to delete from.
+     * @param column the name of the column to delete.
+     *
+     * @return a future that completes once the column is deleted.
+     */
+    CompletableFuture<Void> delete(String columnFamily, String rowid, String column);
+
+    /**
+     * Deletes the columns named by the keys of the specified pairs.
+     *
+     * @param columnFamily the column family to delete from.
+     * @param rowid the row to delete from.
+     * @param pairs the pairs whose keys name the columns to delete.
+     *
+     * @return a future that completes once the columns are deleted.
+     */
+    CompletableFuture<Void> deleteAll(String columnFamily, String rowid, Pair[] pairs);
+
+    /**
+     * Finds the value of a column.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read from.
+     * @param key the name of the column to read.
+     *
+     * @return a future that completes with the value of the column.
+     */
+    CompletableFuture<String> findColumn(String columnFamily, String rowid, String key);
+
+    /**
+     * Finds every column of a row.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     *
+     * @return a future that completes with the columns of the row.
+     */
+    CompletableFuture<List<Pair>> findColumnsSliceRange(String columnFamily, String rowid);
+
+    /**
+     * Finds every column of every row of a column family.
+     *
+     * @param columnFamily the column family to read.
+     * @param keys unused, kept to mirror {@link CassandraGateway}.
+     *
+     * @return a future that completes with the columns found, each tagged
+     * with its row.
+     */
+    CompletableFuture<List<Pair>> findByKeyRange(String columnFamily, List<String> keys);
+
+    /**
+     * Finds the specified columns of a row.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read from.
+     * @param keys the names of the columns to read.
+     *
+     * @return a future that completes with the columns found.
+     */
+    CompletableFuture<List<Pair>> findColumns(String columnFamily, String rowid, List<String> keys);
+
+    /**
+     * Inserts a column.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param rowid the row to insert into.
+     * @param pair the name and value of the column.
+     *
+     * @return a future that completes once the column is inserted.
+     */
+    CompletableFuture<Void> insert(String columnFamily, String rowid, Pair pair);
+
+    /**
+     * Inserts the specified columns in a single batch mutation.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param rowid the row to insert into.
+     * @param pairs the names and values of the columns.
+     *
+     * @return a future that completes once the columns are inserted.
+     */
+    CompletableFuture<Void> insertAll(String columnFamily, String rowid, Pair[] pairs);
+
+    /**
+     * Inserts the specified columns into a super column in a single batch
+     * mutation.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param superColumnName the name of the super column.
+     * @param rowid the row to insert into.
+     * @param pairs the names and values of the columns.
+     *
+     * @return a future that completes once the columns are inserted.
+     */
+    CompletableFuture<Void> insertAllSuperColumns(String columnFamily, String superColumnName, String rowid, Pair[] pairs);
+
+    /**
+     * Closes this gateway.  Operations that have not been sent yet
+     * complete exceptionally.
+     */
+    void close();
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SuperColumn;
+
+/**
+ * A set of mutations across any number of rows and column families, to be
+ * written in bulk.  A batch mutation is split into chunks, each sent in a
+ * single {@code batch_mutate}, that stay under a max amount of mutations
+ * and a max estimated amount of serialized bytes, which keeps every call
+ * well below the Thrift frame size limit.  Mutations are chunked in the
+ * order they were added; the mutations of a large row may span chunks.
+ *
+ * <p>For example:
+ *
+ * <pre>
+ * {@code
+ * BatchMutation batch = new BatchMutation();
+ * batch.insert("users", "abel", new Pair("email", "abel@example.com"));
+ * batch.delete("sessions", "abel", "token");
+ * BatchResult result = gateway.mutate(batch);
+ * }
+ * </pre>
+ *
+ * <p>This class is not safe for concurrent use.
+ *
+ * @author Abel Perez
+ */
+public class BatchMutation
+{
+    /**
+     * The default max estimated amount of serialized bytes in a chunk.
+     */
+    public static final int DEFAULT_MAX_CHUNK_BYTES = 1024 * 1024;
+
+    /**
+     * The default max amount of mutations in a chunk.
+     */
+    public static final int DEFAULT_MAX_CHUNK_MUTATIONS = 500;
+
+    /**
+     * The estimated amount of bytes Thrift spends on every mutation besides
+     * its names and values: field headers, timestamps and list lengths.
+     */
+    private static final int MUTATION_OVERHEAD = 32;
+
+    /**
+     * The mutations of this batch, in the order they were added.
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Adds the insert of a column.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param rowid the row to insert into.
+     * @param pair the name and value of the column.
+     *
+     * @return this batch mutation.
+     */
+    public BatchMutation insert(String columnFamily, String rowid, Pair pair) {
+        Column column = ThriftUtil.makeColumn(pair);
+        int size = ThriftUtil.encodedLength(pair.getKey()) + ThriftUtil.encodedLength(pair.getVal());
+        entries.add(new Entry(columnFamily, rowid, pair.getKey(), ThriftUtil.getMutation(column), size));
+        return this;
+    }
+
+    /**
+     * Adds the insert of every specified column.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param rowid the row to insert into.
+     * @param pairs the names and values of the columns.
+     *
+     * @return this batch mutation.
+     */
+    public BatchMutation insert(String columnFamily, String rowid, Pair[] pairs) {
+        for (Pair pair : pairs) {
+            insert(columnFamily, rowid, pair);
+        }
+        return this;
+    }
+
+    /**
+     * Adds the insert of a super column holding every specified column.
+     * A super column is a single mutation and is never split across chunks.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param superColumnName the name of the super column.
+     * @param rowid the row to insert into.
+     * @param pairs the names and values of the columns.
+     *
+     * @return this batch mutation.
+     */
+    public BatchMutation insertSuperColumn(String columnFamily, String superColumnName, String rowid, Pair[] pairs) {
+        SuperColumn superColumn = new SuperColumn();
+        superColumn.setName(superColumnName.getBytes());
+
+        List<Column> columns = new ArrayList<Column>();
+        int size = ThriftUtil.encodedLength(superColumnName);
+        for (Pair pair : pairs) {
+            columns.add(ThriftUtil.makeColumn(pair));
+            size += ThriftUtil.encodedLength(pair.getKey()) + ThriftUtil.encodedLength(pair.getVal())
+                    + MUTATION_OVERHEAD;
+        }
+        superColumn.setColumns(columns);
+
+        entries.add(new Entry(columnFamily, rowid, null, ThriftUtil.getMutation(superColumn), size));
+        return this;
+    }
+
+    /**
+     * Adds the delete of a column.
+     *
+     * @param columnFamily the column family to delete from.
+     * @param rowid the row to delete from.
+     * @param column the name of the column to delete.
+     *
+     * @return this batch mutation.
+     */
+    public BatchMutation delete(String columnFamily, String rowid, String column) {
+        List<ByteBuffer> columns = new ArrayList<ByteBuffer>(1);
+        columns.add(ThriftUtil.toByteBuffer(column));
+
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.column_names = columns;
+
+        Deletion deletion = new Deletion();
+        deletion.predicate = predicate;
+        deletion.timestamp = System.currentTimeMillis();
+
+        Mutation mutation = new Mutation();
+        mutation.deletion = deletion;
+
+        entries.add(new Entry(columnFamily, rowid, column, mutation, ThriftUtil.encodedLength(column)));
+        return this;
+    }
+
+    /**
+     * Gets the amount of mutations in this batch.
+     *
+     * @return the amount of mutations.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns <tt>true</tt> if this batch holds no mutations.
+     *
+     * @return <tt>true</tt> if this batch is empty; otherwise <tt>false</tt>.
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Gets the mutations of this batch, in the order they were added.
+     *
+     * @return the mutations of this batch.
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Splits this batch into chunks of the default size.
+     *
+     * @return the chunks of this batch.
+     */
+    public List<Chunk> chunks() {
+        return chunks(DEFAULT_MAX_CHUNK_BYTES, DEFAULT_MAX_CHUNK_MUTATIONS);
+    }
+
+    /**
+     * Splits this batch into chunks that hold at most the specified amount
+     * of mutations and estimated bytes.  A single mutation larger than the
+     * max bytes gets a chunk of its own.
+     *
+     * @param maxBytes the max estimated amount of serialized bytes in a chunk.
+     * @param maxMutations the max amount of mutations in a chunk.
+     *
+     * @return the chunks of this batch.
+     */
+    public List<Chunk> chunks(int maxBytes, int maxMutations) {
+        return chunks(maxBytes, maxMutations, 0);
+    }
+
+    /**
+     * Splits this batch into chunks, as described by
+     * {@link #chunks(int, int)}, numbering them from the specified index.
+     *
+     * @param maxBytes the max estimated amount of serialized bytes in a chunk.
+     * @param maxMutations the max amount of mutations in a chunk.
+     * @param firstIndex the index of the first chunk.
+     *
+     * @return the chunks of this batch.
+     */
+    List<Chunk> chunks(int maxBytes, int maxMutations, int firstIndex) {
+        if (maxBytes <= 0 || maxMutations <= 0) {
+            throw new IllegalArgumentException("invalid chunk size [maxBytes: "
+                    + maxBytes + ", maxMutations: " + maxMutations + "]");
+        }
+
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        Chunk chunk = new Chunk(firstIndex);
+
+        for (Entry entry : entries) {
+            if (chunk.mutations > 0
+                    && (chunk.mutations >= maxMutations || chunk.bytes + entry.size > maxBytes)) {
+                chunks.add(chunk);
+                chunk = new Chunk(firstIndex + chunks.size());
+            }
+            chunk.add(entry);
+        }
+
+        if (chunk.mutations > 0) chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * Splits this batch into one batch per group, as decided by the
+     * specified grouping of row keys, keeping the order of the mutations
+     * within every group.
+     *
+     * @param grouping decides the group of every row.
+     *
+     * @return the batch of every group.
+     */
+    <K> Map<K, BatchMutation> groupBy(Grouping<K> grouping) {
+        Map<K, BatchMutation> groups = new HashMap<K, BatchMutation>();
+        for (Entry entry : entries) {
+            K key = grouping.group(entry.rowid);
+            BatchMutation group = groups.get(key);
+            if (group == null) {
+                group = new BatchMutation();
+                groups.put(key, group);
+            }
+            group.entries.add(entry);
+        }
+        return groups;
+    }
+
+    /**
+     * Decides the group of a row when a batch is split by
+     * {@link BatchMutation#groupBy}.
+     */
+    interface Grouping<K>
+    {
+        /**
+         * Gets the group of the specified row.
+         *
+         * @param rowid the row to group.
+         *
+         * @return the group of the row.
+         */
+        K group(String rowid);
+    }
+
+    /**
+     * A single mutation of a batch and the row and column family it
+     * applies to.
+     */
+    static class Entry
+    {
+        /**
+         * The column family the mutation applies to.
+         */
+        final String columnFamily;
+
+        /**
+         * The row the mutation applies to.
+         */
+        final String rowid;
+
+        /**
+         * The column the mutation applies to, or <tt>null</tt> if it
+         * applies to a super column.
+         */
+        final String column;
+
+        /**
+         * The mutation.
+         */
+        final Mutation mutation;
+
+        /**
+         * The estimated amount of serialized bytes of the mutation.
+         */
+        final int size;
+
+        /**
+         * Constructs this entry.
+         *
+         * @param columnFamily the column family the mutation applies to.
+         * @param rowid the row the mutation applies to.
+         * @param column the column the mutation applies to, or
+         * <tt>null</tt> if it applies to a super column.
+         * @param mutation the mutation.
+         * @param size the amount of bytes of the names and values of the
+         * mutation.
+         */
+        Entry(String columnFamily, String rowid, String column, Mutation mutation, int size) {
+            this.columnFamily = columnFamily;
+            this.rowid = rowid;
+            this.column = column;
+            this.mutation = mutation;
+            this.size = size + MUTATION_OVERHEAD;
+        }
+    }
+
+    /**
+     * A part of a batch mutation that is sent in a single
+     * {@code batch_mutate}.
+     */
+    public static class Chunk
+    {
+        /**
+         * The position of this chunk within its batch.
+         */
+        private final int index;
+
+        /**
+         * The mutation map of this chunk, keyed by row and column family.
+         */
+        private final Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap =
+                new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+
+        /**
+         * The rows this chunk mutates, in the order they were added.
+         */
+        private final Set<String> rows = new LinkedHashSet<String>();
+
+        /**
+         * The amount of mutations in this chunk.
+         */
+        private int mutations;
+
+        /**
+         * The estimated amount of serialized bytes in this chunk.
+         */
+        private int bytes;
+
+        /**
+         * Constructs an empty chunk.
+         *
+         * @param index the position of this chunk within its batch.
+         */
+        Chunk(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Adds the specified mutation to this chunk.
+         *
+         * @param entry the mutation to add.
+         */
+        void add(Entry entry) {
+            ByteBuffer key = ThriftUtil.toByteBuffer(entry.rowid);
+
+            Map<String, List<Mutation>> row = mutationMap.get(key);
+            if (row == null) {
+                row = new HashMap<String, List<Mutation>>();
+                mutationMap.put(key, row);
+                bytes += key.remaining();
+            }
+
+            List<Mutation> family = row.get(entry.columnFamily);
+            if (family == null) {
+                family = new ArrayList<Mutation>();
+                row.put(entry.columnFamily, family);
+                bytes += ThriftUtil.encodedLength(entry.columnFamily);
+            }
+
+            family.add(entry.mutation);
+            rows.add(entry.rowid);
+            mutations++;
+            bytes += entry.size;
+        }
+
+        /**
+         * Gets the position of this chunk within its batch.
+         *
+         * @return the index of this chunk.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Gets the mutation map of this chunk, as passed to
+         * {@code batch_mutate}.
+         *
+         * @return the mutation map of this chunk.
+         */
+        public Map<ByteBuffer, Map<String, List<Mutation>>> getMutationMap() {
+            return mutationMap;
+        }
+
+        /**
+         * Gets the rows this chunk mutates.
+         *
+         * @return the rows of this chunk.
+         */
+        public Set<String> getRows() {
+            return Collections.unmodifiableSet(rows);
+        }
+
+        /**
+         * Gets the amount of mutations in this chunk.
+         *
+         * @return the amount of mutations.
+         */
+        public int getMutationCount() {
+            return mutations;
+        }
+
+        /**
+         * Gets the estimated amount of serialized bytes in this chunk.
+         *
+         * @return the estimated size of this chunk.
+         */
+        public int getByteCount() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The outcome of writing a {@link BatchMutation}: every chunk that was
+ * sent, the exception of every chunk that failed, and the chunks whose
+ * outcome is unknown because the writer was interrupted while they were
+ * still in flight.  Chunks succeed or fail independently, so a failed
+ * chunk can be retried on its own.
+ *
+ * @author Abel Perez
+ */
+public class BatchResult
+{
+    /**
+     * Every chunk that was sent.
+     */
+    private final List<BatchMutation.Chunk> chunks;
+
+    /**
+     * The exception of every chunk that failed.
+     */
+    private final Map<BatchMutation.Chunk, Exception> failures =
+            new LinkedHashMap<BatchMutation.Chunk, Exception>();
+
+    /**
+     * The chunks that were still in flight when the writer stopped
+     * waiting for them.
+     */
+    private final List<BatchMutation.Chunk> unknown = new ArrayList<BatchMutation.Chunk>();
+
+    /**
+     * Constructs this result for the specified chunks.
+     *
+     * @param chunks every chunk that was sent.
+     */
+    BatchResult(List<BatchMutation.Chunk> chunks) {
+        this.chunks = Collections.unmodifiableList(new ArrayList<BatchMutation.Chunk>(chunks));
+    }
+
+    /**
+     * Records that the specified chunk failed.
+     *
+     * @param chunk the chunk that failed.
+     * @param exception the exception the chunk failed with.
+     */
+    void failed(BatchMutation.Chunk chunk, Exception exception) {
+        failures.put(chunk, exception);
+    }
+
+    /**
+     * Waits for the write of every specified chunk and records its
+     * outcome.  If the calling thread is interrupted, it stops waiting:
+     * the chunks that have not finished by then may still be written, so
+     * they are recorded as unknown rather than failed, and the interrupt
+     * is restored.
+     *
+     * @param chunks the chunks that were sent.
+     * @param futures the write of every chunk, in chunk order.
+     *
+     * @return the outcome of every chunk.
+     */
+    static BatchResult await(List<BatchMutation.Chunk> chunks, List<Future<Void>> futures) {
+        BatchResult result = new BatchResult(chunks);
+        boolean interrupted = false;
+
+        for (int i = 0; i < chunks.size(); i++) {
+            Future<Void> future = futures.get(i);
+            if (interrupted && ! future.isDone()) {
+                result.unknown.add(chunks.get(i));
+                continue;
+            }
+
+            try {
+                future.get();
+
+            } catch (ExecutionException exception) {
+                result.failed(chunks.get(i), Futures.cause(exception));
+
+            } catch (InterruptedException exception) {
+                interrupted = true;
+                result.unknown.add(chunks.get(i));
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+        return result;
+    }
+
+    /**
+     * Returns <tt>true</tt> if every chunk was written.
+     *
+     * @return <tt>true</tt> if no chunk failed or is unknown; otherwise
+     * <tt>false</tt>.
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty() && unknown.isEmpty();
+    }
+
+    /**
+     * Gets every chunk that was sent.
+     *
+     * @return the chunks of the batch.
+     */
+    public List<BatchMutation.Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Gets the exception of every chunk that failed, in chunk order.
+     *
+     * @return the failed chunks and their exceptions.
+     */
+    public Map<BatchMutation.Chunk, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Gets the chunks that were still in flight when the writer was
+     * interrupted, which may or may not have been written.  Writes are
+     * idempotent, so these chunks can be retried like failed ones.
+     *
+     * @return the chunks of unknown outcome, in chunk order.
+     */
+    public List<BatchMutation.Chunk> getUnknown() {
+        return Collections.unmodifiableList(unknown);
+    }
+
+    /**
+     * Gets the amount of mutations known to be written successfully.
+     *
+     * @return the amount of mutations written.
+     */
+    public int getWrittenCount() {
+        int written = 0;
+        for (BatchMutation.Chunk chunk : chunks) {
+            if (! failures.containsKey(chunk) && ! unknown.contains(chunk)) {
+                written += chunk.getMutationCount();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override public String toString() {
+        return "BatchResult [chunks: " + chunks.size() + ", failed: " + failures.size()
+                + ", unknown: " + unknown.size() + ", written: " + getWrittenCount() + "]";
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+
+/**
+ * A gateway for binary row keys, column names and values.  Unlike
+ * {@link CassandraGateway}, which encodes and decodes every key, name and
+ * value as a string, this gateway passes byte buffers through to Thrift
+ * as they are, and returns the columns Thrift read without copying them.
+ * The position of a buffer passed to this gateway is not altered.
+ *
+ * <p>Columns are returned as Thrift {@link Column}s, whose name and value
+ * buffers are owned by the caller once returned.
+ *
+ * @author Abel Perez
+ */
+public interface BinaryCassandraGateway
+{
+    /**
+     * Deletes a column.
+     *
+     * @param columnFamily the column family to delete from.
+     * @param rowid the key of the row to delete from.
+     * @param name the name of the column to delete.
+     *
+     * @throws Exception can occur if the column cannot be deleted.
+     */
+    void delete(String columnFamily, ByteBuffer rowid, ByteBuffer name) throws Exception;
+
+    /**
+     * Deletes the specified columns of a row in a single batch mutation.
+     *
+     * @param columnFamily the column family to delete from.
+     * @param rowid the key of the row to delete from.
+     * @param names the names of the columns to delete.
+     *
+     * @throws Exception can occur if the columns cannot be deleted.
+     */
+    void deleteAll(String columnFamily, ByteBuffer rowid, List<ByteBuffer> names) throws Exception;
+
+    /**
+     * Finds the value of a column.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the key of the row to read from.
+     * @param name the name of the column to read.
+     *
+     * @return the value of the column, or <tt>null</tt> if it does not exist.
+     *
+     * @throws Exception can occur if the column cannot be read.
+     */
+    ByteBuffer findColumn(String columnFamily, ByteBuffer rowid, ByteBuffer name) throws Exception;
+
+    /**
+     * Finds the specified columns of a row.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the key of the row to read from.
+     * @param names the names of the columns to read.
+     *
+     * @return the columns found, in comparator order.
+     *
+     * @throws Exception can occur if the columns cannot be read.
+     */
+    List<Column> findColumns(String columnFamily, ByteBuffer rowid, List<ByteBuffer> names) throws Exception;
+
+    /**
+     * Finds the specified columns of every specified row.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowids the keys of the rows to read.
+     * @param names the names of the columns to read.
+     *
+     * @return the columns found, keyed by row in the order of the specified
+     * rows.  A row without any of the columns maps to an empty list.
+     *
+     * @throws Exception can occur if the columns cannot be read.
+     */
+    Map<ByteBuffer, List<Column>> findColumns(String columnFamily, List<ByteBuffer> rowids, List<ByteBuffer> names) throws Exception;
+
+    /**
+     * Finds a slice of the columns of a row.  Wide rows are read page by
+     * page by passing the name of the last column of a page as the start
+     * of the next, which returns that column again.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the key of the row to read from.
+     * @param start the name of the first column to read, or an empty buffer
+     * to read from the start of the row.
+     * @param finish the name of the last column to read, or an empty buffer
+     * to read until the end of the row.
+     * @param reversed <tt>true</tt> to read the columns in reverse order.
+     * @param count the max amount of columns to read.
+     *
+     * @return the columns found, in comparator order or reversed.
+     *
+     * @throws Exception can occur if the columns cannot be read.
+     */
+    List<Column> findColumnsSliceRange(String columnFamily, ByteBuffer rowid, ByteBuffer start,
+                                       ByteBuffer finish, boolean reversed, int count) throws Exception;
+
+    /**
+     * Inserts a column.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param rowid the key of the row to insert into.
+     * @param name the name of the column.
+     * @param value the value of the column.
+     *
+     * @throws Exception can occur if the column cannot be inserted.
+     */
+    void insert(String columnFamily, ByteBuffer rowid, ByteBuffer name, ByteBuffer value) throws Exception;
+
+    /**
+     * Inserts the specified columns of a row in a single batch mutation.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param rowid the key of the row to insert into.
+     * @param columns the value of every column, keyed by column name.
+     *
+     * @throws Exception can occur if the columns cannot be inserted.
+     */
+    void insertAll(String columnFamily, ByteBuffer rowid, Map<ByteBuffer, ByteBuffer> columns) throws Exception;
+}
@@ -0,0 +1,585 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.NotFoundException;
+
+import com.mindplex.util.Check;
+import com.mindplex.util.NegativeCache;
+import com.mindplex.util.TinyLfuCache;
+
+/**
+ * A gateway that keeps a near cache of column values in front of another
+ * gateway.  Only the column families a cache has been configured for are
+ * cached, each with its own capacity and time to live, and every cache
+ * admits and evicts columns by their recent popularity, as described by
+ * {@link TinyLfuCache}.
+ *
+ * <p>{@link #findColumn} and both forms of {@link #findColumns} are served
+ * from the cache where possible, and only the columns that are not cached
+ * are read from the delegate.  Columns that do not exist are not cached.
+ * Every write through this gateway invalidates the columns it touches,
+ * after the write has completed, and a read that raced with the write is
+ * not cached.  Writes made through any other gateway are only seen once
+ * the cached column expires.
+ *
+ * <p>Column families may also cache the columns known to be absent, as
+ * described by {@link NegativeCache}.  A column is known to be absent once
+ * a read found it missing, until it expires or is written through this
+ * gateway.  {@link #findColumnIfExists} answers a known absent column with
+ * <tt>null</tt> without a round trip, and {@link #findColumn} with the
+ * same failure the delegate throws for a missing column.
+ *
+ * <p>For example:
+ *
+ * <pre>
+ * {@code
+ * CachingCassandraGateway gateway = new CachingCassandraGateway(cluster);
+ * gateway.cache("users", 100000, 5, TimeUnit.MINUTES);
+ * String email = gateway.findColumn("users", "abel", "email");
+ * }
+ * </pre>
+ *
+ * @author Abel Perez
+ */
+public class CachingCassandraGateway implements CassandraGateway
+{
+    /**
+     * The gateway reads and writes are delegated to.
+     */
+    private final CassandraGateway delegate;
+
+    /**
+     * The cache of every cached column family.
+     */
+    private final ConcurrentMap<String, TinyLfuCache<Column, String>> caches =
+            new ConcurrentHashMap<String, TinyLfuCache<Column, String>>();
+
+    /**
+     * The cache of absent columns of every column family that caches them.
+     */
+    private final ConcurrentMap<String, NegativeCache<Column>> absentCaches =
+            new ConcurrentHashMap<String, NegativeCache<Column>>();
+
+    /**
+     * Constructs this gateway in front of the specified gateway.  No column
+     * family is cached until a cache is configured for it.
+     *
+     * @param delegate the gateway reads and writes are delegated to.
+     */
+    public CachingCassandraGateway(CassandraGateway delegate) {
+        this.delegate = Check.forNull(delegate);
+    }
+
+    /**
+     * Caches the columns of the specified column family, replacing its
+     * previous cache if any.
+     *
+     * @param columnFamily the column family to cache.
+     * @param capacity the max amount of columns cached.
+     * @param ttl the time a cached column lives, or zero if cached columns
+     * only leave the cache when they are evicted or invalidated.
+     * @param unit the unit of the time to live.
+     */
+    public void cache(String columnFamily, int capacity, long ttl, TimeUnit unit) {
+        caches.put(columnFamily, new TinyLfuCache<Column, String>(capacity, ttl, unit));
+    }
+
+    /**
+     * Caches the columns of the specified column family that are known to
+     * be absent, replacing its previous cache of absent columns if any.
+     *
+     * @param columnFamily the column family to cache absent columns of.
+     * @param capacity the max amount of absent columns cached.
+     * @param ttl the time a column is known to be absent.
+     * @param unit the unit of the time to live.
+     */
+    public void cacheAbsent(String columnFamily, int capacity, long ttl, TimeUnit unit) {
+        absentCaches.put(columnFamily, new NegativeCache<Column>(capacity, ttl, unit));
+    }
+
+    /**
+     * Gets the cache of absent columns of the specified column family.
+     *
+     * @param columnFamily the column family.
+     *
+     * @return the cache of absent columns, or <tt>null</tt> if the column
+     * family does not cache absent columns.
+     */
+    public NegativeCache<?> getAbsentCache(String columnFamily) {
+        return absentCaches.get(columnFamily);
+    }
+
+    /**
+     * Gets the cache of the specified column family, which exposes the
+     * hit, miss and eviction counts of the column family.
+     *
+     * @param columnFamily the column family.
+     *
+     * @return the cache of the column family, or <tt>null</tt> if it is not
+     * cached.
+     */
+    public TinyLfuCache<?, ?> getCache(String columnFamily) {
+        return caches.get(columnFamily);
+    }
+
+    /**
+     * Gets the gateway reads and writes are delegated to.
+     *
+     * @return the delegate of this gateway.
+     */
+    public CassandraGateway getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String findColumn(String columnFamily, String rowid, String key) throws Exception {
+        TinyLfuCache<Column, String> cache = caches.get(columnFamily);
+        NegativeCache<Column> absentCache = absentCaches.get(columnFamily);
+        if (cache == null && absentCache == null) {
+            return delegate.findColumn(columnFamily, rowid, key);
+        }
+
+        Column column = new Column(rowid, key);
+        if (cache != null) {
+            String value = cache.get(column);
+            if (value != null) return value;
+        }
+        if (absentCache != null && absentCache.isAbsent(column)) {
+            throw new Exception("Failed to execute cassandra select function.", new NotFoundException());
+        }
+
+        long stamp = cache == null ? 0 : cache.stamp();
+        long absentStamp = absentCache == null ? 0 : absentCache.stamp();
+
+        try {
+            String value = delegate.findColumn(columnFamily, rowid, key);
+            if (cache != null && value != null) cache.put(column, value, stamp);
+            return value;
+
+        } catch (Exception exception) {
+            if (absentCache != null && isNotFound(exception)) {
+                absentCache.markAbsent(column, absentStamp);
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String findColumnIfExists(String columnFamily, String rowid, String key) throws Exception {
+        TinyLfuCache<Column, String> cache = caches.get(columnFamily);
+        NegativeCache<Column> absentCache = absentCaches.get(columnFamily);
+        if (cache == null && absentCache == null) {
+            return delegate.findColumnIfExists(columnFamily, rowid, key);
+        }
+
+        Column column = new Column(rowid, key);
+        if (cache != null) {
+            String value = cache.get(column);
+            if (value != null) return value;
+        }
+        if (absentCache != null && absentCache.isAbsent(column)) {
+            return null;
+        }
+
+        long stamp = cache == null ? 0 : cache.stamp();
+        long absentStamp = absentCache == null ? 0 : absentCache.stamp();
+
+        String value = delegate.findColumnIfExists(columnFamily, rowid, key);
+        if (value == null) {
+            if (absentCache != null) absentCache.markAbsent(column, absentStamp);
+        } else if (cache != null) {
+            cache.put(column, value, stamp);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Pair> findColumns(String columnFamily, String rowid, List<String> keys) throws Exception {
+        TinyLfuCache<Column, String> cache = caches.get(columnFamily);
+        NegativeCache<Column> absentCache = absentCaches.get(columnFamily);
+        if (cache == null && absentCache == null) {
+            return delegate.findColumns(columnFamily, rowid, keys);
+        }
+
+        // serve the cached columns and read the remaining ones.
+
+        Map<String, String> found = new LinkedHashMap<String, String>();
+        List<String> missing = lookup(cache, absentCache, rowid, keys, found);
+
+        if (! missing.isEmpty()) {
+            long stamp = cache == null ? 0 : cache.stamp();
+            long absentStamp = absentCache == null ? 0 : absentCache.stamp();
+
+            List<Pair> pairs = delegate.findColumns(columnFamily, rowid, missing);
+            remember(cache, stamp, absentCache, absentStamp, rowid, missing, pairs, found);
+        }
+        return pairs(keys, found);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, List<Pair>> findColumns(String columnFamily, List<String> rowids, List<String> keys) throws Exception {
+        TinyLfuCache<Column, String> cache = caches.get(columnFamily);
+        NegativeCache<Column> absentCache = absentCaches.get(columnFamily);
+        if (cache == null && absentCache == null) {
+            return delegate.findColumns(columnFamily, rowids, keys);
+        }
+
+        // rows that are cached completely are served from the cache,
+        // every other row is read with all of its columns.
+
+        Map<String, Map<String, String>> found = new LinkedHashMap<String, Map<String, String>>();
+        List<String> missing = new ArrayList<String>();
+
+        for (String rowid : rowids) {
+            Map<String, String> columns = new LinkedHashMap<String, String>();
+            found.put(rowid, columns);
+            if (! lookup(cache, absentCache, rowid, keys, columns).isEmpty()) {
+                missing.add(rowid);
+            }
+        }
+
+        if (! missing.isEmpty()) {
+            long stamp = cache == null ? 0 : cache.stamp();
+            long absentStamp = absentCache == null ? 0 : absentCache.stamp();
+            Map<String, List<Pair>> rows = delegate.findColumns(columnFamily, missing, keys);
+
+            for (Map.Entry<String, List<Pair>> row : rows.entrySet()) {
+                remember(cache, stamp, absentCache, absentStamp, row.getKey(), keys,
+                        row.getValue(), found.get(row.getKey()));
+            }
+        }
+
+        Map<String, List<Pair>> results = new LinkedHashMap<String, List<Pair>>();
+        for (Map.Entry<String, Map<String, String>> row : found.entrySet()) {
+            results.put(row.getKey(), pairs(keys, row.getValue()));
+        }
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @deprecated reads at most the first 100 columns of the row.
+     */
+    @Deprecated
+    public List<Pair> findColumnsSliceRange(String columnFamily, String rowid) throws Exception {
+        return delegate.findColumnsSliceRange(columnFamily, rowid);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @deprecated reads at most one page, and ignores {@code keys}.
+     */
+    @Deprecated
+    public List<Pair> findByKeyRange(String columnFamily, List<String> keys) throws Exception {
+        return delegate.findByKeyRange(columnFamily, keys);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(String columnFamily, String rowid, String column) throws Exception {
+        try {
+            delegate.delete(columnFamily, rowid, column);
+        } finally {
+            invalidate(columnFamily, rowid, column);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deleteAll(String columnFamily, String rowid, Pair[] pairs) throws Exception {
+        try {
+            delegate.deleteAll(columnFamily, rowid, pairs);
+        } finally {
+            invalidate(columnFamily, rowid, pairs);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insert(String columnFamily, String rowid, Pair pair) throws Exception {
+        try {
+            delegate.insert(columnFamily, rowid, pair);
+        } finally {
+            invalidate(columnFamily, rowid, pair.getKey());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insert(String columnFamily, String rowid, Pair[] pairs) throws Exception {
+        try {
+            delegate.insert(columnFamily, rowid, pairs);
+        } finally {
+            invalidate(columnFamily, rowid, pairs);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insertAll(String columnFamily, String rowid, Pair[] pairs) throws Exception {
+        try {
+            delegate.insertAll(columnFamily, rowid, pairs);
+        } finally {
+            invalidate(columnFamily, rowid, pairs);
+        }
+    }
+
+    /**
+     * {@inheritDoc}  Super columns are never cached, so nothing is
+     * invalidated.
+     */
+    public void insertAllSuperColumns(String columnFamily, String superColumnName, String rowid, Pair[] pairs) throws Exception {
+        delegate.insertAllSuperColumns(columnFamily, superColumnName, rowid, pairs);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BatchResult mutate(BatchMutation batch) throws Exception {
+        try {
+            return delegate.mutate(batch);
+
+        } finally {
+
+            // a failed chunk may still have been applied in part, so
+            // every column of the batch is invalidated.
+
+            for (BatchMutation.Entry entry : batch.getEntries()) {
+                if (entry.column != null) {
+                    invalidate(entry.columnFamily, entry.rowid, entry.column);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void discover() throws Exception {
+        delegate.discover();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deleteBySliceRange() throws Exception {
+        delegate.deleteBySliceRange();
+    }
+
+    /**
+     * Removes every cached column, and every column known to be absent, of
+     * every column family.
+     */
+    public void invalidateAll() {
+        for (TinyLfuCache<Column, String> cache : caches.values()) {
+            cache.invalidateAll();
+        }
+        for (NegativeCache<Column> absentCache : absentCaches.values()) {
+            absentCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Removes the specified column from the cache of its column family.
+     *
+     * @param columnFamily the column family of the column.
+     * @param rowid the row of the column.
+     * @param key the name of the column.
+     */
+    private void invalidate(String columnFamily, String rowid, String key) {
+        TinyLfuCache<Column, String> cache = caches.get(columnFamily);
+        if (cache != null) {
+            cache.invalidate(new Column(rowid, key));
+        }
+        NegativeCache<Column> absentCache = absentCaches.get(columnFamily);
+        if (absentCache != null) {
+            absentCache.invalidate(new Column(rowid, key));
+        }
+    }
+
+    /**
+     * Removes the specified columns from the cache of their column family.
+     *
+     * @param columnFamily the column family of the columns.
+     * @param rowid the row of the columns.
+     * @param pairs the columns to remove.
+     */
+    private void invalidate(String columnFamily, String rowid, Pair[] pairs) {
+        for (Pair pair : pairs) {
+            invalidate(columnFamily, rowid, pair.getKey());
+        }
+    }
+
+    /**
+     * Looks up the specified columns of a row in the specified caches.
+     *
+     * @param cache the cache of the column family, or <tt>null</tt>.
+     * @param absentCache the cache of absent columns, or <tt>null</tt>.
+     * @param rowid the row of the columns.
+     * @param keys the names of the columns.
+     * @param found receives the value of every cached column.
+     *
+     * @return the names of the columns that are neither cached nor known
+     * to be absent.
+     */
+    private List<String> lookup(TinyLfuCache<Column, String> cache, NegativeCache<Column> absentCache,
+                                String rowid, List<String> keys, Map<String, String> found) {
+        List<String> missing = Collections.emptyList();
+        for (String key : keys) {
+            Column column = new Column(rowid, key);
+            String value = cache == null ? null : cache.get(column);
+
+            if (value != null) {
+                found.put(key, value);
+            } else if (absentCache == null || ! absentCache.isAbsent(column)) {
+                if (missing.isEmpty()) missing = new ArrayList<String>();
+                missing.add(key);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Records the columns read from the delegate: the columns found are
+     * cached, and the columns asked for but not found are known to be
+     * absent.
+     *
+     * @param cache the cache of the column family, or <tt>null</tt>.
+     * @param stamp the stamp of the cache taken before the read.
+     * @param absentCache the cache of absent columns, or <tt>null</tt>.
+     * @param absentStamp the stamp of the cache of absent columns taken
+     * before the read.
+     * @param rowid the row of the columns.
+     * @param keys the names of the columns asked for.
+     * @param pairs the columns found.
+     * @param found receives the value of every column found.
+     */
+    private void remember(TinyLfuCache<Column, String> cache, long stamp,
+                          NegativeCache<Column> absentCache, long absentStamp,
+                          String rowid, List<String> keys, List<Pair> pairs, Map<String, String> found) {
+        for (Pair pair : pairs) {
+            found.put(pair.getKey(), pair.getVal());
+            if (cache != null) cache.put(new Column(rowid, pair.getKey()), pair.getVal(), stamp);
+        }
+        if (absentCache != null) {
+            for (String key : keys) {
+                if (! found.containsKey(key)) absentCache.markAbsent(new Column(rowid, key), absentStamp);
+            }
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified exception was caused by a
+     * missing column.
+     *
+     * @param exception the exception to check.
+     *
+     * @return <tt>true</tt> if the exception was caused by a
+     * {@code NotFoundException}; otherwise <tt>false</tt>.
+     */
+    private boolean isNotFound(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NotFoundException) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Converts the specified columns into pairs, in the order of the
+     * specified names, leaving out the columns that were not found.
+     *
+     * @param keys the names of the columns.
+     * @param found the value of every column found.
+     *
+     * @return the pairs of the found columns.
+     */
+    private List<Pair> pairs(List<String> keys, Map<String, String> found) {
+        List<Pair> pairs = new ArrayList<Pair>(found.size());
+        for (String key : keys) {
+            String value = found.get(key);
+            if (value != null) pairs.add(new Pair(key, value));
+        }
+        return pairs;
+    }
+
+    /**
+     * The cache key of a column within its column family.
+     */
+    private static class Column
+    {
+        /**
+         * The row of the column.
+         */
+        final String rowid;
+
+        /**
+         * The name of the column.
+         */
+        final String key;
+
+        /**
+         * Constructs this key.
+         *
+         * @param rowid the row of the column.
+         * @param key the name of the column.
+         */
+        Column(String rowid, String key) {
+            this.rowid = rowid;
+            this.key = key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override public boolean equals(Object other) {
+            if (this == other) return true;
+            if (! (other instanceof Column)) return false;
+            Column column = (Column) other;
+            return rowid.equals(column.rowid) && key.equals(column.key);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override public int hashCode() {
+            return 31 * rowid.hashCode() + key.hashCode();
+        }
+    }
+}
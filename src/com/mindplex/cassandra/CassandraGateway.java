@@ -1,6 +1,7 @@
 package com.mindplex.cassandra;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -37,21 +38,45 @@ public interface CassandraGateway
     String findColumn(String columnFamily, String rowid, String key) throws Exception;
 
     /**
+     * Finds the value of a column that may not exist, without the
+     * exception a missing column costs {@link #findColumn}.
      *
      * @param columnFamily
      * @param rowid
-     * @return
+     * @param key
+     * @return the value of the column, or <tt>null</tt> if it does not exist.
      * @throws Exception
      */
+    String findColumnIfExists(String columnFamily, String rowid, String key) throws Exception;
+
+    /**
+     * Reads a single slice of the columns of the specified row, which
+     * holds at most the first 100 columns of the row.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     * @return the columns of the first slice of the row.
+     * @throws Exception can occur if the slice cannot be read.
+     *
+     * @deprecated reads at most the first 100 columns of the row.  Use
+     * {@code scanColumns} to walk every column of a row lazily.
+     */
+    @Deprecated
     List<Pair> findColumnsSliceRange(String columnFamily, String rowid) throws Exception;
 
     /**
+     * Reads a single page of rows of the specified column family, every
+     * column of every row in it.  The {@code keys} argument is not used.
      *
-     * @param columnFamily
-     * @param keys
-     * @return
-     * @throws Exception
+     * @param columnFamily the column family to read.
+     * @param keys unused.
+     * @return the columns of the rows of the first page.
+     * @throws Exception can occur if the page cannot be read.
+     *
+     * @deprecated reads at most one page, and ignores {@code keys}.  Use
+     * {@code scan} to walk every row of a column family lazily.
      */
+    @Deprecated
     List<Pair> findByKeyRange(String columnFamily, List<String> keys) throws Exception;
 
     /**
@@ -64,6 +89,18 @@ public interface CassandraGateway
      */
     List<Pair> findColumns(String columnFamily, String rowid, List<String> keys) throws Exception;
 
+    /**
+     * Finds the specified columns of every specified row, reading the
+     * rows in concurrent {@code multiget_slice} calls.
+     *
+     * @param columnFamily
+     * @param rowids
+     * @param keys
+     * @return the columns found, keyed by row in the order of the rows.
+     * @throws Exception
+     */
+    Map<String, List<Pair>> findColumns(String columnFamily, List<String> rowids, List<String> keys) throws Exception;
+
     /**
      *
      * @param columnFamily
@@ -101,6 +138,16 @@ public interface CassandraGateway
      */
     void insertAllSuperColumns(String columnFamily, String superColumnName, String rowid, Pair[] pairs) throws Exception;
 
+    /**
+     * Writes the specified mutations in size capped chunks, sent in
+     * parallel.  Chunks succeed or fail independently.
+     *
+     * @param batch the mutations to write.
+     * @return the outcome of every chunk.
+     * @throws Exception
+     */
+    BatchResult mutate(BatchMutation batch) throws Exception;
+
     /**
      * 
      * @throws Exception
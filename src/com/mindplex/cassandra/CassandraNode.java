@@ -77,4 +77,48 @@ public class CassandraNode
     public void setKeyspace(String keyspace) {
         this.keyspace = keyspace;
     }
+
+    /**
+     * Two Cassandra nodes are equal if they share the same host, port
+     * and keyspace.
+     *
+     * @param other the other node to compare to this node for equality.
+     *
+     * @return {@code true} if the specified object is equal to this node.
+     */
+    @Override public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (! (other instanceof CassandraNode)) {
+            return false;
+        }
+        CassandraNode otherNode = (CassandraNode) other;
+        return port == otherNode.port
+                && (host == null ? otherNode.host == null : host.equals(otherNode.host))
+                && (keyspace == null ? otherNode.keyspace == null : keyspace.equals(otherNode.keyspace));
+    }
+
+    /**
+     * Gets the hash code for this node, derived from its host, port and
+     * keyspace.
+     *
+     * @return this node's hash code.
+     */
+    @Override public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + (host != null ? host.hashCode() : 0);
+        hash = 31 * hash + port;
+        hash = 31 * hash + (keyspace != null ? keyspace.hashCode() : 0);
+        return hash;
+    }
+
+    /**
+     * Gets the host and port of this node in {@code host:port} form.
+     *
+     * @return the host and port of this node.
+     */
+    @Override public String toString() {
+        return host + ":" + port;
+    }
 }
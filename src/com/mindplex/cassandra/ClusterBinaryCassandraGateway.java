@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.Column;
+
+import com.mindplex.cassandra.ring.TokenRing;
+import com.mindplex.util.Check;
+
+/**
+ * The binary view of a {@link ClusterCassandraGateway}.  Every operation
+ * is routed to a replica of its row, found by hashing the row key as it
+ * is, and executed with the binary view of that replica's gateway.
+ *
+ * @author Abel Perez
+ */
+public class ClusterBinaryCassandraGateway implements BinaryCassandraGateway
+{
+    /**
+     * The gateway that routes the operations of this gateway.
+     */
+    private final ClusterCassandraGateway cluster;
+
+    /**
+     * Constructs the binary view of the specified gateway.
+     *
+     * @param cluster the gateway that routes the operations of this
+     * gateway.
+     */
+    public ClusterBinaryCassandraGateway(ClusterCassandraGateway cluster) {
+        this.cluster = Check.forNull(cluster);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(final String columnFamily, final ByteBuffer rowid, final ByteBuffer name) throws Exception {
+        cluster.executeOnReplicas(replicas(rowid), new CassandraSelectFunction<ThriftCassandraGateway, Void>() {
+            public Void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.binary().delete(columnFamily, rowid, name);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deleteAll(final String columnFamily, final ByteBuffer rowid, final List<ByteBuffer> names) throws Exception {
+        cluster.executeOnReplicas(replicas(rowid), new CassandraSelectFunction<ThriftCassandraGateway, Void>() {
+            public Void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.binary().deleteAll(columnFamily, rowid, names);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ByteBuffer findColumn(final String columnFamily, final ByteBuffer rowid, final ByteBuffer name) throws Exception {
+        return cluster.executeOnReplicas(replicas(rowid), new CassandraSelectFunction<ThriftCassandraGateway, ByteBuffer>() {
+            public ByteBuffer execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.binary().findColumn(columnFamily, rowid, name);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Column> findColumns(final String columnFamily, final ByteBuffer rowid,
+                                    final List<ByteBuffer> names) throws Exception {
+        return cluster.executeOnReplicas(replicas(rowid), new CassandraSelectFunction<ThriftCassandraGateway, List<Column>>() {
+            public List<Column> execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.binary().findColumns(columnFamily, rowid, names);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}  The rows are grouped by primary replica, and every
+     * group is read concurrently, at most
+     * {@link ThriftCassandraGateway#DEFAULT_ROWS_PER_CALL} rows per call.
+     * The rows are returned in the order they were specified in.
+     */
+    public Map<ByteBuffer, List<Column>> findColumns(final String columnFamily, List<ByteBuffer> rowids,
+                                                     final List<ByteBuffer> names) throws Exception {
+        TokenRing<?> current = cluster.getRing();
+
+        Map<String, List<ByteBuffer>> replicas = new LinkedHashMap<String, List<ByteBuffer>>();
+        for (ByteBuffer rowid : new LinkedHashSet<ByteBuffer>(rowids)) {
+            List<String> owners = current == null ? Collections.<String>emptyList() : current.getReplicas(rowid);
+            String replica = owners.isEmpty() ? null : owners.get(0);
+
+            List<ByteBuffer> group = replicas.get(replica);
+            if (group == null) {
+                group = new ArrayList<ByteBuffer>();
+                replicas.put(replica, group);
+            }
+            group.add(rowid);
+        }
+
+        ExecutorService service = cluster.executor();
+        List<Future<Map<ByteBuffer, List<Column>>>> futures = new ArrayList<Future<Map<ByteBuffer, List<Column>>>>();
+
+        for (List<ByteBuffer> group : replicas.values()) {
+            for (final List<ByteBuffer> rows : ThriftCassandraGateway.partition(group, ThriftCassandraGateway.DEFAULT_ROWS_PER_CALL)) {
+                futures.add(service.submit(new Callable<Map<ByteBuffer, List<Column>>>() {
+                    public Map<ByteBuffer, List<Column>> call() throws Exception {
+                        return cluster.executeOnReplicas(replicas(rows.get(0)),
+                                new CassandraSelectFunction<ThriftCassandraGateway, Map<ByteBuffer, List<Column>>>() {
+                            public Map<ByteBuffer, List<Column>> execute(ThriftCassandraGateway gateway) throws Exception {
+                                return gateway.binary().findColumns(columnFamily, rows, names);
+                            }
+                        });
+                    }
+                }));
+            }
+        }
+
+        Map<ByteBuffer, List<Column>> found = new HashMap<ByteBuffer, List<Column>>();
+        for (Map<ByteBuffer, List<Column>> result : Futures.awaitAll(futures)) {
+            found.putAll(result);
+        }
+
+        Map<ByteBuffer, List<Column>> rows = new LinkedHashMap<ByteBuffer, List<Column>>();
+        for (ByteBuffer rowid : rowids) {
+            rows.put(rowid, found.get(rowid));
+        }
+        return rows;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Column> findColumnsSliceRange(final String columnFamily, final ByteBuffer rowid, final ByteBuffer start,
+                                              final ByteBuffer finish, final boolean reversed, final int count) throws Exception {
+        return cluster.executeOnReplicas(replicas(rowid), new CassandraSelectFunction<ThriftCassandraGateway, List<Column>>() {
+            public List<Column> execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.binary().findColumnsSliceRange(columnFamily, rowid, start, finish, reversed, count);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insert(final String columnFamily, final ByteBuffer rowid,
+                       final ByteBuffer name, final ByteBuffer value) throws Exception {
+        cluster.executeOnReplicas(replicas(rowid), new CassandraSelectFunction<ThriftCassandraGateway, Void>() {
+            public Void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.binary().insert(columnFamily, rowid, name, value);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insertAll(final String columnFamily, final ByteBuffer rowid,
+                          final Map<ByteBuffer, ByteBuffer> columns) throws Exception {
+        cluster.executeOnReplicas(replicas(rowid), new CassandraSelectFunction<ThriftCassandraGateway, Void>() {
+            public Void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.binary().insertAll(columnFamily, rowid, columns);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Gets the replicas of the specified row in the current token ring.
+     *
+     * @param rowid the row to look up.
+     *
+     * @return the addresses of the replicas of the row, or an empty list
+     * if the ring is not known.
+     */
+    private List<String> replicas(ByteBuffer rowid) {
+        TokenRing<?> current = cluster.getRing();
+        return current == null ? Collections.<String>emptyList() : current.getReplicas(rowid);
+    }
+}
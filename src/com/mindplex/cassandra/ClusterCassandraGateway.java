@@ -0,0 +1,1831 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.thrift.transport.TTransportException;
+
+import com.mindplex.cassandra.connection.ConnectionException;
+import com.mindplex.cassandra.connection.PoolConfig;
+import com.mindplex.cassandra.ring.TokenRing;
+import com.mindplex.util.Acquirable;
+import com.mindplex.util.Check;
+import com.mindplex.util.CircuitBreaker;
+import com.mindplex.util.LatencyFeedback;
+import com.mindplex.util.LoadBalancedList;
+import com.mindplex.util.NamedThreadFactory;
+import com.mindplex.util.SingleFlight;
+import com.mindplex.util.VirtualThreads;
+import com.mindplex.util.WeightedRoundRobinList;
+
+/**
+ * A gateway to a cluster of Cassandra nodes.  This gateway holds a
+ * {@link ThriftCassandraGateway}, and therefore a connection pool, for
+ * every node it knows about and picks the node that serves each operation
+ * through a {@link LoadBalancedList}.  By default the nodes are balanced
+ * with a {@link WeightedRoundRobinList}, which spreads reads and writes
+ * across the ring instead of funnelling them through a single coordinator.
+ * If the list takes {@link LatencyFeedback}, such as an
+ * {@link com.mindplex.util.EwmaLoadBalancedList}, the latency of every
+ * operation is reported back to it, which steers load away from slow nodes.
+ * If the list is {@link Acquirable}, such as a
+ * {@link com.mindplex.util.LeastOutstandingList}, every operation acquires
+ * its node and releases it when it finishes.
+ *
+ * <p>Every node has a {@link CircuitBreaker}.  A node that keeps failing
+ * with broken connections or timeouts is ejected from the load balanced
+ * list for a backoff period, then receives a few probe operations before
+ * it's fully re-admitted.  Operations therefore fail over to healthy nodes
+ * instead of blocking on a dead one.
+ *
+ * <p>Latency critical reads can be hedged: see {@link #executeHedged}.
+ *
+ * <p>Once the token ring of the keyspace has been discovered, operations
+ * on a single row are routed straight to one of the row's replicas, which
+ * saves the hop from a coordinator to the replica.  The ring is discovered
+ * when this gateway is constructed and every time {@link #discover()} is
+ * called.  Operations that span rows, and rows whose replicas this gateway
+ * holds no pool for, are balanced across all nodes.
+ *
+ * <p>With a refresh interval set, the ring is re-read in the background.
+ * Nodes that joined the ring get a connection pool and start taking load,
+ * and the pools of nodes that left the ring are drained and closed, so the
+ * cluster can be scaled without restarting the application.
+ *
+ * <p>A node is only ejected when requests to it fail, so a node that hangs
+ * rather than refuses connections is only detected with a socket timeout.
+ * Pools default to {@link PoolConfig#DEFAULT_SOCKET_TIMEOUT}; configuring
+ * a socket timeout of zero lets a hung node hold every thread sending it a
+ * request without ever tripping its circuit breaker.
+ *
+ * @author Abel Perez
+ */
+public class ClusterCassandraGateway implements CassandraGateway
+{
+    /**
+     * Default logger used by this gateway.
+     */
+    private static final Logger logger =
+            Logger.getLogger(ClusterCassandraGateway.class.getName());
+
+    /**
+     * The weight nodes are balanced with when no weight is specified.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * The amount of consecutive refreshes a node that joined through the
+     * ring must be missing from it before its pool is closed.
+     */
+    public static final int REFRESH_MISSES = 3;
+
+    /**
+     * The keyspace this gateway is associated with.
+     */
+    private final String keyspace;
+
+    /**
+     * The consistency level this gateway enforces when reading/writing
+     * to Cassandra.
+     */
+    private final ConsistencyLevel consistencyLevel;
+
+    /**
+     * The settings of the connection pool opened for every node.
+     */
+    private final PoolConfig poolConfig;
+
+    /**
+     * The port of the nodes discovered in the token ring, which reports
+     * addresses only.  Taken from the first node this gateway was
+     * constructed with.
+     */
+    private final int port;
+
+    /**
+     * The gateway to every node this gateway knows about, keyed by node.
+     */
+    private final ConcurrentMap<CassandraNode, ThriftCassandraGateway> gateways =
+            new ConcurrentHashMap<CassandraNode, ThriftCassandraGateway>();
+
+    /**
+     * The node known to this gateway for every endpoint address, as the
+     * token ring reports endpoints by address.
+     */
+    private final ConcurrentMap<String, CassandraNode> endpoints =
+            new ConcurrentHashMap<String, CassandraNode>();
+
+    /**
+     * The token ring of the keyspace, or <tt>null</tt> until it has been
+     * discovered.
+     */
+    private volatile TokenRing<?> ring;
+
+    /**
+     * Rotates the replica single row operations start with, so that the
+     * load on a row is spread across all of its replicas.
+     */
+    private final AtomicInteger replicaOffset = new AtomicInteger();
+
+    /**
+     * The circuit breaker of every node this gateway knows about.
+     */
+    private final ConcurrentMap<CassandraNode, CircuitBreaker> breakers =
+            new ConcurrentHashMap<CassandraNode, CircuitBreaker>();
+
+    /**
+     * The weight every node this gateway knows about is balanced with,
+     * used to put an ejected node back in the load balanced list.
+     */
+    private final ConcurrentMap<CassandraNode, Integer> weights =
+            new ConcurrentHashMap<CassandraNode, Integer>();
+
+    /**
+     * The nodes taken out of the load balanced list because their circuit
+     * breaker opened.
+     */
+    private final Set<CassandraNode> ejected =
+            Collections.newSetFromMap(new ConcurrentHashMap<CassandraNode, Boolean>());
+
+    /**
+     * The nodes added by a refresh because they joined the ring, as
+     * opposed to the nodes this gateway was configured with.
+     */
+    private final Set<CassandraNode> joined =
+            Collections.newSetFromMap(new ConcurrentHashMap<CassandraNode, Boolean>());
+
+    /**
+     * The amount of consecutive refreshes every joined node has been
+     * missing from the ring.
+     */
+    private final ConcurrentMap<CassandraNode, Integer> misses =
+            new ConcurrentHashMap<CassandraNode, Integer>();
+
+    /**
+     * The nodes operations are balanced across.
+     */
+    private final LoadBalancedList<CassandraNode> nodes;
+
+    /**
+     * The lock that guards {@link #nodes}, since load balanced lists are
+     * not safe for concurrent use, and the refresh schedule.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The policy that decides when hedged reads send a second copy.
+     */
+    private volatile HedgePolicy hedgePolicy = new HedgePolicy();
+
+    /**
+     * Collapses concurrent identical reads into one, or <tt>null</tt> if
+     * reads are not de-duplicated.
+     */
+    private volatile SingleFlight singleFlight;
+
+    /**
+     * The binary view of this gateway.
+     */
+    private final BinaryCassandraGateway binary = new ClusterBinaryCassandraGateway(this);
+
+    /**
+     * The executor batch chunks and scan pages are executed on, created
+     * the first time one is executed.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The executor the copies of hedged reads are executed on, created the
+     * first time a read is hedged.  It is kept apart from the executor of
+     * batch chunks so hedged reads never queue behind a large batch.
+     */
+    private ExecutorService hedger;
+
+    /**
+     * The time in milliseconds between topology refreshes, or zero if the
+     * topology is not refreshed in the background.
+     */
+    private long refreshInterval;
+
+    /**
+     * The scheduler that runs topology refreshes, created the first time
+     * a refresh interval is set.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * The scheduled topology refresh, or <tt>null</tt> if none is scheduled.
+     */
+    private ScheduledFuture<?> refresh;
+
+    /**
+     * Constructs this gateway with the specified keyspace and Cassandra
+     * nodes, using a consistency level of {@code ONE} and the default
+     * connection pool settings.
+     *
+     * @param keyspace the keyspace this gateway is associated with.
+     * @param nodes the Cassandra nodes this gateway balances operations across.
+     */
+    public ClusterCassandraGateway(String keyspace, List<CassandraNode> nodes) {
+        this(keyspace, nodes, ConsistencyLevel.ONE, new PoolConfig());
+    }
+
+    /**
+     * Constructs this gateway with the specified keyspace, Cassandra nodes,
+     * consistency level and connection pool settings.  Nodes are balanced
+     * in weighted round robin fashion.
+     *
+     * @param keyspace the keyspace this gateway is associated with.
+     * @param nodes the Cassandra nodes this gateway balances operations across.
+     * @param consistencyLevel the consistency level this gateway should
+     * enforce when reading/writing to Cassandra.
+     * @param poolConfig the settings of the connection pool opened for
+     * every node.
+     */
+    public ClusterCassandraGateway(String keyspace, List<CassandraNode> nodes,
+                                   ConsistencyLevel consistencyLevel, PoolConfig poolConfig) {
+        this(keyspace, nodes, consistencyLevel, poolConfig, new WeightedRoundRobinList<CassandraNode>());
+    }
+
+    /**
+     * Constructs this gateway with the specified keyspace, Cassandra nodes,
+     * consistency level, connection pool settings and the load balanced
+     * list nodes are picked from.  Every node that cannot be reached is
+     * logged and skipped; at least one node must be reachable.
+     *
+     * @param keyspace the keyspace this gateway is associated with.
+     * @param nodes the Cassandra nodes this gateway balances operations across.
+     * @param consistencyLevel the consistency level this gateway should
+     * enforce when reading/writing to Cassandra.
+     * @param poolConfig the settings of the connection pool opened for
+     * every node.
+     * @param balancer the empty load balanced list nodes are picked from.
+     */
+    public ClusterCassandraGateway(String keyspace, List<CassandraNode> nodes,
+                                   ConsistencyLevel consistencyLevel, PoolConfig poolConfig,
+                                   LoadBalancedList<CassandraNode> balancer) {
+
+        // verify that specified parameters are valid.
+
+        if (keyspace == null || "".equals(keyspace)) {
+            throw new IllegalArgumentException("keyspace cannot be empty.");
+        }
+        if (nodes == null || nodes.isEmpty()) {
+            throw new IllegalArgumentException("nodes cannot be empty.");
+        }
+        if (consistencyLevel == null) {
+            throw new IllegalArgumentException("ConsistencyLevel cannot be null.");
+        }
+        if (poolConfig == null) {
+            throw new IllegalArgumentException("PoolConfig cannot be null.");
+        }
+        if (balancer == null) {
+            throw new IllegalArgumentException("LoadBalancedList cannot be null.");
+        }
+
+        this.keyspace = keyspace;
+        this.consistencyLevel = consistencyLevel;
+        this.poolConfig = poolConfig;
+        this.nodes = balancer;
+        this.port = nodes.get(0).getPort();
+
+        for (CassandraNode node : nodes) {
+            try {
+                addNode(node, DEFAULT_WEIGHT);
+
+            } catch (RuntimeException exception) {
+                logger.log(Level.SEVERE, "Failed to connect to node: " + node, exception);
+            }
+        }
+
+        if (gateways.isEmpty()) {
+            throw new ConnectionException("Failed to connect to any node: " + nodes);
+        }
+
+        try {
+            discover();
+
+        } catch (Exception exception) {
+            logger.log(Level.WARNING, "Failed to discover token ring, "
+                    + "routing by token is disabled until the next discover.", exception);
+        }
+    }
+
+    /**
+     * Adds the specified node to this gateway with the specified weight and
+     * opens a connection pool to it.  If the node is already known, only its
+     * weight is updated.
+     *
+     * @param node the node to add; only its host and port are used, the
+     * keyspace is always the keyspace of this gateway.
+     * @param weight the weight the node is balanced with.
+     *
+     * @return the node as it is known to this gateway.
+     */
+    public CassandraNode addNode(CassandraNode node, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+
+        CassandraNode target = node(node.getHost(), node.getPort());
+
+        if (! gateways.containsKey(target)) {
+            ThriftCassandraGateway gateway = new ThriftCassandraGateway(
+                    target.getHost(), target.getPort(), keyspace, consistencyLevel, poolConfig);
+
+            if (gateways.putIfAbsent(target, gateway) != null) {
+                gateway.close();
+            }
+        }
+
+        for (String endpoint : addresses(target)) {
+            endpoints.put(endpoint, target);
+        }
+
+        breakers.putIfAbsent(target, createBreaker(target));
+        weights.put(target, weight);
+
+        lock.lock();
+        try {
+            ejected.remove(target);
+            nodes.add(target, weight);
+        } finally {
+            lock.unlock();
+        }
+
+        return target;
+    }
+
+    /**
+     * Removes the specified node from this gateway and closes its
+     * connection pool.
+     *
+     * @param node the node to remove.
+     *
+     * @return <tt>true</tt> if the node was known to this gateway;
+     * otherwise <tt>false</tt>.
+     */
+    public boolean removeNode(CassandraNode node) {
+        CassandraNode target = node(node.getHost(), node.getPort());
+
+        lock.lock();
+        try {
+            nodes.remove(target);
+            ejected.remove(target);
+        } finally {
+            lock.unlock();
+        }
+
+        breakers.remove(target);
+        weights.remove(target);
+        joined.remove(target);
+        misses.remove(target);
+
+        for (String endpoint : addresses(target)) {
+            endpoints.remove(endpoint, target);
+        }
+
+        ThriftCassandraGateway gateway = gateways.remove(target);
+        if (gateway != null) {
+            gateway.close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Re-reads the token ring and brings the nodes of this gateway in line
+     * with it.  A connection pool is opened for every endpoint that joined
+     * the ring.  The pool of a node that joined this way is closed once the
+     * node has been missing from the ring for {@link #REFRESH_MISSES}
+     * refreshes in a row.  Idle connections of a departed node are closed
+     * right away, borrowed ones as they are released.
+     *
+     * <p>The nodes this gateway was configured with are never removed,
+     * since the ring reports listen addresses, which may differ from the
+     * address a node was configured with.  Neither is a node whose host
+     * cannot be resolved, nor the last node of this gateway, without which
+     * the ring could never be read again.  If the ring cannot be mapped
+     * client side, the nodes of this gateway are left as they are.
+     *
+     * @throws Exception can occur if the ring cannot be described.
+     */
+    public void refresh() throws Exception {
+        discover();
+
+        TokenRing<?> current = ring;
+        if (current == null) return;
+
+        Set<String> live = current.getEndpoints();
+        if (live.isEmpty()) return;
+
+        // open a pool for every endpoint that joined the ring.
+
+        for (String endpoint : live) {
+            if (endpoints.containsKey(endpoint)) continue;
+            try {
+                CassandraNode node = addNode(node(endpoint, port), DEFAULT_WEIGHT);
+                joined.add(node);
+                logger.info("Added node that joined the ring: " + node);
+
+            } catch (RuntimeException exception) {
+                logger.log(Level.WARNING, "Failed to connect to node that joined the ring: "
+                        + endpoint, exception);
+            }
+        }
+
+        // drain the pool of every joined node that has left the ring for
+        // good, rather than for a single describe_ring.
+
+        for (CassandraNode node : getNodes()) {
+            if (! joined.contains(node)) continue;
+
+            Set<String> addresses = resolve(node);
+            if (addresses == null || ! Collections.disjoint(addresses, live)) {
+                misses.remove(node);
+                continue;
+            }
+
+            Integer missed = misses.get(node);
+            missed = missed == null ? 1 : missed + 1;
+            misses.put(node, missed);
+            if (missed < REFRESH_MISSES) continue;
+
+            if (gateways.size() <= 1) {
+                logger.warning("Keeping the last node although it left the ring: " + node);
+                continue;
+            }
+            removeNode(node);
+            logger.info("Removed node that left the ring: " + node);
+        }
+    }
+
+    /**
+     * Gets the time in milliseconds between topology refreshes.
+     *
+     * @return the refresh interval, or zero if the topology is not
+     * refreshed in the background.
+     */
+    public long getRefreshInterval() {
+        lock.lock();
+        try {
+            return refreshInterval;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time in milliseconds between topology refreshes and
+     * reschedules the background refresh accordingly.
+     *
+     * @param refreshInterval the refresh interval, or a value equal to or
+     * less than zero to stop refreshing the topology in the background.
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        lock.lock();
+        try {
+            if (refresh != null) {
+                refresh.cancel(false);
+                refresh = null;
+            }
+
+            this.refreshInterval = Math.max(0, refreshInterval);
+            if (this.refreshInterval == 0) return;
+
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(
+                        new NamedThreadFactory("cassandra-topology-refresh"));
+            }
+
+            refresh = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        refresh();
+
+                    } catch (Exception exception) {
+                        logger.log(Level.WARNING, "Failed to refresh topology.", exception);
+                    }
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the token ring of the keyspace this gateway is associated with.
+     *
+     * @return the token ring, or <tt>null</tt> if it has not been discovered
+     * or the cluster uses a partitioner that is not supported client side.
+     */
+    public TokenRing<?> getRing() {
+        return ring;
+    }
+
+    /**
+     * Gets every node this gateway holds a connection pool for.
+     *
+     * @return the nodes known to this gateway.
+     */
+    public Set<CassandraNode> getNodes() {
+        return Collections.unmodifiableSet(new HashSet<CassandraNode>(gateways.keySet()));
+    }
+
+    /**
+     * Gets the gateway to the specified node.
+     *
+     * @param node the node to get the gateway of.
+     *
+     * @return the gateway to the specified node, or <tt>null</tt> if the
+     * node is not known to this gateway.
+     */
+    public ThriftCassandraGateway getGateway(CassandraNode node) {
+        return gateways.get(node);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(final String columnFamily, final String rowid, final String column) throws Exception {
+        execute(rowid, new CassandraFunction<ThriftCassandraGateway>() {
+            public void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.delete(columnFamily, rowid, column);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deleteAll(final String columnFamily, final String rowid, final Pair[] pairs) throws Exception {
+        execute(rowid, new CassandraFunction<ThriftCassandraGateway>() {
+            public void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.deleteAll(columnFamily, rowid, pairs);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String findColumn(final String columnFamily, final String rowid, final String key) throws Exception {
+        return executeShared(Arrays.asList("findColumn", columnFamily, rowid, key), rowid,
+                new CassandraSelectFunction<ThriftCassandraGateway, String>() {
+            public String execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.findColumn(columnFamily, rowid, key);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String findColumnIfExists(final String columnFamily, final String rowid, final String key) throws Exception {
+        return executeShared(Arrays.asList("findColumnIfExists", columnFamily, rowid, key), rowid,
+                new CassandraSelectFunction<ThriftCassandraGateway, String>() {
+            public String execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.findColumnIfExists(columnFamily, rowid, key);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @deprecated reads at most the first 100 columns of the row.  Use
+     * {@link #scanColumns(String, String)} to walk every column of a row
+     * lazily.
+     */
+    @Deprecated
+    public List<Pair> findColumnsSliceRange(final String columnFamily, final String rowid) throws Exception {
+        return executeShared(Arrays.asList("findColumnsSliceRange", columnFamily, rowid), rowid,
+                new CassandraSelectFunction<ThriftCassandraGateway, List<Pair>>() {
+            public List<Pair> execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.findColumnsSliceRange(columnFamily, rowid);
+            }
+        });
+    }
+
+    /**
+     * Iterates every column of the specified row, with pages of the
+     * default size.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     *
+     * @return a lazy iterator over the columns of the row.
+     */
+    public ColumnIterator scanColumns(String columnFamily, String rowid) {
+        return scanColumns(columnFamily, rowid, "", "", false, ColumnIterator.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Iterates the columns of the specified row between the specified
+     * bounds, page by page.  Every page is a separate operation routed to
+     * a replica of the row, so a long walk does not hold on to a node.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     * @param start the name of the first column to read, or an empty string
+     * to read from the start of the row.
+     * @param finish the name of the last column to read, or an empty string
+     * to read until the end of the row.
+     * @param reversed <tt>true</tt> to read the columns in reverse order.
+     * @param pageSize the amount of columns read per page.
+     *
+     * @return a lazy iterator over the columns of the row.
+     */
+    public ColumnIterator scanColumns(final String columnFamily, final String rowid,
+                                      String start, String finish, boolean reversed, int pageSize) {
+        return new ColumnIterator(start, finish, reversed, pageSize) {
+            protected List<ColumnOrSuperColumn> fetch(final SlicePredicate predicate) throws Exception {
+                return executeSelect(rowid, new CassandraSelectFunction<ThriftCassandraGateway, List<ColumnOrSuperColumn>>() {
+                    public List<ColumnOrSuperColumn> execute(ThriftCassandraGateway gateway) throws Exception {
+                        return gateway.executeSelect(gateway.slice(columnFamily, rowid, predicate));
+                    }
+                });
+            }
+
+            protected String stringValue(ByteBuffer buffer) throws Exception {
+                return ClusterCassandraGateway.this.stringValue(buffer);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @deprecated reads at most one page, and ignores {@code keys}.  Use
+     * {@link #scan(String)} to walk every row of a column family lazily.
+     */
+    @Deprecated
+    public List<Pair> findByKeyRange(final String columnFamily, final List<String> keys) throws Exception {
+        return executeSelect(null, new CassandraSelectFunction<ThriftCassandraGateway, List<Pair>>() {
+            public List<Pair> execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.findByKeyRange(columnFamily, keys);
+            }
+        });
+    }
+
+    /**
+     * Scans every row of the specified column family, with pages of the
+     * default size.
+     *
+     * @param columnFamily the column family to scan.
+     *
+     * @return a lazy iterator over the columns of every row.
+     */
+    public KeyRangeIterator scan(String columnFamily) {
+        return scan(columnFamily, KeyRangeIterator.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Scans every row of the specified column family, with pages of the
+     * specified size.
+     *
+     * @param columnFamily the column family to scan.
+     * @param pageSize the amount of rows read per page.
+     *
+     * @return a lazy iterator over the columns of every row.
+     */
+    public KeyRangeIterator scan(String columnFamily, int pageSize) {
+        return scan(columnFamily, ThriftUtil.allKeyRange(), pageSize);
+    }
+
+    /**
+     * Scans the rows of the specified column family within the specified
+     * key range, page by page.  Every page is a separate operation that
+     * is load balanced across the nodes of this gateway, so a long scan
+     * does not hold on to a single node.
+     *
+     * @param columnFamily the column family to scan.
+     * @param range the key range to scan.
+     * @param pageSize the amount of rows read per page.
+     *
+     * @return a lazy iterator over the columns of every row in the range.
+     */
+    public KeyRangeIterator scan(final String columnFamily, KeyRange range, int pageSize) {
+        return new KeyRangeIterator(executor(), range, pageSize) {
+            protected List<KeySlice> fetch(final KeyRange page, final SlicePredicate predicate) throws Exception {
+                return executeSelect(null, new CassandraSelectFunction<ThriftCassandraGateway, List<KeySlice>>() {
+                    public List<KeySlice> execute(ThriftCassandraGateway gateway) throws Exception {
+                        return gateway.executeSelect(gateway.rangeSlices(columnFamily, predicate, page));
+                    }
+                });
+            }
+
+            protected ColumnIterator scanColumns(String rowid, String start) {
+                return ClusterCassandraGateway.this.scanColumns(columnFamily, rowid,
+                        start, "", false, ColumnIterator.DEFAULT_PAGE_SIZE);
+            }
+
+            protected String stringValue(ByteBuffer buffer) throws Exception {
+                return ClusterCassandraGateway.this.stringValue(buffer);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Pair> findColumns(final String columnFamily, final String rowid, final List<String> keys) throws Exception {
+        return executeShared(Arrays.asList("findColumns", columnFamily, rowid, new ArrayList<String>(keys)), rowid,
+                new CassandraSelectFunction<ThriftCassandraGateway, List<Pair>>() {
+            public List<Pair> execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.findColumns(columnFamily, rowid, keys);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, List<Pair>> findColumns(String columnFamily, List<String> rowids, List<String> keys) throws Exception {
+        return findColumns(columnFamily, rowids, keys, ThriftCassandraGateway.DEFAULT_ROWS_PER_CALL);
+    }
+
+    /**
+     * Finds the specified columns of every specified row.  Once the token
+     * ring is known, the rows are grouped by their primary replica, and
+     * every group is split into {@code multiget_slice} calls of at most the
+     * specified amount of rows.  Every call is routed to a replica of its
+     * rows, and all calls are executed concurrently, each on its own pooled
+     * connection.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowids the rows to read.
+     * @param keys the names of the columns to read.
+     * @param rowsPerCall the max amount of rows read by a single call.
+     *
+     * @return the columns found, keyed by row in the order of the specified
+     * rows.  A row without any of the columns maps to an empty list.
+     *
+     * @throws Exception the first failure of the calls, once all of them
+     * have finished.
+     */
+    public Map<String, List<Pair>> findColumns(final String columnFamily, List<String> rowids,
+                                               final List<String> keys, int rowsPerCall) throws Exception {
+        TokenRing<?> current = ring;
+
+        Map<String, List<String>> replicas = new LinkedHashMap<String, List<String>>();
+        for (String rowid : new LinkedHashSet<String>(rowids)) {
+            String replica = primaryReplica(current, rowid);
+            List<String> group = replicas.get(replica);
+            if (group == null) {
+                group = new ArrayList<String>();
+                replicas.put(replica, group);
+            }
+            group.add(rowid);
+        }
+
+        ExecutorService service = executor();
+        List<Future<Map<String, List<Pair>>>> futures = new ArrayList<Future<Map<String, List<Pair>>>>();
+
+        for (List<String> group : replicas.values()) {
+            for (final List<String> rows : ThriftCassandraGateway.partition(group, rowsPerCall)) {
+                futures.add(service.submit(new Callable<Map<String, List<Pair>>>() {
+                    public Map<String, List<Pair>> call() throws Exception {
+                        return executeSelect(rows.get(0), new CassandraSelectFunction<ThriftCassandraGateway, Map<String, List<Pair>>>() {
+                            public Map<String, List<Pair>> execute(ThriftCassandraGateway gateway) throws Exception {
+                                return gateway.executeSelect(gateway.multiget(columnFamily, rows, keys));
+                            }
+                        });
+                    }
+                }));
+            }
+        }
+
+        Map<String, List<Pair>> results = new HashMap<String, List<Pair>>();
+        for (Map<String, List<Pair>> result : Futures.awaitAll(futures)) {
+            results.putAll(result);
+        }
+
+        Map<String, List<Pair>> rows = new LinkedHashMap<String, List<Pair>>();
+        for (String rowid : rowids) {
+            rows.put(rowid, results.get(rowid));
+        }
+        return rows;
+    }
+
+    /**
+     * Finds the value of a column like {@link #findColumn(String, String, String)},
+     * optionally hedged to a second replica as described by
+     * {@link #executeHedged}.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read from.
+     * @param key the name of the column to read.
+     * @param hedge <tt>true</tt> to hedge the read.
+     *
+     * @return the value of the column.
+     *
+     * @throws Exception can occur if the column cannot be read.
+     */
+    public String findColumn(final String columnFamily, final String rowid, final String key, boolean hedge) throws Exception {
+        if (! hedge) return findColumn(columnFamily, rowid, key);
+
+        return executeHedged(rowid, new CassandraSelectFunction<ThriftCassandraGateway, String>() {
+            public String execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.findColumn(columnFamily, rowid, key);
+            }
+        });
+    }
+
+    /**
+     * Finds the specified columns of a row like
+     * {@link #findColumns(String, String, List)}, optionally hedged to a
+     * second replica as described by {@link #executeHedged}.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read from.
+     * @param keys the names of the columns to read.
+     * @param hedge <tt>true</tt> to hedge the read.
+     *
+     * @return the columns found.
+     *
+     * @throws Exception can occur if the columns cannot be read.
+     */
+    public List<Pair> findColumns(final String columnFamily, final String rowid, final List<String> keys, boolean hedge) throws Exception {
+        if (! hedge) return findColumns(columnFamily, rowid, keys);
+
+        return executeHedged(rowid, new CassandraSelectFunction<ThriftCassandraGateway, List<Pair>>() {
+            public List<Pair> execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.findColumns(columnFamily, rowid, keys);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insert(final String columnFamily, final String rowid, final Pair pair) throws Exception {
+        execute(rowid, new CassandraFunction<ThriftCassandraGateway>() {
+            public void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.insert(columnFamily, rowid, pair);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insert(final String columnFamily, final String rowid, final Pair[] pairs) throws Exception {
+        execute(rowid, new CassandraFunction<ThriftCassandraGateway>() {
+            public void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.insert(columnFamily, rowid, pairs);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insertAll(final String columnFamily, final String rowid, final Pair[] pairs) throws Exception {
+        execute(rowid, new CassandraFunction<ThriftCassandraGateway>() {
+            public void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.insertAll(columnFamily, rowid, pairs);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insertAllSuperColumns(final String columnFamily, final String superColumnName, final String rowid, final Pair[] pairs) throws Exception {
+        execute(rowid, new CassandraFunction<ThriftCassandraGateway>() {
+            public void execute(ThriftCassandraGateway gateway) throws Exception {
+                gateway.insertAllSuperColumns(columnFamily, superColumnName, rowid, pairs);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BatchResult mutate(BatchMutation batch) throws Exception {
+        return mutate(batch, BatchMutation.DEFAULT_MAX_CHUNK_BYTES, BatchMutation.DEFAULT_MAX_CHUNK_MUTATIONS);
+    }
+
+    /**
+     * Writes the specified mutations in chunks that hold at most the
+     * specified amount of mutations and estimated bytes.  Once the token
+     * ring is known, the mutations are grouped by the primary replica of
+     * their row before they are chunked, so every chunk is sent to a node
+     * that owns its rows.  All chunks are sent concurrently, each as a
+     * single {@code batch_mutate}.
+     *
+     * @param batch the mutations to write.
+     * @param maxBytes the max estimated amount of serialized bytes in a chunk.
+     * @param maxMutations the max amount of mutations in a chunk.
+     *
+     * @return the outcome of every chunk.
+     */
+    public BatchResult mutate(BatchMutation batch, int maxBytes, int maxMutations) {
+        final TokenRing<?> current = ring;
+
+        Map<String, BatchMutation> groups = batch.groupBy(new BatchMutation.Grouping<String>() {
+            public String group(String rowid) {
+                return primaryReplica(current, rowid);
+            }
+        });
+
+        List<BatchMutation.Chunk> chunks = new ArrayList<BatchMutation.Chunk>();
+        for (BatchMutation group : groups.values()) {
+            chunks.addAll(group.chunks(maxBytes, maxMutations, chunks.size()));
+        }
+
+        ExecutorService service = executor();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks.size());
+
+        for (final BatchMutation.Chunk chunk : chunks) {
+            futures.add(service.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+
+                    // every row of a chunk shares its primary replica, so
+                    // routing by the first row reaches a node owning all.
+
+                    String rowid = chunk.getRows().iterator().next();
+                    return executeSelect(rowid, new CassandraSelectFunction<ThriftCassandraGateway, Void>() {
+                        public Void execute(final ThriftCassandraGateway gateway) throws Exception {
+                            gateway.execute(new CassandraFunction<Cassandra.Client>() {
+                                public void execute(Cassandra.Client client) throws Exception {
+                                    client.batch_mutate(chunk.getMutationMap(), gateway.getConsistencyLevel());
+                                }
+                            });
+                            return null;
+                        }
+                    });
+                }
+            }));
+        }
+
+        // wait for every chunk and record the failed ones, a failed
+        // chunk does not affect the chunks sent alongside it.  Each
+        // failure has already been logged by the function that sent it.
+
+        return BatchResult.await(chunks, futures);
+    }
+
+    /**
+     * Discovers the token ring of the keyspace this gateway is associated
+     * with, which from then on routes single row operations to the row's
+     * replicas.
+     *
+     * @throws Exception can occur if the ring cannot be described.
+     */
+    public void discover() throws Exception {
+        TokenRing<?> discovered = executeSelect(null, new CassandraSelectFunction<ThriftCassandraGateway, TokenRing<?>>() {
+            public TokenRing<?> execute(ThriftCassandraGateway gateway) throws Exception {
+                return gateway.describeRing();
+            }
+        });
+
+        if (discovered == null) {
+            logger.warning("Partitioner not supported, routing by token is disabled.");
+        } else {
+            logger.info("Discovered token ring. [endpoints: " + discovered.getEndpoints() + "]");
+        }
+        ring = discovered;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deleteBySliceRange() throws Exception {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Gets the consistency level this gateway enforces when reading/writing
+     * to Cassandra.
+     *
+     * @return the consistency level of this gateway.
+     */
+    public ConsistencyLevel getConsistencyLevel() {
+        return consistencyLevel;
+    }
+
+    /**
+     * Gets the keyspace this gateway is associated with.
+     *
+     * @return the keyspace this gateway is associated with.
+     */
+    public String getKeyspace() {
+        return keyspace;
+    }
+
+    /**
+     * Closes this gateway and the connection pool of every node.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+                refresh = null;
+            }
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            if (hedger != null) {
+                hedger.shutdown();
+                hedger = null;
+            }
+            nodes.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (CassandraNode node : gateways.keySet()) {
+            ThriftCassandraGateway gateway = gateways.remove(node);
+            if (gateway != null) {
+                gateway.close();
+            }
+        }
+    }
+
+    /**
+     * Executes the specified function against the gateway of the node
+     * picked for the specified row, and reports the latency of the
+     * function to the load balanced list if it takes latency feedback.
+     *
+     * @param rowid the row the function targets, or <tt>null</tt> if the
+     * function spans rows.
+     * @param function the function to execute.
+     *
+     * @throws Exception can occur if the function fails.
+     */
+    public void execute(String rowid, CassandraFunction<ThriftCassandraGateway> function) throws Exception {
+        ThriftCassandraGateway gateway = rowid == null ? select() : select(rowid);
+        long start = System.nanoTime();
+
+        try {
+            function.execute(gateway);
+            completed(gateway.getNode(), System.nanoTime() - start, null);
+
+        } catch (Exception exception) {
+            completed(gateway.getNode(), System.nanoTime() - start, exception);
+            throw exception;
+
+        } finally {
+            release(gateway.getNode());
+        }
+    }
+
+    /**
+     * Executes the specified select function against the gateway of the
+     * node picked for the specified row, and reports the latency of the
+     * function to the load balanced list if it takes latency feedback.
+     *
+     * @param rowid the row the function targets, or <tt>null</tt> if the
+     * function spans rows.
+     * @param function the select function to execute.
+     *
+     * @return the result of the specified select function.
+     *
+     * @throws Exception can occur if the function fails.
+     */
+    public <T> T executeSelect(String rowid, CassandraSelectFunction<ThriftCassandraGateway, T> function) throws Exception {
+        return invoke(rowid == null ? select() : select(rowid), function);
+    }
+
+    /**
+     * Executes the specified select function against the gateway of a
+     * replica of the specified row, sharing the result with every
+     * identical read in flight if reads are de-duplicated.  A shared list
+     * is copied for every caller, so callers may modify it.
+     *
+     * @param key the key of the read, equal for reads that can share a
+     * result.
+     * @param rowid the row the function targets.
+     * @param function the select function to execute.
+     *
+     * @return the result of the specified select function.
+     *
+     * @throws Exception can occur if the function fails.
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> T executeShared(Object key, final String rowid,
+                                  final CassandraSelectFunction<ThriftCassandraGateway, T> function) throws Exception {
+        SingleFlight flight = singleFlight;
+        if (flight == null) {
+            return executeSelect(rowid, function);
+        }
+
+        T result = flight.execute(key, new Callable<T>() {
+            public T call() throws Exception {
+                return executeSelect(rowid, function);
+            }
+        });
+        return result instanceof List ? (T) new ArrayList<Object>((List<?>) result) : result;
+    }
+
+    /**
+     * Turns the de-duplication of concurrent identical reads on or off.
+     * With it on, a single column, column list or whole row read that is
+     * already in flight is joined rather than routed again, so a burst of
+     * reads of the same hot row costs a single round trip to a single
+     * replica.  A read that joins a call in flight may miss a write that
+     * completed after the call was sent.
+     *
+     * @param enabled <tt>true</tt> to de-duplicate reads.
+     */
+    public void setSingleFlight(boolean enabled) {
+        singleFlight = enabled ? new SingleFlight() : null;
+    }
+
+    /**
+     * Gets the de-duplication of concurrent identical reads, which counts
+     * the reads that were shared.
+     *
+     * @return the single flight of this gateway, or <tt>null</tt> if reads
+     * are not de-duplicated.
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Gets the binary view of this gateway, which routes byte buffer reads
+     * and writes to the replicas of their rows without encoding or
+     * decoding strings.
+     *
+     * @return the binary view of this gateway.
+     */
+    public BinaryCassandraGateway binary() {
+        return binary;
+    }
+
+    /**
+     * Converts the specified byte buffer into a string value, the way
+     * {@link ThriftCassandraGateway#stringValue(ByteBuffer)} does for the
+     * columns every node of this gateway reads.
+     *
+     * @param buffer the byte buffer to convert into a string value.
+     *
+     * @return a string representation of the specified byte buffer.
+     *
+     * @throws Exception can occur during the byte buffer conversion to string.
+     */
+    public String stringValue(ByteBuffer buffer) throws Exception {
+        return ThriftCassandraGateway.decode(buffer);
+    }
+
+    /**
+     * Executes the specified select function against the gateway of one of
+     * the specified replicas, which is how operations on a token range,
+     * rather than a single row, are routed.
+     *
+     * @param replicas the addresses of the replicas of the range the
+     * function targets.
+     * @param function the select function to execute.
+     *
+     * @return the result of the specified select function.
+     *
+     * @throws Exception can occur if the function fails.
+     */
+    public <T> T executeOnReplicas(List<String> replicas, CassandraSelectFunction<ThriftCassandraGateway, T> function) throws Exception {
+        return invoke(select(replicas, null), function);
+    }
+
+    /**
+     * Executes the specified select function against the gateway of a
+     * replica of the specified row.  If the replica has not answered
+     * within the delay of the {@link HedgePolicy} of this gateway, and the
+     * policy's budget allows it, the function is also executed against a
+     * second replica.  Whichever answers first wins, the other answer is
+     * discarded.  If the first answer is a failure, the other one is
+     * waited for.
+     *
+     * @param rowid the row the function targets.
+     * @param function the select function to execute, which must be safe
+     * to execute twice.
+     *
+     * @return the result of the specified select function.
+     *
+     * @throws Exception can occur if every copy of the function fails.
+     */
+    public <T> T executeHedged(String rowid, final CassandraSelectFunction<ThriftCassandraGateway, T> function) throws Exception {
+        final HedgePolicy policy = hedgePolicy;
+        final ThriftCassandraGateway primary = select(rowid);
+
+        CompletionService<T> copies = new ExecutorCompletionService<T>(hedger());
+        int sent = 0;
+
+        try {
+            copies.submit(hedge(primary, function, policy));
+            sent++;
+        } catch (RuntimeException exception) {
+            release(primary.getNode());
+            throw exception;
+        }
+        policy.earn();
+
+        // give the first replica until the hedge delay to answer before
+        // sending a copy to another replica.
+
+        Future<T> done = copies.poll(policy.getDelay(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+
+        if (done == null && policy.spend()) {
+            ThriftCassandraGateway secondary = null;
+            try {
+                secondary = select(rowid, primary.getNode());
+                copies.submit(hedge(secondary, function, policy));
+                sent++;
+
+            } catch (ConnectionException exception) {
+                logger.fine("No other replica to hedge with: " + exception.getMessage());
+
+            } catch (RuntimeException exception) {
+                if (secondary != null) release(secondary.getNode());
+                throw exception;
+            }
+        }
+
+        Exception failure = null;
+        for (int i = 0; i < sent; i++) {
+            if (done == null) done = copies.take();
+            try {
+                return done.get();
+
+            } catch (ExecutionException exception) {
+                failure = exception.getCause() instanceof Exception
+                        ? (Exception) exception.getCause() : exception;
+            }
+            done = null;
+        }
+        throw failure;
+    }
+
+    /**
+     * Executes the specified select function against the specified gateway,
+     * records the outcome of the operation and releases the gateway's node.
+     *
+     * @param gateway the gateway of the node picked for the operation.
+     * @param function the select function to execute.
+     *
+     * @return the result of the specified select function.
+     *
+     * @throws Exception can occur if the function fails.
+     */
+    private <T> T invoke(ThriftCassandraGateway gateway, CassandraSelectFunction<ThriftCassandraGateway, T> function) throws Exception {
+        long start = System.nanoTime();
+
+        try {
+            T result = function.execute(gateway);
+            completed(gateway.getNode(), System.nanoTime() - start, null);
+            return result;
+
+        } catch (Exception exception) {
+            completed(gateway.getNode(), System.nanoTime() - start, exception);
+            throw exception;
+
+        } finally {
+            release(gateway.getNode());
+        }
+    }
+
+    /**
+     * Creates a task that executes one copy of a hedged read against the
+     * specified gateway and records its latency with the specified policy.
+     *
+     * @param gateway the gateway of the node picked for the copy.
+     * @param function the select function to execute.
+     * @param policy the hedge policy the latency is recorded with.
+     *
+     * @return a task that executes the copy.
+     */
+    private <T> Callable<T> hedge(final ThriftCassandraGateway gateway,
+                                 final CassandraSelectFunction<ThriftCassandraGateway, T> function,
+                                 final HedgePolicy policy) {
+        return new Callable<T>() {
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                T result = invoke(gateway, function);
+                policy.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Gets the executor batch chunks and scan pages are executed on,
+     * creating it the first time it's needed.  Where virtual threads are
+     * not supported, its threads are bound by the connections the nodes
+     * known at that time can open.
+     *
+     * @return the executor of this gateway.
+     */
+    ExecutorService executor() {
+        lock.lock();
+        try {
+            if (executor == null) {
+                executor = VirtualThreads.newExecutor("cassandra-cluster", maxConnections());
+            }
+            return executor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the executor the copies of hedged reads are executed on,
+     * creating it the first time it's needed.  It is bound the same way as
+     * {@link #executor()}, but shares no queue with it.
+     *
+     * @return the hedge executor of this gateway.
+     */
+    private ExecutorService hedger() {
+        lock.lock();
+        try {
+            if (hedger == null) {
+                hedger = VirtualThreads.newExecutor("cassandra-hedge", maxConnections());
+            }
+            return hedger;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the max amount of connections the pools of the nodes this
+     * gateway currently knows can open together.
+     *
+     * @return the max amount of connections of this gateway.
+     */
+    int maxConnections() {
+        return poolConfig.getMaxConnections() * Math.max(1, gateways.size());
+    }
+
+    /**
+     * Gets the policy that decides when hedged reads send a second copy.
+     *
+     * @return the hedge policy of this gateway.
+     */
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Sets the policy that decides when hedged reads send a second copy.
+     *
+     * @param hedgePolicy the hedge policy of this gateway.
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = Check.forNull(hedgePolicy);
+    }
+
+    /**
+     * Records the outcome of an operation served by the specified node with
+     * the node's circuit breaker and the load balanced list.  Only failures
+     * that point at the node itself, as decided by {@link #isNodeFailure},
+     * count against it; any other failure still means the node responded.
+     *
+     * @param node the node that served the operation.
+     * @param latency the latency of the operation in nanoseconds.
+     * @param exception the exception the operation failed with, or
+     * <tt>null</tt> if it succeeded.
+     */
+    protected void completed(CassandraNode node, long latency, Exception exception) {
+        CircuitBreaker breaker = breakers.get(node);
+
+        if (exception != null && isNodeFailure(exception)) {
+            feedback(node, -1);
+            if (breaker != null && breaker.recordFailure()) {
+                eject(node);
+            }
+        } else {
+            feedback(node, latency);
+            if (breaker != null && breaker.recordSuccess()) {
+                logger.info("Node recovered: " + node);
+            }
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified exception means that the node
+     * an operation was sent to failed to serve it: the connection broke,
+     * timed out or could not be obtained, or the node timed out waiting
+     * for replicas.
+     *
+     * @param exception the exception an operation failed with.
+     *
+     * @return <tt>true</tt> if the exception counts against the node;
+     * otherwise <tt>false</tt>.
+     */
+    protected boolean isNodeFailure(Exception exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TTransportException
+                    || cause instanceof TimedOutException
+                    || cause instanceof ConnectionException
+                    || cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the circuit breaker of the specified node.  Override this
+     * method to tune how quickly nodes are ejected and re-admitted.
+     *
+     * @param node the node to create a circuit breaker for.
+     *
+     * @return a new circuit breaker.
+     */
+    protected CircuitBreaker createBreaker(CassandraNode node) {
+        return new CircuitBreaker();
+    }
+
+    /**
+     * Takes the specified node out of the load balanced list because its
+     * circuit breaker opened.
+     *
+     * @param node the node to eject.
+     */
+    private void eject(CassandraNode node) {
+        lock.lock();
+        try {
+            if (! gateways.containsKey(node)) return;
+            nodes.remove(node);
+            ejected.add(node);
+        } finally {
+            lock.unlock();
+        }
+        logger.warning("Ejected failing node: " + node);
+    }
+
+    /**
+     * Puts every ejected node whose circuit breaker is ready to be probed
+     * back in the load balanced list, so that probe operations can reach it.
+     */
+    private void readmit() {
+        if (ejected.isEmpty()) return;
+
+        lock.lock();
+        try {
+            for (Iterator<CassandraNode> iterator = ejected.iterator(); iterator.hasNext();) {
+                CassandraNode node = iterator.next();
+                CircuitBreaker breaker = breakers.get(node);
+                Integer weight = weights.get(node);
+
+                if (breaker == null || weight == null) {
+                    iterator.remove();
+
+                } else if (breaker.getState() != CircuitBreaker.State.OPEN || breaker.isBackoffElapsed()) {
+                    nodes.add(node, weight);
+                    iterator.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks the circuit breaker of the specified node to let an operation
+     * through.
+     *
+     * @param node the node picked to serve an operation.
+     *
+     * @return <tt>true</tt> if the operation may be sent to the node;
+     * otherwise <tt>false</tt>.
+     */
+    private boolean allow(CassandraNode node) {
+        CircuitBreaker breaker = breakers.get(node);
+        return breaker == null || breaker.allowRequest();
+    }
+
+    /**
+     * Reports the outcome of an operation served by the specified node to
+     * the load balanced list, if it takes latency feedback.
+     *
+     * @param node the node that served the operation.
+     * @param latency the latency of the operation in nanoseconds, or a
+     * negative value if the operation failed.
+     */
+    @SuppressWarnings("unchecked")
+    protected void feedback(CassandraNode node, long latency) {
+        if (! (nodes instanceof LatencyFeedback)) return;
+
+        LatencyFeedback<CassandraNode> feedback = (LatencyFeedback<CassandraNode>) nodes;
+
+        lock.lock();
+        try {
+            if (latency < 0) {
+                feedback.recordFailure(node);
+            } else {
+                feedback.record(node, latency, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the specified node as serving one more operation, if the load
+     * balanced list tracks operations in flight.
+     *
+     * @param node the node picked to serve an operation.
+     */
+    @SuppressWarnings("unchecked")
+    protected void acquire(CassandraNode node) {
+        if (! (nodes instanceof Acquirable)) return;
+
+        lock.lock();
+        try {
+            ((Acquirable<CassandraNode>) nodes).acquire(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks an operation served by the specified node as finished, if the
+     * load balanced list tracks operations in flight.  Every node picked
+     * through {@link #select()} or {@link #select(String)} must be released
+     * exactly once.
+     *
+     * @param node the node that served an operation.
+     */
+    @SuppressWarnings("unchecked")
+    protected void release(CassandraNode node) {
+        if (! (nodes instanceof Acquirable)) return;
+
+        lock.lock();
+        try {
+            ((Acquirable<CassandraNode>) nodes).release(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks the gateway of the next node in line to serve an operation.
+     * If the load balanced list tracks operations in flight, the node is
+     * acquired and must be passed to {@link #release(CassandraNode)} once
+     * the operation is finished.
+     *
+     * @return the gateway of the picked node.
+     *
+     * @throws ConnectionException if no node is available.
+     */
+    protected ThriftCassandraGateway select() throws ConnectionException {
+        return pick(null);
+    }
+
+    /**
+     * Picks the gateway of the next node in line, other than the specified
+     * node, as described by {@link #select()}.
+     *
+     * @param exclude the node not to pick, or <tt>null</tt>.
+     *
+     * @return the gateway of the picked node.
+     *
+     * @throws ConnectionException if no node is available.
+     */
+    @SuppressWarnings("unchecked")
+    private ThriftCassandraGateway pick(CassandraNode exclude) throws ConnectionException {
+        readmit();
+
+        int attempts;
+        lock.lock();
+        try {
+            attempts = nodes.size();
+        } finally {
+            lock.unlock();
+        }
+
+        // skip nodes whose circuit breaker rejects the operation, such
+        // as a recovering node that already has its probes in flight.
+
+        for (int i = 0; i < attempts; i++) {
+            CassandraNode node;
+
+            lock.lock();
+            try {
+                node = nodes instanceof Acquirable
+                        ? ((Acquirable<CassandraNode>) nodes).acquire()
+                        : nodes.get();
+            } finally {
+                lock.unlock();
+            }
+
+            if (node == null) break;
+
+            ThriftCassandraGateway gateway = gateways.get(node);
+            if (gateway != null && ! node.equals(exclude) && allow(node)) {
+                return gateway;
+            }
+            release(node);
+        }
+
+        throw new ConnectionException("No Cassandra node available.");
+    }
+
+    /**
+     * Picks the gateway of a replica of the specified row.  Replicas are
+     * taken in turns to spread the load on a row.  If the token ring is not
+     * known, or no replica is both known to this gateway and admitted by
+     * its circuit breaker, the next node in line is picked instead.  Either
+     * way the picked node is acquired as described by {@link #select()}.
+     *
+     * @param rowid the row the operation targets.
+     *
+     * @return the gateway of the picked node.
+     *
+     * @throws ConnectionException if no node is available.
+     */
+    protected ThriftCassandraGateway select(String rowid) throws ConnectionException {
+        return select(rowid, null);
+    }
+
+    /**
+     * Picks the gateway of a replica of the specified row other than the
+     * specified node, as described by {@link #select(String)}.
+     *
+     * @param rowid the row the operation targets.
+     * @param exclude the node not to pick, or <tt>null</tt>.
+     *
+     * @return the gateway of the picked node.
+     *
+     * @throws ConnectionException if no node is available.
+     */
+    protected ThriftCassandraGateway select(String rowid, CassandraNode exclude) throws ConnectionException {
+        TokenRing<?> current = ring;
+        List<String> replicas = current == null
+                ? Collections.<String>emptyList()
+                : current.getReplicas(ThriftUtil.toByteBuffer(rowid));
+
+        return select(replicas, exclude);
+    }
+
+    /**
+     * Picks the gateway of one of the specified replicas other than the
+     * specified node.  The replica tried first rotates, which spreads the
+     * operations of a range across its replicas.  If none of the replicas
+     * is available, the gateway of any node is picked.
+     *
+     * @param replicas the addresses of the replicas.
+     * @param exclude the node not to pick, or <tt>null</tt>.
+     *
+     * @return the gateway of the picked node.
+     *
+     * @throws ConnectionException if no node is available.
+     */
+    protected ThriftCassandraGateway select(List<String> replicas, CassandraNode exclude) throws ConnectionException {
+        int size = replicas.size();
+
+        if (size > 0) {
+            int offset = (replicaOffset.getAndIncrement() & Integer.MAX_VALUE) % size;
+            for (int i = 0; i < size; i++) {
+                ThriftCassandraGateway gateway = getGateway(replicas.get((offset + i) % size));
+                if (gateway != null && ! gateway.getNode().equals(exclude) && allow(gateway.getNode())) {
+                    acquire(gateway.getNode());
+                    return gateway;
+                }
+            }
+        }
+
+        return pick(exclude);
+    }
+
+    /**
+     * Gets the primary replica of the specified row in the specified ring.
+     *
+     * @param ring the token ring, or <tt>null</tt> if it is not known.
+     * @param rowid the row to look up.
+     *
+     * @return the address of the primary replica, or <tt>null</tt> if the
+     * ring is not known.
+     */
+    private String primaryReplica(TokenRing<?> ring, String rowid) {
+        if (ring == null) return null;
+        List<String> replicas = ring.getReplicas(ThriftUtil.toByteBuffer(rowid));
+        return replicas.isEmpty() ? null : replicas.get(0);
+    }
+
+    /**
+     * Gets the gateway to the node with the specified endpoint address.
+     *
+     * @param endpoint the address of a node, as reported by the token ring.
+     *
+     * @return the gateway to the node, or <tt>null</tt> if this gateway
+     * holds no pool for it.
+     */
+    protected ThriftCassandraGateway getGateway(String endpoint) {
+        CassandraNode node = endpoints.get(endpoint);
+        return node == null ? null : gateways.get(node);
+    }
+
+    /**
+     * Gets the addresses the specified node can be reported by, its host as
+     * it was specified and the address the host resolves to.
+     *
+     * @param node the node to get the addresses of.
+     *
+     * @return the addresses of the specified node.
+     */
+    private Set<String> addresses(CassandraNode node) {
+        Set<String> addresses = resolve(node);
+        if (addresses == null) {
+            addresses = new HashSet<String>();
+            addresses.add(node.getHost());
+        }
+        return addresses;
+    }
+
+    /**
+     * Gets the addresses the specified node can be reported by, as
+     * described by {@link #addresses(CassandraNode)}, unless its host
+     * cannot be resolved.
+     *
+     * @param node the node to get the addresses of.
+     *
+     * @return the addresses of the specified node, or <tt>null</tt> if its
+     * host cannot be resolved right now.
+     */
+    private Set<String> resolve(CassandraNode node) {
+        Set<String> addresses = new HashSet<String>();
+        addresses.add(node.getHost());
+        try {
+            addresses.add(InetAddress.getByName(node.getHost()).getHostAddress());
+
+        } catch (UnknownHostException exception) {
+            logger.log(Level.WARNING, "Failed to resolve node: " + node, exception);
+            return null;
+        }
+        return addresses;
+    }
+
+    /**
+     * Creates a node with the specified host and port that is associated
+     * with the keyspace of this gateway.
+     *
+     * @param host the host of the node.
+     * @param port the port of the node.
+     *
+     * @return a new node.
+     */
+    protected CassandraNode node(String host, int port) {
+        CassandraNode node = new CassandraNode();
+        node.setHost(host);
+        node.setPort(port);
+        node.setKeyspace(keyspace);
+        return node;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+
+/**
+ * A lazy iterator over the columns of a single row, read page by page
+ * with {@code get_slice}.  Every page after the first starts at the last
+ * column of the previous page, which is returned again by Cassandra and
+ * skipped.  Pages are read on demand, so only a single page of the row is
+ * held in memory, however wide the row is.
+ *
+ * <p>The columns are returned in comparator order, or in reverse order if
+ * the iterator is reversed.  In reverse order the start bound is the
+ * greatest column and the finish bound the least.
+ *
+ * <p>A failure to read a page is thrown as an {@link IllegalStateException}
+ * from {@link #hasNext()}.
+ *
+ * <p>This class is not safe for concurrent use.
+ *
+ * @author Abel Perez
+ */
+public abstract class ColumnIterator implements Iterator<Pair>
+{
+    /**
+     * The default amount of columns read per page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * The name of the last column to read, or an empty buffer to read
+     * until the end of the row.
+     */
+    private final ByteBuffer finish;
+
+    /**
+     * Indicates that the columns are read in reverse order.
+     */
+    private final boolean reversed;
+
+    /**
+     * The amount of columns read per page.
+     */
+    private final int pageSize;
+
+    /**
+     * The name of the first column of the next page, or <tt>null</tt> if
+     * there are no more pages.
+     */
+    private ByteBuffer start;
+
+    /**
+     * Indicates that the next page continues a previous page.
+     */
+    private boolean continued;
+
+    /**
+     * The remaining columns of the current page.
+     */
+    private Iterator<ColumnOrSuperColumn> columns = Collections.<ColumnOrSuperColumn>emptyList().iterator();
+
+    /**
+     * Constructs this iterator.  No page is read until the first column is
+     * asked for.
+     *
+     * @param start the name of the first column to read, or an empty string
+     * to read from the start of the row.
+     * @param finish the name of the last column to read, or an empty string
+     * to read until the end of the row.
+     * @param reversed <tt>true</tt> to read the columns in reverse order.
+     * @param pageSize the amount of columns read per page.
+     */
+    protected ColumnIterator(String start, String finish, boolean reversed, int pageSize) {
+        if (pageSize < 2) {
+            throw new IllegalArgumentException("invalid page size: " + pageSize);
+        }
+        this.start = ThriftUtil.toByteBuffer(start);
+        this.finish = ThriftUtil.toByteBuffer(finish);
+        this.reversed = reversed;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Reads a single page of the row.
+     *
+     * @param predicate the slice range of the page.
+     *
+     * @return the columns of the page.
+     *
+     * @throws Exception can occur if the page cannot be read.
+     */
+    protected abstract List<ColumnOrSuperColumn> fetch(SlicePredicate predicate) throws Exception;
+
+    /**
+     * Decodes the specified column name or value.
+     *
+     * @param buffer the bytes to decode.
+     *
+     * @return the decoded string.
+     *
+     * @throws Exception can occur if the bytes cannot be decoded.
+     */
+    protected abstract String stringValue(ByteBuffer buffer) throws Exception;
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+        try {
+            while (! columns.hasNext()) {
+                if (! nextPage()) return false;
+            }
+            return true;
+
+        } catch (RuntimeException exception) {
+            throw exception;
+
+        } catch (Exception exception) {
+            throw new IllegalStateException("Failed to read column page.", exception);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Pair next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ColumnOrSuperColumn item = columns.next();
+        try {
+            return new Pair(stringValue(item.getColumn().name), stringValue(item.getColumn().value));
+
+        } catch (Exception exception) {
+            throw new IllegalStateException("Failed to decode column.", exception);
+        }
+    }
+
+    /**
+     * Not supported, columns are read only.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads the next page of the row.
+     *
+     * @return <tt>true</tt> if a page was read; <tt>false</tt> if there are
+     * no more pages.
+     *
+     * @throws Exception can occur if the page cannot be read.
+     */
+    private boolean nextPage() throws Exception {
+        if (start == null) return false;
+
+        SliceRange range = new SliceRange();
+        range.start = start;
+        range.finish = finish;
+        range.reversed = reversed;
+        range.count = pageSize;
+
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.slice_range = range;
+
+        List<ColumnOrSuperColumn> page = fetch(predicate);
+
+        // a full page means there may be more columns, which start at
+        // the last column of this page.
+
+        ByteBuffer first = start;
+        boolean skip = continued;
+        if (page.size() >= pageSize) {
+            start = page.get(page.size() - 1).getColumn().name;
+            continued = true;
+        } else {
+            start = null;
+        }
+
+        if (skip && ! page.isEmpty() && first.equals(page.get(0).getColumn().name)) {
+            page = page.subList(1, page.size());
+        }
+        columns = page.iterator();
+        return true;
+    }
+}
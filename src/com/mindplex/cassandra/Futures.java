@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Waits for the calls the gateways fan out to their executors.
+ *
+ * @author Abel Perez
+ */
+final class Futures
+{
+    /**
+     * This class is not meant to be instantiated.
+     */
+    private Futures() {
+    }
+
+    /**
+     * Waits until every specified future has finished, even after one of
+     * them has failed, so that no call is left running unobserved.
+     *
+     * @param futures the futures to wait for.
+     *
+     * @return the result of every future, in the order of the futures.
+     *
+     * @throws Exception the first failure of the futures, once all of them
+     * have finished.
+     */
+    static <T> List<T> awaitAll(List<Future<T>> futures) throws Exception {
+        List<T> results = new ArrayList<T>(futures.size());
+        Exception failure = null;
+
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+
+            } catch (ExecutionException exception) {
+                results.add(null);
+                if (failure == null) failure = cause(exception);
+            }
+        }
+
+        if (failure != null) throw failure;
+        return results;
+    }
+
+    /**
+     * Gets the exception a call failed with.
+     *
+     * @param exception the exception thrown by the future of the call.
+     *
+     * @return the cause of the specified exception if it is an
+     * {@code Exception}; otherwise the specified exception itself.
+     */
+    static Exception cause(ExecutionException exception) {
+        return exception.getCause() instanceof Exception ? (Exception) exception.getCause() : exception;
+    }
+}
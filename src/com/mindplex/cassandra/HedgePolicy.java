@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mindplex.util.LatencyHistogram;
+
+/**
+ * Decides when a hedged read sends a second copy of itself to another
+ * replica.  The hedge is sent once the first copy has been outstanding
+ * longer than a percentile of the latencies observed for hedged reads,
+ * the 95th by default, so only the slowest reads are hedged.
+ *
+ * <p>Hedges are capped by a budget: every hedged read earns a fraction of
+ * a hedge, 10% by default, and every hedge sent spends a whole one.  The
+ * extra load hedging puts on the cluster therefore never exceeds that
+ * fraction, even when a whole replica is slow.
+ *
+ * @author Abel Perez
+ */
+public class HedgePolicy
+{
+    /**
+     * The default percentile of observed latency a hedge is sent after.
+     */
+    public static final double DEFAULT_PERCENTILE = 0.95;
+
+    /**
+     * The default fraction of a hedge every hedged read earns.
+     */
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+
+    /**
+     * The default time in milliseconds a hedge is sent after while too few
+     * latencies have been observed.
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 50;
+
+    /**
+     * The default shortest time in milliseconds a hedge is sent after.
+     */
+    public static final long DEFAULT_MIN_DELAY = 1;
+
+    /**
+     * The amount of latencies that must have been observed before the
+     * percentile is trusted.
+     */
+    private static final int MIN_SAMPLES = 100;
+
+    /**
+     * The scale budget tokens are kept at, so that fractions of a hedge can
+     * be counted in a long.
+     */
+    private static final long SCALE = 1000;
+
+    /**
+     * The most hedges that can be saved up in the budget.
+     */
+    private static final long MAX_BUDGET = 100 * SCALE;
+
+    /**
+     * The latencies observed for hedged reads.
+     */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /**
+     * The percentile of observed latency a hedge is sent after.
+     */
+    private final double percentile;
+
+    /**
+     * The fraction of a hedge every hedged read earns, scaled by {@link #SCALE}.
+     */
+    private final long deposit;
+
+    /**
+     * The time in nanoseconds a hedge is sent after while too few latencies
+     * have been observed.
+     */
+    private final long initialDelay;
+
+    /**
+     * The shortest time in nanoseconds a hedge is sent after.
+     */
+    private final long minDelay;
+
+    /**
+     * The hedges that can currently be sent, scaled by {@link #SCALE}.
+     */
+    private final AtomicLong budget = new AtomicLong(SCALE);
+
+    /**
+     * Constructs this policy with the default settings.
+     */
+    public HedgePolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_BUDGET_RATIO, DEFAULT_INITIAL_DELAY,
+                DEFAULT_MIN_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructs this policy with the specified settings.
+     *
+     * @param percentile the percentile of observed latency, between 0 and 1,
+     * a hedge is sent after.
+     * @param budgetRatio the max amount of hedges per hedged read, between
+     * 0 and 1.
+     * @param initialDelay the time a hedge is sent after while too few
+     * latencies have been observed.
+     * @param minDelay the shortest time a hedge is sent after.
+     * @param unit the time unit of the specified delays.
+     */
+    public HedgePolicy(double percentile, double budgetRatio, long initialDelay, long minDelay, TimeUnit unit) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1: " + percentile);
+        }
+        if (budgetRatio < 0 || budgetRatio > 1) {
+            throw new IllegalArgumentException("budget ratio must be between 0 and 1: " + budgetRatio);
+        }
+        if (initialDelay < 0 || minDelay < 0) {
+            throw new IllegalArgumentException("delays cannot be negative.");
+        }
+        this.percentile = percentile;
+        this.deposit = Math.round(budgetRatio * SCALE);
+        this.initialDelay = unit.toNanos(initialDelay);
+        this.minDelay = unit.toNanos(minDelay);
+    }
+
+    /**
+     * Gets the time to wait for the first copy of a hedged read before the
+     * hedge is sent.
+     *
+     * @param unit the time unit to return the delay in.
+     *
+     * @return the hedge delay.
+     */
+    public long getDelay(TimeUnit unit) {
+        long delay = initialDelay;
+        if (histogram.getCount() >= MIN_SAMPLES) {
+            delay = Math.max(minDelay, histogram.getPercentile(percentile, TimeUnit.NANOSECONDS));
+        }
+        return unit.convert(delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the latency of one copy of a hedged read.
+     *
+     * @param latency the latency of the read.
+     * @param unit the time unit of the specified latency.
+     */
+    public void record(long latency, TimeUnit unit) {
+        histogram.record(latency, unit);
+    }
+
+    /**
+     * Adds the share of a hedge earned by a hedged read to the budget.
+     */
+    public void earn() {
+        long current;
+        do {
+            current = budget.get();
+            if (current >= MAX_BUDGET) return;
+        } while (! budget.compareAndSet(current, Math.min(MAX_BUDGET, current + deposit)));
+    }
+
+    /**
+     * Spends a hedge from the budget, if one is available.
+     *
+     * @return <tt>true</tt> if a hedge may be sent; otherwise <tt>false</tt>.
+     */
+    public boolean spend() {
+        long current;
+        do {
+            current = budget.get();
+            if (current < SCALE) return false;
+        } while (! budget.compareAndSet(current, current - SCALE));
+        return true;
+    }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+
+/**
+ * A lazy iterator over the columns of every row in a key range, read page
+ * by page with {@code get_range_slices}.  Every page after the first starts
+ * at the last key of the previous page, which is returned again by
+ * Cassandra and skipped.  While the caller walks a page, the next page is
+ * already being fetched on an executor, so at most two pages are held in
+ * memory at any time.
+ *
+ * <p>Columns are returned as pairs that carry the key of their row, the
+ * same way {@link CassandraGateway#findByKeyRange} returns them.  Every
+ * page holds at most {@link #ROW_SLICE_SIZE} columns of each row; a row
+ * that fills its slice is continued with a {@link ColumnIterator} before
+ * the next row is returned, so wide rows are returned whole.  Rows
+ * without columns, such as deleted rows that have not been compacted yet,
+ * yield nothing.
+ *
+ * <p>A failure to fetch a page is thrown as an {@link IllegalStateException}
+ * from {@link #hasNext()}.  An iterator that is abandoned before it is
+ * exhausted should be closed, which cancels the prefetch of the next page.
+ *
+ * <p>This class is not safe for concurrent use.
+ *
+ * @author Abel Perez
+ */
+public abstract class KeyRangeIterator implements Iterator<Pair>, Closeable
+{
+    /**
+     * The default amount of rows fetched per page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * The max amount of columns of every row read with a page.
+     */
+    public static final int ROW_SLICE_SIZE = 100;
+
+    /**
+     * The executor pages are prefetched on.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The key range this iterator walks.
+     */
+    private final KeyRange range;
+
+    /**
+     * The amount of rows fetched per page.
+     */
+    private final int pageSize;
+
+    /**
+     * The fetch of the next page, or <tt>null</tt> if there are no more
+     * pages.
+     */
+    private Future<List<KeySlice>> pending;
+
+    /**
+     * The start key of the pending page if it continues a previous page,
+     * or <tt>null</tt> if the pending page is the first one.
+     */
+    private ByteBuffer continuation;
+
+    /**
+     * The remaining rows of the current page.
+     */
+    private Iterator<KeySlice> rows = Collections.<KeySlice>emptyList().iterator();
+
+    /**
+     * The remaining columns of the current row.
+     */
+    private Iterator<ColumnOrSuperColumn> columns = Collections.<ColumnOrSuperColumn>emptyList().iterator();
+
+    /**
+     * The key of the current row.
+     */
+    private String rowid;
+
+    /**
+     * The name of the last column of the current row read with a page.
+     */
+    private String last;
+
+    /**
+     * Indicates that the current row filled its slice, so it may hold more
+     * columns than the page returned.
+     */
+    private boolean wide;
+
+    /**
+     * The columns of the current row past its slice, or <tt>null</tt> if
+     * the row is not being continued.
+     */
+    private Iterator<Pair> rest;
+
+    /**
+     * The next pair to return, or <tt>null</tt> if it has not been read yet.
+     */
+    private Pair next;
+
+    /**
+     * Constructs this iterator and starts fetching the first page.
+     *
+     * @param executor the executor pages are prefetched on.
+     * @param range the key range to walk; its count is ignored.
+     * @param pageSize the amount of rows fetched per page.
+     */
+    protected KeyRangeIterator(ExecutorService executor, KeyRange range, int pageSize) {
+        if (pageSize < 2) {
+            throw new IllegalArgumentException("invalid page size: " + pageSize);
+        }
+        this.executor = executor;
+        this.range = range;
+        this.pageSize = pageSize;
+        this.pending = submit(range.start_key, false);
+    }
+
+    /**
+     * Fetches a single page of the key range.
+     *
+     * @param range the key range of the page, with its count set to the
+     * page size.
+     * @param predicate the slice of every row to read, with its count set
+     * to {@link #ROW_SLICE_SIZE}.
+     *
+     * @return the rows of the page.
+     *
+     * @throws Exception can occur if the page cannot be fetched.
+     */
+    protected abstract List<KeySlice> fetch(KeyRange range, SlicePredicate predicate) throws Exception;
+
+    /**
+     * Iterates the columns of the specified row from the specified column
+     * on, which continues a row that filled its slice.
+     *
+     * @param rowid the row to read.
+     * @param start the name of the first column to read.
+     *
+     * @return a lazy iterator over the remaining columns of the row.
+     */
+    protected abstract ColumnIterator scanColumns(String rowid, String start);
+
+    /**
+     * Decodes the specified column name or value.
+     *
+     * @param buffer the bytes to decode.
+     *
+     * @return the decoded string.
+     *
+     * @throws Exception can occur if the bytes cannot be decoded.
+     */
+    protected abstract String stringValue(ByteBuffer buffer) throws Exception;
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                if (columns.hasNext()) {
+                    ColumnOrSuperColumn item = columns.next();
+                    last = stringValue(item.getColumn().name);
+                    next = new Pair(last, stringValue(item.getColumn().value), rowid);
+
+                } else if (rest != null && rest.hasNext()) {
+
+                    // the continuation of a row starts at the last column
+                    // its slice returned, which is skipped.
+
+                    Pair pair = rest.next();
+                    if (! pair.getKey().equals(last)) {
+                        next = new Pair(pair.getKey(), pair.getVal(), rowid);
+                    }
+
+                } else if (wide) {
+                    wide = false;
+                    rest = scanColumns(rowid, last);
+
+                } else if (rows.hasNext()) {
+                    KeySlice slice = rows.next();
+                    rowid = new String(slice.getKey());
+                    columns = slice.getColumns().iterator();
+                    wide = slice.getColumns().size() >= ROW_SLICE_SIZE;
+                    rest = null;
+
+                } else if (! nextPage()) {
+                    return false;
+                }
+            }
+            return true;
+
+        } catch (RuntimeException exception) {
+            throw exception;
+
+        } catch (Exception exception) {
+            throw new IllegalStateException("Failed to read key range page.", exception);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Pair next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Pair result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Not supported, rows are read only.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops this iterator and cancels the prefetch of the next page.  A
+     * fetch that is already executing runs to completion and its page is
+     * discarded.
+     */
+    public void close() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        rows = Collections.<KeySlice>emptyList().iterator();
+        columns = Collections.<ColumnOrSuperColumn>emptyList().iterator();
+        wide = false;
+        rest = null;
+        next = null;
+    }
+
+    /**
+     * Waits for the pending page, makes it the current page and starts
+     * fetching the page after it.
+     *
+     * @return <tt>true</tt> if a page was read; <tt>false</tt> if there are
+     * no more pages.
+     *
+     * @throws Exception can occur if the page could not be fetched.
+     */
+    private boolean nextPage() throws Exception {
+        if (pending == null) return false;
+
+        List<KeySlice> page;
+        try {
+            page = pending.get();
+
+        } catch (ExecutionException exception) {
+            pending = null;
+            throw exception.getCause() instanceof Exception
+                    ? (Exception) exception.getCause() : exception;
+        }
+
+        ByteBuffer start = continuation;
+        pending = null;
+
+        // a full page means there may be more rows, so the next page is
+        // fetched while the caller walks this one.
+
+        if (page.size() >= pageSize) {
+            pending = submit(page.get(page.size() - 1).bufferForKey(), true);
+        }
+
+        // a continued page starts with the last row of the previous page.
+
+        if (start != null && ! page.isEmpty() && start.equals(page.get(0).bufferForKey())) {
+            page = page.subList(1, page.size());
+        }
+        rows = page.iterator();
+        return true;
+    }
+
+    /**
+     * Submits the fetch of the page starting at the specified key.
+     *
+     * @param startKey the first key of the page.
+     * @param continued <tt>true</tt> if the page continues a previous page.
+     *
+     * @return the fetch of the page.
+     */
+    private Future<List<KeySlice>> submit(ByteBuffer startKey, boolean continued) {
+        final KeyRange page = new KeyRange();
+        page.start_key = startKey;
+        page.end_key = range.end_key;
+        page.count = pageSize;
+
+        SliceRange slice = new SliceRange();
+        slice.start = ThriftUtil.toByteBuffer("");
+        slice.finish = ThriftUtil.toByteBuffer("");
+        slice.count = ROW_SLICE_SIZE;
+
+        final SlicePredicate predicate = new SlicePredicate();
+        predicate.slice_range = slice;
+
+        continuation = continued ? startKey : null;
+
+        return executor.submit(new Callable<List<KeySlice>>() {
+            public List<KeySlice> call() throws Exception {
+                return fetch(page, predicate);
+            }
+        });
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.apache.cassandra.thrift.TokenRange;
+
+import com.mindplex.cassandra.ring.Partitioner;
+import com.mindplex.cassandra.ring.TokenRing;
+import com.mindplex.util.Check;
+import com.mindplex.util.VirtualThreads;
+
+/**
+ * A scan of every row of a column family, split by token range and read
+ * concurrently.  The token ranges of the ring are divided further into
+ * splits of roughly the same amount of keys with {@code describe_splits},
+ * and a bounded amount of workers page through the splits, every page
+ * read from a replica of its split.
+ *
+ * <p>For example:
+ *
+ * <pre>
+ * {@code
+ * ParallelScan scan = new ParallelScan(gateway, "users");
+ * long rows = scan.run(new RowConsumer() {
+ *     public void accept(String rowid, List<Pair> columns) throws Exception {
+ *         index.add(rowid, columns);
+ *     }
+ * });
+ * }
+ * </pre>
+ *
+ * <p>Every page holds at most {@link KeyRangeIterator#ROW_SLICE_SIZE}
+ * columns of each row.  A row that fills its slice is read to its end
+ * with {@link ClusterCassandraGateway#scanColumns} before it is delivered,
+ * so every row is delivered whole and wide rows are held in memory whole.
+ *
+ * <p>Rows are delivered from concurrent workers in no particular order, so
+ * the consumer must be thread safe.  The first failure, whether reading a
+ * page or consuming a row, stops the scan once the pages being read have
+ * been delivered.
+ *
+ * @author Abel Perez
+ */
+public class ParallelScan
+{
+    /**
+     * Default logger used by this scan.
+     */
+    private static final Logger logger = Logger.getLogger(ParallelScan.class.getName());
+
+    /**
+     * The default amount of splits read concurrently.
+     */
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * The default amount of rows read per page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * The default amount of keys per split requested from
+     * {@code describe_splits}.
+     */
+    public static final int DEFAULT_KEYS_PER_SPLIT = 64 * 1024;
+
+    /**
+     * The gateway splits are read through.
+     */
+    private final ClusterCassandraGateway gateway;
+
+    /**
+     * The column family to scan.
+     */
+    private final String columnFamily;
+
+    /**
+     * The amount of splits read concurrently.
+     */
+    private final int parallelism;
+
+    /**
+     * The amount of rows read per page.
+     */
+    private final int pageSize;
+
+    /**
+     * The amount of keys per split requested from {@code describe_splits}.
+     */
+    private final int keysPerSplit;
+
+    /**
+     * Constructs this scan with the default parallelism, page size and
+     * split size.
+     *
+     * @param gateway the gateway splits are read through.
+     * @param columnFamily the column family to scan.
+     */
+    public ParallelScan(ClusterCassandraGateway gateway, String columnFamily) {
+        this(gateway, columnFamily, DEFAULT_PARALLELISM, DEFAULT_PAGE_SIZE, DEFAULT_KEYS_PER_SPLIT);
+    }
+
+    /**
+     * Constructs this scan.
+     *
+     * @param gateway the gateway splits are read through.
+     * @param columnFamily the column family to scan.
+     * @param parallelism the amount of splits read concurrently.
+     * @param pageSize the amount of rows read per page.
+     * @param keysPerSplit the amount of keys per split requested from
+     * {@code describe_splits}.
+     */
+    public ParallelScan(ClusterCassandraGateway gateway, String columnFamily,
+                        int parallelism, int pageSize, int keysPerSplit) {
+        if (parallelism <= 0 || pageSize <= 0 || keysPerSplit <= 0) {
+            throw new IllegalArgumentException("invalid scan [parallelism: " + parallelism
+                    + ", pageSize: " + pageSize + ", keysPerSplit: " + keysPerSplit + "]");
+        }
+        this.gateway = Check.forNull(gateway);
+        this.columnFamily = Check.forNull(columnFamily);
+        this.parallelism = parallelism;
+        this.pageSize = pageSize;
+        this.keysPerSplit = keysPerSplit;
+    }
+
+    /**
+     * Runs this scan, delivering every row of the column family to the
+     * specified consumer, and waits until it has finished.  The token ring
+     * is discovered first if the gateway does not know it yet.
+     *
+     * @param consumer receives every row, from concurrent threads.
+     *
+     * @return the amount of rows delivered.
+     *
+     * @throws Exception the first failure of the scan.
+     */
+    public long run(final RowConsumer consumer) throws Exception {
+        TokenRing<?> ring = gateway.getRing();
+        if (ring == null) {
+            gateway.discover();
+            ring = gateway.getRing();
+        }
+        if (ring == null) {
+            throw new IllegalStateException("Cannot scan " + columnFamily
+                    + " by token range, the partitioner of the cluster is not supported.");
+        }
+
+        final Partitioner<?> partitioner = ring.getPartitioner();
+        ExecutorService executor = VirtualThreads.newExecutor("cassandra-scan", parallelism);
+
+        try {
+            final Queue<TokenRange> splits = split(ring.getRanges(), executor);
+            logger.info("Scanning " + columnFamily + " [splits: " + splits.size()
+                    + ", parallelism: " + parallelism + "]");
+
+            // every worker takes the next split until none are left, which
+            // bounds the amount of concurrent range reads by the parallelism.
+
+            final AtomicLong rows = new AtomicLong();
+            List<Future<Void>> workers = new ArrayList<Future<Void>>(parallelism);
+
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        TokenRange split;
+                        while ((split = splits.poll()) != null) {
+                            try {
+                                rows.addAndGet(read(split, partitioner, consumer));
+
+                            } catch (Exception exception) {
+                                splits.clear();
+                                throw exception;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            Futures.awaitAll(workers);
+            return rows.get();
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Divides the specified token ranges into splits, asking a replica of
+     * every range for its split points concurrently.
+     *
+     * @param ranges the token ranges of the ring.
+     * @param executor the executor the split points are read on.
+     *
+     * @return the splits of every range.
+     *
+     * @throws Exception can occur if the split points of a range cannot be
+     * read.
+     */
+    private Queue<TokenRange> split(List<TokenRange> ranges, ExecutorService executor) throws Exception {
+        List<Future<List<TokenRange>>> futures = new ArrayList<Future<List<TokenRange>>>(ranges.size());
+
+        for (final TokenRange range : ranges) {
+            futures.add(executor.submit(new Callable<List<TokenRange>>() {
+                public List<TokenRange> call() throws Exception {
+                    List<String> tokens = gateway.executeOnReplicas(range.getEndpoints(), describeSplits(range));
+
+                    // consecutive split points bound a split, the first and
+                    // last of them being the bounds of the range itself.
+
+                    List<TokenRange> splits = new ArrayList<TokenRange>(Math.max(tokens.size() - 1, 1));
+                    for (int i = 1; i < tokens.size(); i++) {
+                        TokenRange split = new TokenRange();
+                        split.start_token = tokens.get(i - 1);
+                        split.end_token = tokens.get(i);
+                        split.endpoints = range.getEndpoints();
+                        splits.add(split);
+                    }
+                    if (splits.isEmpty()) splits.add(range);
+                    return splits;
+                }
+            }));
+        }
+
+        Queue<TokenRange> splits = new ConcurrentLinkedQueue<TokenRange>();
+        for (List<TokenRange> result : Futures.awaitAll(futures)) {
+            splits.addAll(result);
+        }
+        return splits;
+    }
+
+    /**
+     * Creates a function that reads the split points of the specified
+     * token range.
+     *
+     * @param range the token range to split.
+     *
+     * @return a function that reads the split points.
+     */
+    private CassandraSelectFunction<ThriftCassandraGateway, List<String>> describeSplits(final TokenRange range) {
+        return new CassandraSelectFunction<ThriftCassandraGateway, List<String>>() {
+            public List<String> execute(ThriftCassandraGateway node) throws Exception {
+                return node.executeSelect(new CassandraSelectFunction<Cassandra.Client, List<String>>() {
+                    public List<String> execute(Cassandra.Client client) throws Exception {
+                        return client.describe_splits(columnFamily,
+                                range.getStart_token(), range.getEnd_token(), keysPerSplit);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Reads every row of the specified split, page by page, and delivers
+     * the rows to the specified consumer.  Every page after the first
+     * starts after the token of the last row read, token ranges being
+     * exclusive of their start.
+     *
+     * @param split the split to read.
+     * @param partitioner the partitioner of the cluster.
+     * @param consumer receives every row.
+     *
+     * @return the amount of rows delivered.
+     *
+     * @throws Exception can occur if a page cannot be read or a row cannot
+     * be consumed.
+     */
+    private long read(TokenRange split, Partitioner<?> partitioner, RowConsumer consumer) throws Exception {
+        long delivered = 0;
+        String start = split.getStart_token();
+
+        SliceRange row = new SliceRange();
+        row.start = ThriftUtil.toByteBuffer("");
+        row.finish = ThriftUtil.toByteBuffer("");
+        row.count = KeyRangeIterator.ROW_SLICE_SIZE;
+
+        final SlicePredicate predicate = new SlicePredicate();
+        predicate.slice_range = row;
+
+        while (true) {
+            final KeyRange range = new KeyRange();
+            range.start_token = start;
+            range.end_token = split.getEnd_token();
+            range.count = pageSize;
+
+            List<KeySlice> page = gateway.executeOnReplicas(split.getEndpoints(),
+                    new CassandraSelectFunction<ThriftCassandraGateway, List<KeySlice>>() {
+                        public List<KeySlice> execute(ThriftCassandraGateway node) throws Exception {
+                            return node.executeSelect(node.rangeSlices(columnFamily, predicate, range));
+                        }
+                    });
+
+            for (KeySlice slice : page) {
+
+                // rows without columns are deleted rows that have
+                // not been compacted away yet.
+
+                if (slice.getColumns().isEmpty()) continue;
+
+                List<Pair> columns = new ArrayList<Pair>(slice.getColumns().size());
+                String rowid = new String(slice.getKey());
+                String last = null;
+                for (ColumnOrSuperColumn item : slice.getColumns()) {
+                    last = gateway.stringValue(item.getColumn().name);
+                    columns.add(new Pair(last, gateway.stringValue(item.getColumn().value), rowid));
+                }
+
+                // a row that filled its slice is continued from its last
+                // column, which the continuation returns again.
+
+                if (slice.getColumns().size() >= KeyRangeIterator.ROW_SLICE_SIZE) {
+                    ColumnIterator rest = gateway.scanColumns(columnFamily, rowid,
+                            last, "", false, ColumnIterator.DEFAULT_PAGE_SIZE);
+                    while (rest.hasNext()) {
+                        Pair pair = rest.next();
+                        if (! pair.getKey().equals(last)) {
+                            columns.add(new Pair(pair.getKey(), pair.getVal(), rowid));
+                        }
+                    }
+                }
+                consumer.accept(rowid, columns);
+                delivered++;
+            }
+
+            if (page.size() < pageSize) return delivered;
+            start = partitioner.getTokenString(page.get(page.size() - 1).bufferForKey());
+        }
+    }
+}
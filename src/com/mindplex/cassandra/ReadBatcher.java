@@ -0,0 +1,432 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mindplex.cassandra.connection.ConnectionException;
+import com.mindplex.util.NamedThreadFactory;
+import com.mindplex.util.VirtualThreads;
+
+/**
+ * A read buffer that batches concurrent single row reads of the same
+ * columns into {@code multiget_slice} calls.  Reads of the same column
+ * family and column names are buffered until the batch window closes,
+ * which happens when the oldest buffered read has waited the max delay,
+ * or when the batch holds the max amount of rows, whichever comes first.
+ * The batch is then read in a single call, and every reader gets the
+ * columns of its own row.
+ *
+ * <p>Batching trades a bounded delay for fewer round trips, which pays
+ * off under load, when many threads read different rows of the same
+ * column family at the same time.  Under light load every read waits the
+ * full delay, so the delay should be kept well below the latency of a
+ * round trip.
+ *
+ * @author Abel Perez
+ */
+public class ReadBatcher
+{
+    /**
+     * Default logger used by this batcher.
+     */
+    private static final Logger logger = Logger.getLogger(ReadBatcher.class.getName());
+
+    /**
+     * The default time in microseconds a read may wait for its batch.
+     */
+    public static final long DEFAULT_MAX_DELAY = 500;
+
+    /**
+     * The default max amount of rows in a batch.
+     */
+    public static final int DEFAULT_MAX_ROWS = 64;
+
+    /**
+     * Reads a batch of rows from Cassandra.
+     */
+    private final Reader reader;
+
+    /**
+     * The time in microseconds a read may wait for its batch.
+     */
+    private final long maxDelay;
+
+    /**
+     * The max amount of rows in a batch.
+     */
+    private final int maxRows;
+
+    /**
+     * The lock that guards the batches being filled.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The batch being filled for every column family and set of columns.
+     */
+    private final Map<List<Object>, Batch> batches = new HashMap<List<Object>, Batch>();
+
+    /**
+     * The scheduler that closes batch windows.
+     */
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cassandra-read-batcher"));
+
+    /**
+     * The executor batches are read on, so that neither the scheduler nor
+     * the reader that filled a batch is blocked by the round trip.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Indicates that this batcher has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructs this batcher in front of the specified gateway with the
+     * default batch window.
+     *
+     * @param gateway the gateway batches are read through.
+     */
+    public ReadBatcher(ThriftCassandraGateway gateway) {
+        this(gateway, DEFAULT_MAX_DELAY, DEFAULT_MAX_ROWS);
+    }
+
+    /**
+     * Constructs this batcher in front of the specified gateway.
+     *
+     * @param gateway the gateway batches are read through.
+     * @param maxDelay the time in microseconds a read may wait for its batch.
+     * @param maxRows the max amount of rows in a batch.
+     */
+    public ReadBatcher(final ThriftCassandraGateway gateway, long maxDelay, int maxRows) {
+        this(new Reader() {
+            public Map<String, List<Pair>> read(String columnFamily, List<String> rowids, List<String> keys) throws Exception {
+                return gateway.executeSelect(gateway.multiget(columnFamily, rowids, keys));
+            }
+        }, maxDelay, maxRows, gateway.getMaxConnections());
+    }
+
+    /**
+     * Constructs this batcher in front of the specified cluster gateway.
+     * A batch spans rows, so it is split by replica as described by
+     * {@link ClusterCassandraGateway#findColumns(String, List, List, int)}.
+     *
+     * @param gateway the gateway batches are read through.
+     * @param maxDelay the time in microseconds a read may wait for its batch.
+     * @param maxRows the max amount of rows in a batch.
+     */
+    public ReadBatcher(final ClusterCassandraGateway gateway, long maxDelay, final int maxRows) {
+        this(new Reader() {
+            public Map<String, List<Pair>> read(String columnFamily, List<String> rowids, List<String> keys) throws Exception {
+                return gateway.findColumns(columnFamily, rowids, keys, maxRows);
+            }
+        }, maxDelay, maxRows, gateway.maxConnections());
+    }
+
+    /**
+     * Constructs this batcher with the specified reader and settings.
+     *
+     * @param reader reads batches of rows from Cassandra.
+     * @param maxDelay the time in microseconds a read may wait for its batch.
+     * @param maxRows the max amount of rows in a batch.
+     * @param maxThreads the max amount of batches read at once where
+     * virtual threads are not supported.
+     */
+    private ReadBatcher(Reader reader, long maxDelay, int maxRows, int maxThreads) {
+        if (maxDelay < 0 || maxRows <= 0) {
+            throw new IllegalArgumentException("invalid batch window [maxDelay: "
+                    + maxDelay + ", maxRows: " + maxRows + "]");
+        }
+        this.reader = reader;
+        this.maxDelay = maxDelay;
+        this.maxRows = maxRows;
+        this.executor = VirtualThreads.newExecutor("cassandra-read-batch", maxThreads);
+    }
+
+    /**
+     * Finds the specified columns of a row, like
+     * {@link CassandraGateway#findColumns(String, String, List)}, reading
+     * them in a batch with other rows.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     * @param keys the names of the columns to read.
+     *
+     * @return the columns found.
+     *
+     * @throws Exception can occur if the batch cannot be read.
+     */
+    public List<Pair> findColumns(String columnFamily, String rowid, List<String> keys) throws Exception {
+        try {
+            return findColumnsAsync(columnFamily, rowid, keys).get();
+
+        } catch (ExecutionException exception) {
+            throw exception.getCause() instanceof Exception
+                    ? (Exception) exception.getCause() : exception;
+        }
+    }
+
+    /**
+     * Buffers a read of the specified columns of a row.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     * @param keys the names of the columns to read.
+     *
+     * @return a future that holds the columns found once the batch has
+     * been read.
+     */
+    public CompletableFuture<List<Pair>> findColumnsAsync(final String columnFamily, String rowid, List<String> keys) {
+        CompletableFuture<List<Pair>> future = new CompletableFuture<List<Pair>>();
+        final List<Object> key = Arrays.<Object>asList(columnFamily, new ArrayList<String>(keys));
+        Batch full = null;
+
+        lock.lock();
+        try {
+            if (closed) {
+                future.completeExceptionally(new ConnectionException("Read batcher closed."));
+                return future;
+            }
+
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(columnFamily, new ArrayList<String>(keys));
+                batches.put(key, batch);
+            }
+            batch.add(rowid, future);
+
+            if (batch.rows.size() >= maxRows) {
+                full = swap(key);
+
+            } else if (batch.scheduledFlush == null) {
+                batch.scheduledFlush = scheduler.schedule(new Runnable() {
+                    public void run() {
+                        flush(key);
+                    }
+                }, maxDelay, TimeUnit.MICROSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (full != null) send(full);
+        return future;
+    }
+
+    /**
+     * Reads every batch being filled right away, without waiting for
+     * their windows to close.
+     */
+    public void flush() {
+        List<Batch> full = new ArrayList<Batch>();
+
+        lock.lock();
+        try {
+            for (List<Object> key : new ArrayList<List<Object>>(batches.keySet())) {
+                full.add(swap(key));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Batch batch : full) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Closes this batcher.  The batches being filled are read, reads
+     * buffered afterwards fail.
+     */
+    public void close() {
+        closed = true;
+        flush();
+        scheduler.shutdownNow();
+        executor.shutdown();
+    }
+
+    /**
+     * Reads the batch being filled for the specified key, once its window
+     * has closed.
+     *
+     * @param key the column family and columns of the batch.
+     */
+    private void flush(List<Object> key) {
+        Batch full;
+
+        lock.lock();
+        try {
+            full = swap(key);
+        } finally {
+            lock.unlock();
+        }
+
+        if (full != null) send(full);
+    }
+
+    /**
+     * Takes the batch being filled for the specified key.  The caller must
+     * hold the lock of this batcher.
+     *
+     * @param key the column family and columns of the batch.
+     *
+     * @return the batch that was being filled, or <tt>null</tt> if there
+     * is none.
+     */
+    private Batch swap(List<Object> key) {
+        Batch full = batches.remove(key);
+        if (full != null && full.scheduledFlush != null) {
+            full.scheduledFlush.cancel(false);
+        }
+        return full;
+    }
+
+    /**
+     * Reads the specified batch in a single call and completes the future
+     * of every read in it.
+     *
+     * @param full the batch to read.
+     */
+    private void send(final Batch full) {
+        Runnable task = new Runnable() {
+            public void run() {
+                Map<String, List<Pair>> rows = null;
+                Exception failure = null;
+
+                try {
+                    rows = reader.read(full.columnFamily, new ArrayList<String>(full.rows.keySet()), full.keys);
+
+                } catch (Exception exception) {
+                    logger.log(Level.SEVERE, "Failed to read batch of " + full.rows.size() + " rows.", exception);
+                    failure = exception;
+                }
+
+                for (Map.Entry<String, List<CompletableFuture<List<Pair>>>> row : full.rows.entrySet()) {
+                    List<Pair> columns = failure == null ? rows.get(row.getKey()) : null;
+                    if (columns == null) columns = Collections.emptyList();
+
+                    // every reader of a row gets a list of its own.
+
+                    for (CompletableFuture<List<Pair>> future : row.getValue()) {
+                        if (failure == null) future.complete(new ArrayList<Pair>(columns));
+                        else future.completeExceptionally(failure);
+                    }
+                }
+            }
+        };
+
+        try {
+            executor.execute(task);
+
+        } catch (RuntimeException exception) {
+            // the executor is shut down, read the last batch inline.
+            task.run();
+        }
+    }
+
+    /**
+     * Reads a batch of rows from Cassandra through a gateway.
+     */
+    private interface Reader
+    {
+        /**
+         * Reads the specified columns of the specified rows.
+         *
+         * @param columnFamily the column family to read from.
+         * @param rowids the rows to read.
+         * @param keys the names of the columns to read.
+         *
+         * @return the columns found, keyed by row.
+         *
+         * @throws Exception can occur if the rows cannot be read.
+         */
+        Map<String, List<Pair>> read(String columnFamily, List<String> rowids, List<String> keys) throws Exception;
+    }
+
+    /**
+     * The rows buffered for a single batch read and the futures of the
+     * reads they came from.
+     */
+    private static class Batch
+    {
+        /**
+         * The column family of this batch.
+         */
+        final String columnFamily;
+
+        /**
+         * The names of the columns read of every row.
+         */
+        final List<String> keys;
+
+        /**
+         * The future of every read of every row, in the order the rows
+         * were first asked for.
+         */
+        final Map<String, List<CompletableFuture<List<Pair>>>> rows =
+                new LinkedHashMap<String, List<CompletableFuture<List<Pair>>>>();
+
+        /**
+         * The scheduled read of this batch, or <tt>null</tt> if it has not
+         * been scheduled.
+         */
+        ScheduledFuture<?> scheduledFlush;
+
+        /**
+         * Constructs an empty batch.
+         *
+         * @param columnFamily the column family of this batch.
+         * @param keys the names of the columns read of every row.
+         */
+        Batch(String columnFamily, List<String> keys) {
+            this.columnFamily = columnFamily;
+            this.keys = keys;
+        }
+
+        /**
+         * Adds a read of the specified row to this batch.
+         *
+         * @param rowid the row to read.
+         * @param future the future of the read.
+         */
+        void add(String rowid, CompletableFuture<List<Pair>> future) {
+            List<CompletableFuture<List<Pair>>> futures = rows.get(rowid);
+            if (futures == null) {
+                futures = new ArrayList<CompletableFuture<List<Pair>>>(1);
+                rows.put(rowid, futures);
+            }
+            futures.add(future);
+        }
+    }
+}
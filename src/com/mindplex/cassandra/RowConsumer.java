@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.util.List;
+
+/**
+ * Receives the rows read by a scan.
+ *
+ * @author Abel Perez
+ */
+public interface RowConsumer
+{
+    /**
+     * Receives a single row.
+     *
+     * @param rowid the key of the row.
+     * @param columns the columns of the row.
+     *
+     * @throws Exception stops the scan the row was read by.
+     */
+    public void accept(String rowid, List<Pair> columns) throws Exception;
+}
@@ -0,0 +1,931 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TNonblockingSocket;
+
+import com.mindplex.cassandra.connection.ConnectionException;
+
+/**
+ * An {@link AsyncCassandraGateway} driven by Thrift's non-blocking client.
+ * Connections are multiplexed over a small pool of selector threads, one
+ * per {@link TAsyncClientManager}, instead of occupying a thread each.
+ *
+ * <p>A non-blocking Thrift client carries one call at a time, so this
+ * gateway keeps up to a max amount of connections.  An operation is sent
+ * on an idle connection if there is one, and otherwise waits in a FIFO
+ * queue until a connection finishes its call or a new one is opened.
+ * Connections broken by a transport error are discarded.
+ *
+ * <p>Futures are completed on a selector thread.  Work attached to them
+ * that may block should be attached with the {@code ...Async} methods of
+ * {@link CompletableFuture}, or it will stall every connection served by
+ * that selector.
+ *
+ * @author Abel Perez
+ */
+public class ThriftAsyncCassandraGateway implements AsyncCassandraGateway
+{
+    /**
+     * Default logger used by this gateway.
+     */
+    private static final Logger logger =
+            Logger.getLogger(ThriftAsyncCassandraGateway.class.getName());
+
+    /**
+     * The default max amount of connections this gateway keeps open.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    /**
+     * The default amount of selector threads this gateway runs.
+     */
+    public static final int DEFAULT_SELECTORS = 2;
+
+    /**
+     * The Cassandra node this gateway communicates with.
+     */
+    private final CassandraNode node;
+
+    /**
+     * The consistency level this gateway enforces when reading/writing
+     * to Cassandra.
+     */
+    private final ConsistencyLevel consistencyLevel;
+
+    /**
+     * The max amount of connections this gateway keeps open.
+     */
+    private final int maxConnections;
+
+    /**
+     * The time in milliseconds a call may take before it fails, or zero
+     * to wait forever.
+     */
+    private final int timeout;
+
+    /**
+     * The client managers whose selector threads drive the connections of
+     * this gateway.
+     */
+    private final TAsyncClientManager[] managers;
+
+    /**
+     * Picks the client manager of the next connection.
+     */
+    private final AtomicInteger nextManager = new AtomicInteger();
+
+    /**
+     * The lock that guards the idle and busy connections, pending calls and
+     * size.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The connections that have no call in flight.
+     */
+    private final Deque<AsyncConnection> idle = new ArrayDeque<AsyncConnection>();
+
+    /**
+     * The calls waiting for a connection, oldest first.
+     */
+    private final Deque<Call<?, ?>> pending = new ArrayDeque<Call<?, ?>>();
+
+    /**
+     * The connections that have a call in flight or are being opened,
+     * which are closed along with this gateway.
+     */
+    private final Set<AsyncConnection> busy = new HashSet<AsyncConnection>();
+
+    /**
+     * The amount of connections open or being opened.
+     */
+    private int size;
+
+    /**
+     * Indicates that this gateway has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructs this gateway with the specified host, port, keyspace and
+     * consistency level, and the default amount of connections and
+     * selector threads.
+     *
+     * @param host the Cassandra host.
+     * @param port the Cassandra port.
+     * @param keyspace the keyspace this gateway is associated with.
+     * @param consistencyLevel the consistency level this gateway should
+     * enforce when reading/writing to Cassandra.
+     *
+     * @throws ConnectionException if the selector threads cannot be started.
+     */
+    public ThriftAsyncCassandraGateway(String host, int port, String keyspace, ConsistencyLevel consistencyLevel) {
+        this(host, port, keyspace, consistencyLevel, DEFAULT_MAX_CONNECTIONS, DEFAULT_SELECTORS, 0);
+    }
+
+    /**
+     * Constructs this gateway with the specified settings.
+     *
+     * @param host the Cassandra host.
+     * @param port the Cassandra port.
+     * @param keyspace the keyspace this gateway is associated with.
+     * @param consistencyLevel the consistency level this gateway should
+     * enforce when reading/writing to Cassandra.
+     * @param maxConnections the max amount of connections, and therefore
+     * of calls in flight.
+     * @param selectors the amount of selector threads.
+     * @param timeout the time in milliseconds a call may take before it
+     * fails, or zero to wait forever.
+     *
+     * @throws ConnectionException if the selector threads cannot be started.
+     */
+    public ThriftAsyncCassandraGateway(String host, int port, String keyspace, ConsistencyLevel consistencyLevel,
+                                       int maxConnections, int selectors, int timeout) {
+
+        // verify that specified parameters are valid.
+
+        if (host == null || "".equals(host)) {
+            throw new IllegalArgumentException("host cannot be empty.");
+        }
+        if (keyspace == null || "".equals(keyspace)) {
+            throw new IllegalArgumentException("keyspace cannot be empty.");
+        }
+        if (consistencyLevel == null) {
+            throw new IllegalArgumentException("ConsistencyLevel cannot be null.");
+        }
+        if (maxConnections <= 0 || selectors <= 0 || timeout < 0) {
+            throw new IllegalArgumentException("invalid settings [maxConnections: "
+                    + maxConnections + ", selectors: " + selectors + ", timeout: " + timeout + "]");
+        }
+
+        CassandraNode node = new CassandraNode();
+        node.setHost(host);
+        node.setPort(port);
+        node.setKeyspace(keyspace);
+
+        this.node = node;
+        this.consistencyLevel = consistencyLevel;
+        this.maxConnections = maxConnections;
+        this.timeout = timeout;
+
+        // start the selector threads, each client manager runs one.
+
+        this.managers = new TAsyncClientManager[selectors];
+        try {
+            for (int i = 0; i < selectors; i++) {
+                managers[i] = new TAsyncClientManager();
+            }
+        } catch (IOException exception) {
+            stopManagers();
+            throw new ConnectionException("Failed to start selector threads.", exception);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<Void> delete(final String columnFamily, final String rowid, final String column) {
+
+        return execute(new Call<Void, Cassandra.AsyncClient.remove_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+                client.remove(ThriftUtil.toByteBuffer(rowid),
+                        ThriftUtil.getColumnPath(columnFamily, column),
+                        System.currentTimeMillis(),
+                        consistencyLevel, this);
+            }
+
+            Void result(Cassandra.AsyncClient.remove_call call) throws Exception {
+                call.getResult();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<Void> deleteAll(final String columnFamily, final String rowid, final Pair[] pairs) {
+
+        return execute(new Call<Void, Cassandra.AsyncClient.batch_mutate_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+
+                // setup a deletion with a slice predicate that contains
+                // the keys of the columns we want to delete.
+
+                SlicePredicate predicate = new SlicePredicate();
+                List<ByteBuffer> columns = new ArrayList<ByteBuffer>();
+                for (Pair pair : pairs) {
+                    columns.add(ThriftUtil.toByteBuffer(pair.getKey()));
+                }
+                predicate.column_names = columns;
+
+                Deletion deletion = new Deletion();
+                deletion.predicate = predicate;
+
+                Mutation mutation = new Mutation();
+                mutation.deletion = deletion;
+                List<Mutation> mutations = new ArrayList<Mutation>();
+                mutations.add(mutation);
+
+                client.batch_mutate(mutationMap(columnFamily, rowid, mutations), consistencyLevel, this);
+            }
+
+            Void result(Cassandra.AsyncClient.batch_mutate_call call) throws Exception {
+                call.getResult();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<String> findColumn(final String columnFamily, final String rowid, final String key) {
+
+        return execute(new Call<String, Cassandra.AsyncClient.get_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+                client.get(ThriftUtil.toByteBuffer(rowid),
+                        ThriftUtil.getColumnPath(columnFamily, key),
+                        consistencyLevel, this);
+            }
+
+            String result(Cassandra.AsyncClient.get_call call) throws Exception {
+                return ThriftCassandraGateway.decode(call.getResult().column.value);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<List<Pair>> findColumnsSliceRange(final String columnFamily, final String rowid) {
+
+        return execute(new Call<List<Pair>, Cassandra.AsyncClient.get_slice_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+                client.get_slice(ThriftUtil.toByteBuffer(rowid),
+                        new ColumnParent(columnFamily),
+                        ThriftUtil.all(),
+                        consistencyLevel, this);
+            }
+
+            List<Pair> result(Cassandra.AsyncClient.get_slice_call call) throws Exception {
+                return pairs(call.getResult());
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<List<Pair>> findByKeyRange(final String columnFamily, final List<String> keys) {
+
+        return execute(new Call<List<Pair>, Cassandra.AsyncClient.get_range_slices_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+                client.get_range_slices(new ColumnParent(columnFamily),
+                        ThriftUtil.all(),
+                        ThriftUtil.allKeyRange(),
+                        consistencyLevel, this);
+            }
+
+            List<Pair> result(Cassandra.AsyncClient.get_range_slices_call call) throws Exception {
+                List<Pair> searchResults = new ArrayList<Pair>();
+                for (KeySlice slice : call.getResult()) {
+                    for (ColumnOrSuperColumn item : slice.getColumns()) {
+                        searchResults.add(new Pair(
+                                ThriftCassandraGateway.decode(item.getColumn().name),
+                                ThriftCassandraGateway.decode(item.getColumn().value),
+                                new String(slice.getKey())));
+                    }
+                }
+                return searchResults;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<List<Pair>> findColumns(final String columnFamily, final String rowid, final List<String> keys) {
+
+        return execute(new Call<List<Pair>, Cassandra.AsyncClient.get_slice_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+
+                // setup a slice predicate that contains the list
+                // of column keys we want to search for.
+
+                List<ByteBuffer> columns = new ArrayList<ByteBuffer>();
+                for (String key : keys) {
+                    columns.add(ThriftUtil.toByteBuffer(key));
+                }
+                SlicePredicate slicePredicate = new SlicePredicate();
+                slicePredicate.column_names = columns;
+
+                client.get_slice(ThriftUtil.toByteBuffer(rowid),
+                        new ColumnParent(columnFamily),
+                        slicePredicate,
+                        consistencyLevel, this);
+            }
+
+            List<Pair> result(Cassandra.AsyncClient.get_slice_call call) throws Exception {
+                return pairs(call.getResult());
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<Void> insert(final String columnFamily, final String rowid, final Pair pair) {
+
+        return execute(new Call<Void, Cassandra.AsyncClient.insert_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+                client.insert(ThriftUtil.toByteBuffer(rowid),
+                        new ColumnParent(columnFamily),
+                        ThriftUtil.makeColumn(pair),
+                        consistencyLevel, this);
+            }
+
+            Void result(Cassandra.AsyncClient.insert_call call) throws Exception {
+                call.getResult();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<Void> insertAll(final String columnFamily, final String rowid, final Pair[] pairs) {
+
+        return execute(new Call<Void, Cassandra.AsyncClient.batch_mutate_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+                List<Mutation> mutations = new ArrayList<Mutation>();
+                for (Pair pair : pairs) {
+                    mutations.add(ThriftUtil.getMutation(ThriftUtil.makeColumn(pair)));
+                }
+                client.batch_mutate(mutationMap(columnFamily, rowid, mutations), consistencyLevel, this);
+            }
+
+            Void result(Cassandra.AsyncClient.batch_mutate_call call) throws Exception {
+                call.getResult();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompletableFuture<Void> insertAllSuperColumns(final String columnFamily, final String superColumnName,
+                                                         final String rowid, final Pair[] pairs) {
+
+        return execute(new Call<Void, Cassandra.AsyncClient.batch_mutate_call>()
+        {
+            void send(Cassandra.AsyncClient client) throws Exception {
+
+                // setup a super column that holds a column for every
+                // given pair.
+
+                SuperColumn superColumn = new SuperColumn();
+                superColumn.setName(superColumnName.getBytes());
+
+                List<Column> columns = new ArrayList<Column>();
+                for (Pair pair : pairs) {
+                    columns.add(ThriftUtil.makeColumn(pair));
+                }
+                superColumn.setColumns(columns);
+
+                List<Mutation> mutations = new ArrayList<Mutation>();
+                mutations.add(ThriftUtil.getMutation(superColumn));
+
+                client.batch_mutate(mutationMap(columnFamily, rowid, mutations), consistencyLevel, this);
+            }
+
+            Void result(Cassandra.AsyncClient.batch_mutate_call call) throws Exception {
+                call.getResult();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Gets the amount of connections this gateway has open or is opening.
+     *
+     * @return the amount of connections of this gateway.
+     */
+    public int getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of operations waiting for a connection.
+     *
+     * @return the amount of pending operations.
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the Cassandra node this gateway communicates with.
+     *
+     * @return the Cassandra node of this gateway.
+     */
+    public CassandraNode getNode() {
+        return node;
+    }
+
+    /**
+     * Gets the consistency level this gateway enforces when reading/writing
+     * to Cassandra.
+     *
+     * @return the consistency level of this gateway.
+     */
+    public ConsistencyLevel getConsistencyLevel() {
+        return consistencyLevel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        List<AsyncConnection> connections;
+        List<AsyncConnection> inFlight;
+        List<Call<?, ?>> calls;
+
+        lock.lock();
+        try {
+            closed = true;
+            connections = new ArrayList<AsyncConnection>(idle);
+            inFlight = new ArrayList<AsyncConnection>(busy);
+            calls = new ArrayList<Call<?, ?>>(pending);
+
+            // the selector threads are about to stop, so calls in flight
+            // would never hear back.  They fail now, and a late response
+            // is ignored.
+
+            for (AsyncConnection connection : inFlight) {
+                if (connection.call != null) calls.add(connection.call);
+            }
+            size -= idle.size();
+            idle.clear();
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        ConnectionException exception = new ConnectionException("Gateway closed.");
+        for (Call<?, ?> call : calls) {
+            call.future.completeExceptionally(exception);
+        }
+        for (AsyncConnection connection : inFlight) {
+            connection.transport.close();
+        }
+        for (AsyncConnection connection : connections) {
+            connection.transport.close();
+        }
+        stopManagers();
+    }
+
+    /**
+     * Sends the specified call on an idle connection, or queues it until
+     * a connection is available, opening a new connection if this gateway
+     * has not reached its max amount of connections.
+     *
+     * @param call the call to send.
+     *
+     * @return the future of the specified call.
+     */
+    private <T> CompletableFuture<T> execute(Call<T, ?> call) {
+        if (closed) {
+            call.future.completeExceptionally(new ConnectionException("Gateway closed."));
+            return call.future;
+        }
+
+        AsyncConnection connection;
+        boolean grow = false;
+
+        lock.lock();
+        try {
+            // close() may have run since the check above, and must not
+            // be left with a call it never saw.
+
+            if (closed) {
+                call.future.completeExceptionally(new ConnectionException("Gateway closed."));
+                return call.future;
+            }
+
+            connection = idle.pollFirst();
+            if (connection != null) {
+                connection.call = call;
+                busy.add(connection);
+            } else {
+                pending.offerLast(call);
+                if (size < maxConnections) {
+                    size++;
+                    grow = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (connection != null) {
+            dispatch(connection, call);
+        } else if (grow) {
+            open();
+        }
+        return call.future;
+    }
+
+    /**
+     * Sends the specified call on the specified connection.
+     *
+     * @param connection the connection to send the call on.
+     * @param call the call to send.
+     */
+    private void dispatch(AsyncConnection connection, Call<?, ?> call) {
+        call.connection = connection;
+        try {
+            call.send(connection.client);
+
+        } catch (Exception exception) {
+            // the call never made it onto the wire; the state of the
+            // client is unknown, so the connection is discarded.
+
+            connection.broken = true;
+            call.future.completeExceptionally(exception);
+            checkin(connection);
+        }
+    }
+
+    /**
+     * Opens a new connection, which sets its keyspace and then serves the
+     * oldest pending call.  The caller must have counted the connection in
+     * the size of this gateway.
+     */
+    private void open() {
+        if (closed) {
+            failed(null, new ConnectionException("Gateway closed."));
+            return;
+        }
+
+        final AsyncConnection connection;
+        try {
+            TNonblockingSocket transport = new TNonblockingSocket(node.getHost(), node.getPort(), timeout);
+            TAsyncClientManager manager =
+                    managers[(nextManager.getAndIncrement() & Integer.MAX_VALUE) % managers.length];
+            connection = new AsyncConnection(transport, manager);
+
+        } catch (IOException exception) {
+            failed(null, exception);
+            return;
+        }
+
+        // the socket timeout does not apply to calls driven by a selector,
+        // the client has to time out every call itself.
+
+        if (timeout > 0) {
+            connection.client.setTimeout(timeout);
+        }
+
+        // register the connection so that close() can reach it, unless
+        // this gateway was closed while it was being created.
+
+        boolean registered;
+
+        lock.lock();
+        try {
+            registered = ! closed;
+            if (registered) busy.add(connection);
+        } finally {
+            lock.unlock();
+        }
+
+        if (! registered) {
+            failed(connection, new ConnectionException("Gateway closed."));
+            return;
+        }
+
+        try {
+            connection.client.set_keyspace(node.getKeyspace(),
+                    new AsyncMethodCallback<Cassandra.AsyncClient.set_keyspace_call>() {
+                        public void onComplete(Cassandra.AsyncClient.set_keyspace_call call) {
+                            try {
+                                call.getResult();
+                            } catch (Exception exception) {
+                                failed(connection, exception);
+                                return;
+                            }
+                            checkin(connection);
+                        }
+
+                        public void onError(Exception exception) {
+                            failed(connection, exception);
+                        }
+                    });
+
+        } catch (TException exception) {
+            failed(connection, exception);
+        }
+    }
+
+    /**
+     * Gives up on a connection that could not be opened.  If no other
+     * connection is left to serve the pending calls, they all fail with
+     * the specified exception.
+     *
+     * @param connection the connection that could not be opened, or
+     * <tt>null</tt> if it was never created.
+     * @param exception the reason the connection could not be opened.
+     */
+    private void failed(AsyncConnection connection, Exception exception) {
+        if (! closed) {
+            logger.log(Level.WARNING, "Failed to open connection. [" + node + "]", exception);
+        }
+
+        List<Call<?, ?>> calls = new ArrayList<Call<?, ?>>();
+
+        lock.lock();
+        try {
+            size--;
+            if (connection != null) busy.remove(connection);
+            if (size == 0) {
+                calls.addAll(pending);
+                pending.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (connection != null) {
+            connection.transport.close();
+        }
+
+        ConnectionException failure = new ConnectionException(
+                "Failed to open connection. [" + node + "]", exception);
+        for (Call<?, ?> call : calls) {
+            call.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Returns the specified connection once its call has finished.  The
+     * connection is handed to the oldest pending call, or added to the idle
+     * connections.  A broken connection is discarded, and replaced if calls
+     * are still pending.
+     *
+     * @param connection the connection whose call has finished.
+     */
+    private void checkin(AsyncConnection connection) {
+        Call<?, ?> next = null;
+        boolean replace = false;
+
+        lock.lock();
+        try {
+            connection.call = null;
+            if (connection.broken || connection.client.hasError() || closed) {
+                busy.remove(connection);
+                size--;
+                replace = ! closed && ! pending.isEmpty();
+                if (replace) size++;
+
+            } else {
+                next = pending.pollFirst();
+                if (next != null) {
+                    connection.call = next;
+                } else {
+                    busy.remove(connection);
+                    idle.offerFirst(connection);
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (next != null) {
+            dispatch(connection, next);
+            return;
+        }
+
+        connection.transport.close();
+        if (replace) open();
+    }
+
+    /**
+     * Stops the selector thread of every client manager.
+     */
+    private void stopManagers() {
+        for (TAsyncClientManager manager : managers) {
+            if (manager != null) manager.stop();
+        }
+    }
+
+    /**
+     * Builds the mutation map of a batch mutation of a single row.
+     *
+     * @param columnFamily the column family the mutations apply to.
+     * @param rowid the row the mutations apply to.
+     * @param mutations the mutations to apply.
+     *
+     * @return the mutation map.
+     */
+    private static Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap(String columnFamily, String rowid,
+                                                                           List<Mutation> mutations) {
+        Map<String, List<Mutation>> inner = new HashMap<String, List<Mutation>>();
+        inner.put(columnFamily, mutations);
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> outer =
+                new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        outer.put(ThriftUtil.toByteBuffer(rowid), inner);
+        return outer;
+    }
+
+    /**
+     * Translates the columns of a slice into key value pairs.
+     *
+     * @param columns the columns of a slice.
+     *
+     * @return the key value pair of every column.
+     *
+     * @throws CharacterCodingException if a column is not valid UTF-8.
+     */
+    private static List<Pair> pairs(List<ColumnOrSuperColumn> columns) throws CharacterCodingException {
+        List<Pair> searchResults = new ArrayList<Pair>();
+        for (ColumnOrSuperColumn item : columns) {
+            searchResults.add(new Pair(
+                    ThriftCassandraGateway.decode(item.getColumn().name),
+                    ThriftCassandraGateway.decode(item.getColumn().value)));
+        }
+        return searchResults;
+    }
+
+    /**
+     * A non-blocking connection: a client and the transport it runs on.
+     */
+    private static class AsyncConnection
+    {
+        /**
+         * The transport of this connection.
+         */
+        final TNonblockingSocket transport;
+
+        /**
+         * The client that sends calls over the transport.
+         */
+        final Cassandra.AsyncClient client;
+
+        /**
+         * Indicates that this connection must not be used again.
+         */
+        boolean broken;
+
+        /**
+         * The call in flight on this connection, or <tt>null</tt> if none,
+         * guarded by the lock of the gateway.
+         */
+        Call<?, ?> call;
+
+        /**
+         * Constructs this connection over the specified transport, driven
+         * by the specified client manager.
+         *
+         * @param transport the transport of this connection.
+         * @param manager the client manager whose selector drives this
+         * connection.
+         */
+        AsyncConnection(TNonblockingSocket transport, TAsyncClientManager manager) {
+            this.transport = transport;
+            this.client = new Cassandra.AsyncClient(new TBinaryProtocol.Factory(), manager, transport);
+        }
+    }
+
+    /**
+     * An operation sent on a non-blocking connection.  The call is its own
+     * Thrift callback: once Thrift has received the response, the call's
+     * connection is returned to this gateway and its future is completed.
+     */
+    private abstract class Call<T, C> implements AsyncMethodCallback<C>
+    {
+        /**
+         * The future completed with the result of this call.
+         */
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        /**
+         * The connection this call was sent on.
+         */
+        AsyncConnection connection;
+
+        /**
+         * Sends this call on the specified client, with this call as the
+         * callback.
+         *
+         * @param client the client to send this call on.
+         *
+         * @throws Exception can occur if the call cannot be sent.
+         */
+        abstract void send(Cassandra.AsyncClient client) throws Exception;
+
+        /**
+         * Extracts the result of this call from the response.
+         *
+         * @param call the Thrift call holding the response.
+         *
+         * @return the result of this call.
+         *
+         * @throws Exception the error Cassandra answered with.
+         */
+        abstract T result(C call) throws Exception;
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onComplete(C call) {
+            T result;
+            try {
+                result = result(call);
+
+            } catch (Exception exception) {
+                checkin(connection);
+                future.completeExceptionally(exception);
+                return;
+            }
+
+            checkin(connection);
+            future.complete(result);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void onError(Exception exception) {
+            connection.broken = true;
+            checkin(connection);
+            future.completeExceptionally(exception);
+        }
+    }
+}
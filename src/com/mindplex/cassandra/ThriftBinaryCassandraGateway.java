@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+
+import com.mindplex.util.Check;
+
+/**
+ * The binary view of a {@link ThriftCassandraGateway}, which shares its
+ * connection pool and consistency level.  Keys, names and values are
+ * handed to Thrift as duplicates of the specified buffers, so the caller's
+ * buffer positions are not altered and nothing is copied.
+ *
+ * @author Abel Perez
+ */
+public class ThriftBinaryCassandraGateway implements BinaryCassandraGateway
+{
+    /**
+     * The gateway whose connection pool this gateway executes on.
+     */
+    private final ThriftCassandraGateway gateway;
+
+    /**
+     * Constructs the binary view of the specified gateway.
+     *
+     * @param gateway the gateway whose connection pool this gateway
+     * executes on.
+     */
+    public ThriftBinaryCassandraGateway(ThriftCassandraGateway gateway) {
+        this.gateway = Check.forNull(gateway);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(final String columnFamily, final ByteBuffer rowid, final ByteBuffer name) throws Exception {
+        gateway.execute(new CassandraFunction<Cassandra.Client>() {
+            public void execute(Cassandra.Client client) throws Exception {
+                ColumnPath path = new ColumnPath(columnFamily);
+                path.setColumn(name.duplicate());
+
+                client.remove(rowid.duplicate(), path, System.currentTimeMillis(), gateway.getConsistencyLevel());
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deleteAll(String columnFamily, ByteBuffer rowid, List<ByteBuffer> names) throws Exception {
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.column_names = duplicates(names);
+
+        Deletion deletion = new Deletion();
+        deletion.predicate = predicate;
+        deletion.timestamp = System.currentTimeMillis();
+
+        Mutation mutation = new Mutation();
+        mutation.deletion = deletion;
+
+        List<Mutation> mutations = new ArrayList<Mutation>(1);
+        mutations.add(mutation);
+        batchMutate(columnFamily, rowid, mutations);
+    }
+
+    /**
+     * {@inheritDoc}  The column is read with {@code get_slice} on its name,
+     * so a missing column costs no {@code NotFoundException}.
+     */
+    public ByteBuffer findColumn(String columnFamily, ByteBuffer rowid, ByteBuffer name) throws Exception {
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>(1);
+        names.add(name);
+
+        List<Column> columns = findColumns(columnFamily, rowid, names);
+        return columns.isEmpty() ? null : columns.get(0).value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Column> findColumns(String columnFamily, ByteBuffer rowid, List<ByteBuffer> names) throws Exception {
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.column_names = duplicates(names);
+        return slice(columnFamily, rowid, predicate);
+    }
+
+    /**
+     * {@inheritDoc}  The rows are split into groups of at most
+     * {@link ThriftCassandraGateway#DEFAULT_ROWS_PER_CALL} rows, and every
+     * group is read by a single {@code multiget_slice} on its own pooled
+     * connection, all groups concurrently.
+     */
+    public Map<ByteBuffer, List<Column>> findColumns(String columnFamily, List<ByteBuffer> rowids,
+                                                     List<ByteBuffer> names) throws Exception {
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.column_names = duplicates(names);
+
+        List<List<ByteBuffer>> groups = ThriftCassandraGateway.partition(
+                new ArrayList<ByteBuffer>(new LinkedHashSet<ByteBuffer>(rowids)),
+                ThriftCassandraGateway.DEFAULT_ROWS_PER_CALL);
+
+        List<CassandraSelectFunction<Cassandra.Client, Map<ByteBuffer, List<ColumnOrSuperColumn>>>> functions =
+                new ArrayList<CassandraSelectFunction<Cassandra.Client, Map<ByteBuffer, List<ColumnOrSuperColumn>>>>(groups.size());
+        for (List<ByteBuffer> group : groups) {
+            functions.add(multiget(columnFamily, group, predicate));
+        }
+
+        // a single group is read on the calling thread, which spares
+        // the hand off to the executor.
+
+        List<Map<ByteBuffer, List<ColumnOrSuperColumn>>> responses = functions.size() == 1
+                ? Collections.singletonList(gateway.executeSelect(functions.get(0)))
+                : gateway.executeAllSelect(functions);
+
+        Map<ByteBuffer, List<ColumnOrSuperColumn>> response = new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>();
+        for (Map<ByteBuffer, List<ColumnOrSuperColumn>> part : responses) {
+            response.putAll(part);
+        }
+
+        Map<ByteBuffer, List<Column>> rows = new LinkedHashMap<ByteBuffer, List<Column>>();
+        for (ByteBuffer rowid : rowids) {
+            List<ColumnOrSuperColumn> found = response.get(rowid);
+            rows.put(rowid, found == null ? new ArrayList<Column>(0) : columns(found));
+        }
+        return rows;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Column> findColumnsSliceRange(String columnFamily, ByteBuffer rowid, ByteBuffer start,
+                                              ByteBuffer finish, boolean reversed, int count) throws Exception {
+        SliceRange range = new SliceRange();
+        range.start = start.duplicate();
+        range.finish = finish.duplicate();
+        range.reversed = reversed;
+        range.count = count;
+
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.slice_range = range;
+        return slice(columnFamily, rowid, predicate);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insert(final String columnFamily, final ByteBuffer rowid, ByteBuffer name, ByteBuffer value) throws Exception {
+        final Column column = column(name, value);
+
+        gateway.execute(new CassandraFunction<Cassandra.Client>() {
+            public void execute(Cassandra.Client client) throws Exception {
+                client.insert(rowid.duplicate(), new ColumnParent(columnFamily), column, gateway.getConsistencyLevel());
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void insertAll(String columnFamily, ByteBuffer rowid, Map<ByteBuffer, ByteBuffer> columns) throws Exception {
+        List<Mutation> mutations = new ArrayList<Mutation>(columns.size());
+        for (Map.Entry<ByteBuffer, ByteBuffer> entry : columns.entrySet()) {
+            mutations.add(ThriftUtil.getMutation(column(entry.getKey(), entry.getValue())));
+        }
+        batchMutate(columnFamily, rowid, mutations);
+    }
+
+    /**
+     * Reads a slice of a row.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the key of the row to read from.
+     * @param predicate the columns to read.
+     *
+     * @return the columns found.
+     *
+     * @throws Exception can occur if the columns cannot be read.
+     */
+    private List<Column> slice(final String columnFamily, final ByteBuffer rowid,
+                               final SlicePredicate predicate) throws Exception {
+        return columns(gateway.executeSelect(new CassandraSelectFunction<Cassandra.Client, List<ColumnOrSuperColumn>>() {
+            public List<ColumnOrSuperColumn> execute(Cassandra.Client client) throws Exception {
+                return client.get_slice(rowid.duplicate(), new ColumnParent(columnFamily),
+                        predicate, gateway.getConsistencyLevel());
+            }
+        }));
+    }
+
+    /**
+     * Creates a function that reads the specified columns of the specified
+     * rows with a single {@code multiget_slice}.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowids the keys of the rows to read.
+     * @param predicate the columns to read.
+     *
+     * @return a function that reads the columns, keyed by row.
+     */
+    private CassandraSelectFunction<Cassandra.Client, Map<ByteBuffer, List<ColumnOrSuperColumn>>> multiget(
+            final String columnFamily, final List<ByteBuffer> rowids, final SlicePredicate predicate) {
+        return new CassandraSelectFunction<Cassandra.Client, Map<ByteBuffer, List<ColumnOrSuperColumn>>>() {
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(Cassandra.Client client) throws Exception {
+                return client.multiget_slice(duplicates(rowids), new ColumnParent(columnFamily),
+                        predicate, gateway.getConsistencyLevel());
+            }
+        };
+    }
+
+    /**
+     * Applies the specified mutations to a row in a single batch mutation.
+     *
+     * @param columnFamily the column family the mutations apply to.
+     * @param rowid the key of the row the mutations apply to.
+     * @param mutations the mutations to apply.
+     *
+     * @throws Exception can occur if the mutations cannot be applied.
+     */
+    private void batchMutate(String columnFamily, ByteBuffer rowid, List<Mutation> mutations) throws Exception {
+        Map<String, List<Mutation>> row = new HashMap<String, List<Mutation>>();
+        row.put(columnFamily, mutations);
+
+        final Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap =
+                new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        mutationMap.put(rowid.duplicate(), row);
+
+        gateway.execute(new CassandraFunction<Cassandra.Client>() {
+            public void execute(Cassandra.Client client) throws Exception {
+                client.batch_mutate(mutationMap, gateway.getConsistencyLevel());
+            }
+        });
+    }
+
+    /**
+     * Creates a column with the specified name and value, timestamped now.
+     *
+     * @param name the name of the column.
+     * @param value the value of the column.
+     *
+     * @return the column.
+     */
+    private static Column column(ByteBuffer name, ByteBuffer value) {
+        return new Column()
+                .setName(name.duplicate())
+                .setValue(value.duplicate())
+                .setTimestamp(System.currentTimeMillis());
+    }
+
+    /**
+     * Unwraps the columns of the specified Thrift response.
+     *
+     * @param response the columns read.
+     *
+     * @return the columns of the response.
+     */
+    private static List<Column> columns(List<ColumnOrSuperColumn> response) {
+        List<Column> columns = new ArrayList<Column>(response.size());
+        for (ColumnOrSuperColumn item : response) {
+            columns.add(item.getColumn());
+        }
+        return columns;
+    }
+
+    /**
+     * Duplicates the specified buffers, so that Thrift does not alter
+     * their positions.
+     *
+     * @param buffers the buffers to duplicate.
+     *
+     * @return the duplicated buffers.
+     */
+    private static List<ByteBuffer> duplicates(List<ByteBuffer> buffers) {
+        List<ByteBuffer> duplicates = new ArrayList<ByteBuffer>(buffers.size());
+        for (ByteBuffer buffer : buffers) {
+            duplicates.add(buffer.duplicate());
+        }
+        return duplicates;
+    }
+}
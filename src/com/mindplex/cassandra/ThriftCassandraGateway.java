@@ -16,19 +16,32 @@ package com.mindplex.cassandra;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.cassandra.thrift.*;
+import org.apache.thrift.transport.TTransportException;
 
 import com.mindplex.cassandra.connection.*;
+import com.mindplex.cassandra.ring.TokenRing;
+import com.mindplex.util.SingleFlight;
+import com.mindplex.util.VirtualThreads;
 
 /**
  *
@@ -54,6 +67,11 @@ public class ThriftCassandraGateway implements CassandraGateway
      */
     private static final int DEFAULT_PORT = 9160;
 
+    /**
+     * The default max amount of rows read by a single {@code multiget_slice}.
+     */
+    public static final int DEFAULT_ROWS_PER_CALL = 64;
+
     /**
      * 
      */
@@ -84,6 +102,42 @@ public class ThriftCassandraGateway implements CassandraGateway
      */
     private ConnectionPool<ThriftConnection> pool;
 
+    /**
+     * The max amount of connections the pool of this gateway opens, which
+     * bounds the threads of the default executor where virtual threads
+     * are not supported.
+     */
+    private int maxConnections;
+
+    /**
+     * The progress of the connection pool of this gateway opening its
+     * initial connections.
+     */
+    private WarmUp warmUp;
+
+    /**
+     * The executor functions submitted to this gateway run on, created
+     * the first time a function is submitted unless one is set.
+     */
+    private final AtomicReference<ExecutorService> executor = new AtomicReference<ExecutorService>();
+
+    /**
+     * Indicates that {@link #executor} was created by this gateway, and
+     * is therefore shut down when this gateway is closed.
+     */
+    private volatile boolean ownsExecutor;
+
+    /**
+     * Collapses concurrent identical reads into one, or <tt>null</tt> if
+     * reads are not de-duplicated.
+     */
+    private volatile SingleFlight singleFlight;
+
+    /**
+     * The binary view of this gateway.
+     */
+    private final BinaryCassandraGateway binary = new ThriftBinaryCassandraGateway(this);
+
     /**
      * Constructs this gateway with the specified keyspace.  This gateway
      * defaults to connecting to a Cassandra node running on localhost
@@ -118,6 +172,23 @@ public class ThriftCassandraGateway implements CassandraGateway
      * enforce when reading/writing to Cassandra. 
      */    
     public ThriftCassandraGateway(String host, int port, String keyspace, ConsistencyLevel consistencyLevel) {
+        this(host, port, keyspace, consistencyLevel, new PoolConfig());
+    }
+
+    /**
+     * Constructs this gateway with the specified host, port, keyspace and
+     * connection pool settings.
+     *
+     * @param host the Cassandra host this gateway points to.
+     * @param port the Cassandra port this gateway points to.
+     * @param keyspace the keyspace this gateway is associated with.
+     * @param consistencyLevel the consistency level this gateway should
+     * enforce when reading/writing to Cassandra.
+     * @param poolConfig the sizing and timing settings of the connection
+     * pool this gateway uses.
+     */
+    public ThriftCassandraGateway(String host, int port, String keyspace,
+                                  ConsistencyLevel consistencyLevel, PoolConfig poolConfig) {
 
         // verify that specified parameters are valid.
 
@@ -133,6 +204,9 @@ public class ThriftCassandraGateway implements CassandraGateway
         if (consistencyLevel == null) {
             throw new IllegalArgumentException("ConsistencyLevel cannot be null.");
         }
+        if (poolConfig == null) {
+            throw new IllegalArgumentException("PoolConfig cannot be null.");
+        }
 
         this.keyspace = keyspace;
         this.consistencyLevel = consistencyLevel;
@@ -149,8 +223,56 @@ public class ThriftCassandraGateway implements CassandraGateway
         // setup the connection factory and connection pool this gateway
         // uses to communicate with Cassandra.
         
-        ConnectionFactory<ThriftConnection> factory = new ThriftConnectionFactory();
-        pool = new CassandraConnectionPool<ThriftConnection>(node, factory);
+        ConnectionFactory<ThriftConnection> factory =
+                new ThriftConnectionFactory(poolConfig.getSocketTimeout());
+        CassandraConnectionPool<ThriftConnection> pool =
+                new CassandraConnectionPool<ThriftConnection>(node, poolConfig, factory);
+        this.pool = pool;
+        this.maxConnections = poolConfig.getMaxConnections();
+        this.warmUp = pool.getWarmUp();
+    }
+
+    /**
+     * Constructs this gateway with the specified Cassandra node and an
+     * existing pool of connections to that node.  This allows alternative
+     * {@code ConnectionPool} implementations, such as
+     * {@link ThreadAffinityConnectionPool}, to back this gateway.
+     *
+     * @param node the Cassandra node this gateway points to.
+     * @param consistencyLevel the consistency level this gateway should
+     * enforce when reading/writing to Cassandra.
+     * @param pool the pool of connections to the specified node.
+     */
+    public ThriftCassandraGateway(CassandraNode node, ConsistencyLevel consistencyLevel,
+                                  ConnectionPool<ThriftConnection> pool) {
+
+        if (node == null) {
+            throw new IllegalArgumentException("CassandraNode cannot be null.");
+        }
+        if (node.getKeyspace() == null || "".equals(node.getKeyspace())) {
+            throw new IllegalArgumentException("keyspace cannot be empty.");
+        }
+        if (consistencyLevel == null) {
+            throw new IllegalArgumentException("ConsistencyLevel cannot be null.");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("ConnectionPool cannot be null.");
+        }
+
+        this.keyspace = node.getKeyspace();
+        this.consistencyLevel = consistencyLevel;
+        this.node = node;
+        this.pool = pool;
+        this.maxConnections = PoolConfig.DEFAULT_MAX_CONNECTIONS;
+
+        if (pool instanceof CassandraConnectionPool) {
+            this.warmUp = ((CassandraConnectionPool<?>) pool).getWarmUp();
+            this.maxConnections = ((CassandraConnectionPool<?>) pool).getConfig().getMaxConnections();
+        }
+        if (pool instanceof ThreadAffinityConnectionPool) {
+            this.warmUp = ((ThreadAffinityConnectionPool<?>) pool).getWarmUp();
+            this.maxConnections = ((ThreadAffinityConnectionPool<?>) pool).getConfig().getMaxConnections();
+        }
     }
 
     /**
@@ -236,7 +358,8 @@ public class ThriftCassandraGateway implements CassandraGateway
      */
     public String findColumn(final String columnFamily, final String rowid, final String key) throws Exception {
 
-        return executeSelect(new CassandraSelectFunction<Cassandra.Client, String>()
+        return executeShared(Arrays.asList("findColumn", columnFamily, rowid, key),
+                new CassandraSelectFunction<Cassandra.Client, String>()
         {
             public String execute(Cassandra.Client client) throws Exception {
 
@@ -255,55 +378,150 @@ public class ThriftCassandraGateway implements CassandraGateway
         });
     }
 
+    /**
+     * {@inheritDoc}  The column is read with {@code get_slice} on its name,
+     * which answers a missing column with an empty slice rather than a
+     * {@code NotFoundException}.
+     */
+    public String findColumnIfExists(String columnFamily, String rowid, String key) throws Exception {
+        SlicePredicate slicePredicate = new SlicePredicate();
+        slicePredicate.column_names = new ArrayList<ByteBuffer>(1);
+        slicePredicate.column_names.add(toByteBuffer(key));
+
+        List<ColumnOrSuperColumn> response = executeShared(Arrays.asList("findColumnIfExists", columnFamily, rowid, key),
+                slice(columnFamily, rowid, slicePredicate));
+        return response.isEmpty() ? null : stringValue(response.get(0).getColumn().value);
+    }
+
     /**
      * {@inheritDoc}
-     */    
+     *
+     * @deprecated reads at most the first 100 columns of the row.  Use
+     * {@link #scanColumns(String, String)} to walk every column of a row
+     * lazily.
+     */
+    @Deprecated
     public List<Pair> findColumnsSliceRange(final String columnFamily, final String rowid) throws Exception {
 
-        return executeSelect(new CassandraSelectFunction<Cassandra.Client, List<Pair>>()
-        {
-            public List<Pair> execute(Cassandra.Client client) throws Exception {
+        Callable<List<Pair>> read = new Callable<List<Pair>>() {
+            public List<Pair> call() throws Exception {
+                return executeSelect(new CassandraSelectFunction<Cassandra.Client, List<Pair>>()
+                {
+                    public List<Pair> execute(Cassandra.Client client) throws Exception {
+
+                        // setup a slice predicate with a slice range that
+                        // basically sets the start and end range to all.
+                        // In other words our column search range is the entire
+                        // specified row.
+
+                        SlicePredicate slicePredicate = ThriftUtil.all();
+
+                        // before invoking the get_slice operation
+                        // we convert the rowid to a byte buffer,
+                        // setup a column parent with the specified
+                        // column family, set our slice predicate
+                        // and specify the consistency level.
+
+                        List<ColumnOrSuperColumn> response = client.get_slice(
+                                toByteBuffer(rowid),
+                                new ColumnParent(columnFamily),
+                                slicePredicate,
+                                getConsistencyLevel());
+
+                        // now we translate the response we received
+                        // from the get_slice operation into a list of
+                        // key value pairs.  Our final result is a list
+                        // of Pair objects that represent the key value
+                        // pairs of each column found in our search.
+
+                        List<Pair> searchResults = new ArrayList<Pair>();
+                        for (ColumnOrSuperColumn item : response) {
+                            searchResults.add(new Pair(stringValue(item.column.name),
+                                    stringValue(item.column.value)));
+                        }
 
-                // setup a slice predicate with a slice range that
-                // basically sets the start and end range to all.
-                // In other words our column search range is the entire
-                // specified row.
-                
-                SlicePredicate slicePredicate = ThriftUtil.all();
+                        // return the final search results.
+                        return searchResults;
+                    }
+                });
+            }
+        };
 
-                // before invoking the get_slice operation
-                // we convert the rowid to a byte buffer,
-                // setup a column parent with the specified
-                // column family, set our slice predicate
-                // and specify the consistency level.
-                
-                List<ColumnOrSuperColumn> response = client.get_slice(
-                        toByteBuffer(rowid),
-                        new ColumnParent(columnFamily),
-                        slicePredicate,
-                        getConsistencyLevel());
+        SingleFlight flight = singleFlight;
+        return flight == null ? read.call()
+                : new ArrayList<Pair>(flight.execute(Arrays.asList("findColumnsSliceRange", columnFamily, rowid), read));
+    }
 
-                // now we translate the response we received
-                // from the get_slice operation into a list of
-                // key value pairs.  Our final result is a list
-                // of Pair objects that represent the key value
-                // pairs of each column found in our search.
-                
-                List<Pair> searchResults = new ArrayList<Pair>();
-                for (ColumnOrSuperColumn item : response) {
-                    searchResults.add(new Pair(stringValue(item.column.name),
-                            stringValue(item.column.value)));
-                }
+    /**
+     * Iterates every column of the specified row, with pages of the
+     * default size.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     *
+     * @return a lazy iterator over the columns of the row.
+     */
+    public ColumnIterator scanColumns(String columnFamily, String rowid) {
+        return scanColumns(columnFamily, rowid, "", "", false, ColumnIterator.DEFAULT_PAGE_SIZE);
+    }
 
-                // return the final search results.
-                return searchResults;
+    /**
+     * Iterates the columns of the specified row between the specified
+     * bounds, page by page, reading every page on its own pooled
+     * connection as the caller gets to it.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     * @param start the name of the first column to read, or an empty string
+     * to read from the start of the row.
+     * @param finish the name of the last column to read, or an empty string
+     * to read until the end of the row.
+     * @param reversed <tt>true</tt> to read the columns in reverse order.
+     * @param pageSize the amount of columns read per page.
+     *
+     * @return a lazy iterator over the columns of the row.
+     */
+    public ColumnIterator scanColumns(final String columnFamily, final String rowid,
+                                      String start, String finish, boolean reversed, int pageSize) {
+        return new ColumnIterator(start, finish, reversed, pageSize) {
+            protected List<ColumnOrSuperColumn> fetch(SlicePredicate predicate) throws Exception {
+                return executeSelect(slice(columnFamily, rowid, predicate));
             }
-        });
+
+            protected String stringValue(ByteBuffer buffer) throws Exception {
+                return ThriftCassandraGateway.this.stringValue(buffer);
+            }
+        };
+    }
+
+    /**
+     * Creates a function that reads a slice of a row with {@code get_slice}.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowid the row to read.
+     * @param predicate the columns to read.
+     *
+     * @return a function that reads the columns.
+     */
+    protected CassandraSelectFunction<Cassandra.Client, List<ColumnOrSuperColumn>> slice(
+            final String columnFamily, final String rowid, final SlicePredicate predicate) {
+
+        return new CassandraSelectFunction<Cassandra.Client, List<ColumnOrSuperColumn>>()
+        {
+            public List<ColumnOrSuperColumn> execute(Cassandra.Client client) throws Exception {
+                return client.get_slice(toByteBuffer(rowid),
+                        new ColumnParent(columnFamily), predicate, getConsistencyLevel());
+            }
+        };
     }
 
     /**
      * {@inheritDoc}
-     */    
+     *
+     * @deprecated reads at most one page, and ignores {@code keys}.  Use
+     * {@link #scan(String)} to walk every row of a column family lazily.
+     */
+    @Deprecated
     public List<Pair> findByKeyRange(final String columnFamily, final List<String> keys) throws Exception {
 
         return executeSelect(new CassandraSelectFunction<Cassandra.Client, List<Pair>>()
@@ -356,12 +574,88 @@ public class ThriftCassandraGateway implements CassandraGateway
         });
     }
 
+    /**
+     * Scans every row of the specified column family, with pages of the
+     * default size.
+     *
+     * @param columnFamily the column family to scan.
+     *
+     * @return a lazy iterator over the columns of every row.
+     */
+    public KeyRangeIterator scan(String columnFamily) {
+        return scan(columnFamily, KeyRangeIterator.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Scans every row of the specified column family, with pages of the
+     * specified size.
+     *
+     * @param columnFamily the column family to scan.
+     * @param pageSize the amount of rows read per page.
+     *
+     * @return a lazy iterator over the columns of every row.
+     */
+    public KeyRangeIterator scan(String columnFamily, int pageSize) {
+        return scan(columnFamily, ThriftUtil.allKeyRange(), pageSize);
+    }
+
+    /**
+     * Scans the rows of the specified column family within the specified
+     * key range, page by page, prefetching the next page on the executor
+     * of this gateway while the current one is walked.
+     *
+     * @param columnFamily the column family to scan.
+     * @param range the key range to scan.
+     * @param pageSize the amount of rows read per page.
+     *
+     * @return a lazy iterator over the columns of every row in the range.
+     */
+    public KeyRangeIterator scan(final String columnFamily, KeyRange range, int pageSize) {
+        return new KeyRangeIterator(getExecutor(), range, pageSize) {
+            protected List<KeySlice> fetch(KeyRange page, SlicePredicate predicate) throws Exception {
+                return executeSelect(rangeSlices(columnFamily, predicate, page));
+            }
+
+            protected ColumnIterator scanColumns(String rowid, String start) {
+                return ThriftCassandraGateway.this.scanColumns(columnFamily, rowid,
+                        start, "", false, ColumnIterator.DEFAULT_PAGE_SIZE);
+            }
+
+            protected String stringValue(ByteBuffer buffer) throws Exception {
+                return ThriftCassandraGateway.this.stringValue(buffer);
+            }
+        };
+    }
+
+    /**
+     * Creates a function that reads a single page of rows with
+     * {@code get_range_slices}.
+     *
+     * @param columnFamily the column family to read from.
+     * @param predicate the columns to read of every row.
+     * @param range the key range and max amount of rows to read.
+     *
+     * @return a function that reads the rows.
+     */
+    protected CassandraSelectFunction<Cassandra.Client, List<KeySlice>> rangeSlices(
+            final String columnFamily, final SlicePredicate predicate, final KeyRange range) {
+
+        return new CassandraSelectFunction<Cassandra.Client, List<KeySlice>>()
+        {
+            public List<KeySlice> execute(Cassandra.Client client) throws Exception {
+                return client.get_range_slices(
+                        new ColumnParent(columnFamily), predicate, range, getConsistencyLevel());
+            }
+        };
+    }
+
     /**
      * {@inheritDoc}
      */    
     public List<Pair> findColumns(final String columnFamily, final String rowid, final List<String> keys) throws Exception {
 
-        return executeSelect(new CassandraSelectFunction<Cassandra.Client, List<Pair>>()
+        return executeShared(Arrays.asList("findColumns", columnFamily, rowid, new ArrayList<String>(keys)),
+                new CassandraSelectFunction<Cassandra.Client, List<Pair>>()
         {
             public List<Pair> execute(Cassandra.Client client) throws Exception {
 
@@ -408,6 +702,131 @@ public class ThriftCassandraGateway implements CassandraGateway
         });
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, List<Pair>> findColumns(String columnFamily, List<String> rowids, List<String> keys) throws Exception {
+        return findColumns(columnFamily, rowids, keys, DEFAULT_ROWS_PER_CALL);
+    }
+
+    /**
+     * Finds the specified columns of every specified row.  The rows are
+     * split into groups of at most the specified size, and every group is
+     * read by a single {@code multiget_slice} on its own pooled connection,
+     * all groups concurrently.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowids the rows to read.
+     * @param keys the names of the columns to read.
+     * @param rowsPerCall the max amount of rows read by a single call.
+     *
+     * @return the columns found, keyed by row in the order of the specified
+     * rows.  A row without any of the columns maps to an empty list.
+     *
+     * @throws Exception the first failure of the calls, once all of them
+     * have finished.
+     */
+    public Map<String, List<Pair>> findColumns(String columnFamily, List<String> rowids, List<String> keys, int rowsPerCall) throws Exception {
+        List<List<String>> groups = partition(new ArrayList<String>(new LinkedHashSet<String>(rowids)), rowsPerCall);
+
+        List<CassandraSelectFunction<Cassandra.Client, Map<String, List<Pair>>>> functions =
+                new ArrayList<CassandraSelectFunction<Cassandra.Client, Map<String, List<Pair>>>>(groups.size());
+        for (List<String> group : groups) {
+            functions.add(multiget(columnFamily, group, keys));
+        }
+
+        // a single group is read on the calling thread, which spares
+        // the hand off to the executor.
+
+        List<Map<String, List<Pair>>> results = functions.size() == 1
+                ? Collections.singletonList(executeSelect(functions.get(0)))
+                : executeAllSelect(functions);
+
+        Map<String, List<Pair>> rows = new LinkedHashMap<String, List<Pair>>();
+        for (Map<String, List<Pair>> result : results) {
+            rows.putAll(result);
+        }
+        return rows;
+    }
+
+    /**
+     * Creates a function that reads the specified columns of the specified
+     * rows with a single {@code multiget_slice}.
+     *
+     * @param columnFamily the column family to read from.
+     * @param rowids the rows to read.
+     * @param keys the names of the columns to read.
+     *
+     * @return a function that reads the columns, keyed by row.
+     */
+    protected CassandraSelectFunction<Cassandra.Client, Map<String, List<Pair>>> multiget(
+            final String columnFamily, final List<String> rowids, final List<String> keys) {
+
+        return new CassandraSelectFunction<Cassandra.Client, Map<String, List<Pair>>>()
+        {
+            public Map<String, List<Pair>> execute(Cassandra.Client client) throws Exception {
+
+                // setup the row keys to read and a slice predicate
+                // that contains the list of column keys to read.
+
+                List<ByteBuffer> rows = new ArrayList<ByteBuffer>(rowids.size());
+                for (String rowid : rowids) {
+                    rows.add(toByteBuffer(rowid));
+                }
+
+                List<ByteBuffer> columns = new ArrayList<ByteBuffer>(keys.size());
+                for (String key : keys) {
+                    columns.add(toByteBuffer(key));
+                }
+
+                SlicePredicate slicePredicate = new SlicePredicate();
+                slicePredicate.column_names = columns;
+
+                Map<ByteBuffer, List<ColumnOrSuperColumn>> response = client.multiget_slice(
+                        rows, new ColumnParent(columnFamily), slicePredicate, getConsistencyLevel());
+
+                // translate the response into key value pairs, keyed by
+                // the row ids as they were specified.
+
+                Map<String, List<Pair>> results = new LinkedHashMap<String, List<Pair>>();
+                for (int i = 0; i < rowids.size(); i++) {
+                    List<Pair> pairs = new ArrayList<Pair>();
+                    List<ColumnOrSuperColumn> found = response.get(rows.get(i));
+
+                    if (found != null) {
+                        for (ColumnOrSuperColumn item : found) {
+                            pairs.add(new Pair(
+                                    stringValue(item.getColumn().name),
+                                    stringValue(item.getColumn().value)));
+                        }
+                    }
+                    results.put(rowids.get(i), pairs);
+                }
+                return results;
+            }
+        };
+    }
+
+    /**
+     * Splits the specified list into consecutive sub lists of at most the
+     * specified size.
+     *
+     * @param list the list to split.
+     * @param size the max size of a sub list.
+     *
+     * @return the sub lists.
+     */
+    static <E> List<List<E>> partition(List<E> list, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("invalid partition size: " + size);
+        }
+        List<List<E>> partitions = new ArrayList<List<E>>();
+        for (int i = 0; i < list.size(); i += size) {
+            partitions.add(list.subList(i, Math.min(i + size, list.size())));
+        }
+        return partitions;
+    }
+
     /**
      * {@inheritDoc}
      */    
@@ -548,6 +967,45 @@ public class ThriftCassandraGateway implements CassandraGateway
         });
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public BatchResult mutate(BatchMutation batch) throws Exception {
+        return mutate(batch, BatchMutation.DEFAULT_MAX_CHUNK_BYTES, BatchMutation.DEFAULT_MAX_CHUNK_MUTATIONS);
+    }
+
+    /**
+     * Writes the specified mutations in chunks that hold at most the
+     * specified amount of mutations and estimated bytes.  Every chunk is a
+     * single {@code batch_mutate} on its own pooled connection, and all
+     * chunks are sent concurrently on the executor of this gateway.
+     *
+     * @param batch the mutations to write.
+     * @param maxBytes the max estimated amount of serialized bytes in a chunk.
+     * @param maxMutations the max amount of mutations in a chunk.
+     *
+     * @return the outcome of every chunk.
+     */
+    public BatchResult mutate(BatchMutation batch, int maxBytes, int maxMutations) {
+        List<BatchMutation.Chunk> chunks = batch.chunks(maxBytes, maxMutations);
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks.size());
+        for (final BatchMutation.Chunk chunk : chunks) {
+            futures.add(submit(new CassandraSelectFunction<Cassandra.Client, Void>() {
+                public Void execute(Cassandra.Client client) throws Exception {
+                    client.batch_mutate(chunk.getMutationMap(), getConsistencyLevel());
+                    return null;
+                }
+            }));
+        }
+
+        // wait for every chunk and record the failed ones, a failed
+        // chunk does not affect the chunks sent alongside it.  Each
+        // failure has already been logged by the function that sent it.
+
+        return BatchResult.await(chunks, futures);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -571,7 +1029,7 @@ public class ThriftCassandraGateway implements CassandraGateway
                     List<TokenRange> tokens = client.describe_ring(def.getName());
                     for (TokenRange range : tokens) {
                         for (String node : range.getEndpoints()) {
-                            System.out.println("discovered node: " + node);
+                            logger.info("discovered node: " + node);
                         }
                     }
                 }
@@ -579,6 +1037,27 @@ public class ThriftCassandraGateway implements CassandraGateway
         });
     }
 
+    /**
+     * Describes the token ring of the keyspace this gateway is associated
+     * with.  The ring maps every row key to the replicas that own it, using
+     * the partitioner the cluster reports.
+     *
+     * @return the token ring of this gateway's keyspace, or <tt>null</tt>
+     * if the cluster uses a partitioner that is not supported client side.
+     *
+     * @throws Exception can occur if the ring cannot be described.
+     */
+    public TokenRing<?> describeRing() throws Exception {
+
+        return executeSelect(new CassandraSelectFunction<Cassandra.Client, TokenRing<?>>()
+        {
+            public TokenRing<?> execute(Cassandra.Client client) throws Exception {
+                return TokenRing.create(client.describe_partitioner(),
+                        client.describe_ring(getKeyspace()));
+            }
+        });
+    }
+
     /**
      * {@inheritDoc}
      */    
@@ -593,7 +1072,8 @@ public class ThriftCassandraGateway implements CassandraGateway
      * pool.  This method does not return a value and therefore is
      * recommended as an insert, update, delete type of function
      * executor.  For operations that require a return value use
-     * {@code executeSelect}.
+     * {@code executeSelect}.  The function runs on the calling thread,
+     * see {@code submit} to run it on the executor of this gateway.
      *
      * The following is an example of the intended usage for this
      * method.  This example illustrates the bare minimum way to
@@ -628,7 +1108,9 @@ public class ThriftCassandraGateway implements CassandraGateway
             function.execute(connection.get().getClient());
 
         } catch (Exception exception) {
-            logger.log(Level.SEVERE, "Failed to execute cassandra function.", exception);
+            discardIfBroken(connection, exception);
+            logger.log(exception instanceof NotFoundException ? Level.FINE : Level.SEVERE,
+                    "Failed to execute cassandra function.", exception);
             throw new Exception("Failed to execute cassandra function.", exception);
 
         } finally {
@@ -646,7 +1128,8 @@ public class ThriftCassandraGateway implements CassandraGateway
      * and releasing of thrift connections from the thrift connection
      * pool.  This method return a value and therefore is recommended
      * for search type of functions. See {@code execute} for example
-     * usage.
+     * usage.  Like {@code execute}, the function runs on the calling
+     * thread.
      *
      * @param function the cassandra function to execute.
      *
@@ -666,7 +1149,9 @@ public class ThriftCassandraGateway implements CassandraGateway
             return function.execute(connection.get().getClient());
 
         } catch (Exception exception) {
-            logger.log(Level.SEVERE, "Failed to execute cassandra select function.", exception);
+            discardIfBroken(connection, exception);
+            logger.log(exception instanceof NotFoundException ? Level.FINE : Level.SEVERE,
+                    "Failed to execute cassandra select function.", exception);
             throw new Exception("Failed to execute cassandra select function.", exception);
 
         } finally {
@@ -678,6 +1163,202 @@ public class ThriftCassandraGateway implements CassandraGateway
         }
     }
 
+    /**
+     * Submits the specified select function for execution on the executor
+     * of this gateway.  Blocking in a pooled Thrift call is cheap on the
+     * default executor, which runs every function on its own virtual
+     * thread where the JVM supports them, and otherwise queues functions
+     * beyond the size of the connection pool rather than starting a
+     * thread for each.
+     *
+     * @param function the cassandra function to execute.
+     *
+     * @return a future that holds the result of the specified function.
+     */
+    public <T> Future<T> submit(final CassandraSelectFunction<Cassandra.Client, T> function) {
+        return getExecutor().submit(new Callable<T>() {
+            public T call() throws Exception {
+                return executeSelect(function);
+            }
+        });
+    }
+
+    /**
+     * Executes the specified functions concurrently, each with its own
+     * pooled connection, and waits until all of them have finished.  The
+     * concurrency is bound by the size of the connection pool of this
+     * gateway; functions beyond it wait for a connection.
+     *
+     * @param functions the cassandra functions to execute.
+     *
+     * @throws Exception the first failure of the specified functions, once
+     * all of them have finished.
+     */
+    public void executeAll(List<? extends CassandraFunction<Cassandra.Client>> functions) throws Exception {
+        List<CassandraSelectFunction<Cassandra.Client, Void>> selects =
+                new ArrayList<CassandraSelectFunction<Cassandra.Client, Void>>(functions.size());
+
+        for (final CassandraFunction<Cassandra.Client> function : functions) {
+            selects.add(new CassandraSelectFunction<Cassandra.Client, Void>() {
+                public Void execute(Cassandra.Client client) throws Exception {
+                    function.execute(client);
+                    return null;
+                }
+            });
+        }
+        executeAllSelect(selects);
+    }
+
+    /**
+     * Executes the specified select functions concurrently, each with its
+     * own pooled connection, and waits until all of them have finished.
+     *
+     * @param functions the cassandra select functions to execute.
+     *
+     * @return the result of every function, in the order of the functions.
+     *
+     * @throws Exception the first failure of the specified functions, once
+     * all of them have finished.
+     */
+    public <T> List<T> executeAllSelect(List<? extends CassandraSelectFunction<Cassandra.Client, T>> functions) throws Exception {
+        List<Future<T>> futures = new ArrayList<Future<T>>(functions.size());
+        for (CassandraSelectFunction<Cassandra.Client, T> function : functions) {
+            futures.add(submit(function));
+        }
+
+        return Futures.awaitAll(futures);
+    }
+
+    /**
+     * Executes the specified select function, sharing the result with
+     * every identical read in flight if reads are de-duplicated.  A shared
+     * list is copied for every caller, so callers may modify it.
+     *
+     * @param key the key of the read, equal for reads that can share a
+     * result.
+     * @param function the select function to execute.
+     *
+     * @return the result of the specified select function.
+     *
+     * @throws Exception can occur if the function fails.
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> T executeShared(Object key, final CassandraSelectFunction<Cassandra.Client, T> function) throws Exception {
+        SingleFlight flight = singleFlight;
+        if (flight == null) {
+            return executeSelect(function);
+        }
+
+        T result = flight.execute(key, new Callable<T>() {
+            public T call() throws Exception {
+                return executeSelect(function);
+            }
+        });
+        return result instanceof List ? (T) new ArrayList<Object>((List<?>) result) : result;
+    }
+
+    /**
+     * Turns the de-duplication of concurrent identical reads on or off.
+     * With it on, a single column, column list or whole row read that is
+     * already in flight is joined rather than executed again, so a burst
+     * of reads of the same hot row costs a single pooled connection and a
+     * single round trip.  A read that joins a call in flight may miss a
+     * write that completed after the call was sent.
+     *
+     * @param enabled <tt>true</tt> to de-duplicate reads.
+     */
+    public void setSingleFlight(boolean enabled) {
+        singleFlight = enabled ? new SingleFlight() : null;
+    }
+
+    /**
+     * Gets the de-duplication of concurrent identical reads, which counts
+     * the reads that were shared.
+     *
+     * @return the single flight of this gateway, or <tt>null</tt> if reads
+     * are not de-duplicated.
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Gets the binary view of this gateway, which reads and writes byte
+     * buffers without encoding or decoding strings.
+     *
+     * @return the binary view of this gateway.
+     */
+    public BinaryCassandraGateway binary() {
+        return binary;
+    }
+
+    /**
+     * Gets the max amount of connections the pool of this gateway opens,
+     * or the default max if the pool does not report its settings.
+     *
+     * @return the max amount of connections of this gateway.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Gets the executor functions submitted to this gateway run on.  Unless
+     * an executor has been set, one that runs every function on a virtual
+     * thread, or on a pool of as many daemon threads as the connection pool
+     * has connections where virtual threads are not supported, is created
+     * on first use.
+     *
+     * @return the executor of this gateway.
+     */
+    public ExecutorService getExecutor() {
+        ExecutorService current = executor.get();
+        if (current != null) return current;
+
+        ExecutorService created = VirtualThreads.newExecutor("cassandra-gateway", maxConnections);
+        if (executor.compareAndSet(null, created)) {
+            ownsExecutor = true;
+            return created;
+        }
+        created.shutdown();
+        return executor.get();
+    }
+
+    /**
+     * Sets the executor functions submitted to this gateway run on.  The
+     * specified executor is not shut down when this gateway is closed.
+     *
+     * @param executor the executor of this gateway.
+     */
+    public void setExecutor(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null.");
+        }
+        ExecutorService previous = this.executor.getAndSet(executor);
+        if (previous != null && ownsExecutor) {
+            previous.shutdown();
+        }
+        ownsExecutor = false;
+    }
+
+    /**
+     * Closes the specified connection if the specified exception was caused
+     * by a transport failure.  A connection whose socket failed mid-request
+     * may still report itself as open, closing it makes the pool replace it
+     * on release instead of handing it to the next borrower.
+     *
+     * @param connection the connection the failed function executed on.
+     * @param exception the exception the function failed with.
+     */
+    protected void discardIfBroken(ThriftConnection connection, Exception exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TTransportException) {
+                connection.close();
+                return;
+            }
+        }
+    }
+
     /**
      * Converts the specified string value into a byte buffer.  This method
      * is a convenience method heavily used by this gateway, since Cassandra
@@ -703,15 +1384,24 @@ public class ThriftCassandraGateway implements CassandraGateway
      * @throws Exception can occur during the byte buffer conversion to string.
      */
     public String stringValue(ByteBuffer buffer) throws Exception {
+        return decode(buffer);
+    }
 
-        int position = buffer.position();
-        String data = decoder.decode(buffer).toString();
-
-        // reset buffer's position to its original so
-        // it's not altered.
-        
-        buffer.position(position);
-        return data;
+    /**
+     * Decodes the specified UTF-8 byte buffer into a string without
+     * altering the position of the buffer.  The shared decoder is not
+     * thread safe, and columns are decoded on concurrent threads, so a
+     * new decoder is used for every call.  Like the shared decoder, it
+     * rejects malformed input rather than replacing it.
+     *
+     * @param buffer the byte buffer to decode.
+     *
+     * @return the decoded string.
+     *
+     * @throws CharacterCodingException if the buffer is not valid UTF-8.
+     */
+    public static String decode(ByteBuffer buffer) throws CharacterCodingException {
+        return charset.newDecoder().decode(buffer.duplicate()).toString();
     }
 
     /**
@@ -730,6 +1420,41 @@ public class ThriftCassandraGateway implements CassandraGateway
 		return encoder.encode(CharBuffer.wrap(value));
 	}
 
+    /**
+     * Returns <tt>true</tt> if this gateway can serve requests without
+     * first opening a connection.  With a background warm-up this becomes
+     * <tt>true</tt> as soon as the first pooled connection is open.
+     *
+     * @return <tt>true</tt> if this gateway is ready; otherwise <tt>false</tt>.
+     */
+    public boolean isReady() {
+        return warmUp == null || warmUp.isReady();
+    }
+
+    /**
+     * Gets the progress of the connection pool of this gateway opening its
+     * initial connections, including the time it took to become ready and
+     * to complete.
+     *
+     * @return the warm-up progress, or <tt>null</tt> if the pool of this
+     * gateway does not report one.
+     */
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Closes this gateway and the pool of connections it uses to
+     * communicate with Cassandra.
+     */
+    public void close() {
+        ExecutorService current = executor.get();
+        if (current != null && ownsExecutor) {
+            current.shutdown();
+        }
+        pool.close();
+    }
+
     /**
      * Gets the keyspace this gateway is associated with.
      * 
@@ -121,4 +121,17 @@ public class ThriftUtil
     public static ByteBuffer toByteBuffer(String value) {
         return ByteBuffer.wrap(value.getBytes());
     }   
+
+    /**
+     * Gets the amount of bytes the specified value takes up on the wire,
+     * which is its length once encoded as by {@link #toByteBuffer(String)}
+     * rather than its amount of characters.
+     *
+     * @param value the value to measure.
+     *
+     * @return the encoded length of the specified value.
+     */
+    public static int encodedLength(String value) {
+        return toByteBuffer(value).remaining();
+    }
 }
\ No newline at end of file
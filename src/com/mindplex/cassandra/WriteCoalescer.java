@@ -0,0 +1,468 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+
+import com.mindplex.cassandra.connection.ConnectionException;
+import com.mindplex.util.NamedThreadFactory;
+import com.mindplex.util.VirtualThreads;
+
+/**
+ * A write-behind buffer that coalesces single column inserts and deletes
+ * into batch mutations.  Writes are buffered until the batch window closes,
+ * which happens when the oldest buffered write has waited the max delay,
+ * or when the batch holds the max amount of writes or bytes, whichever
+ * comes first.  The batch is then sent in a single {@code batch_mutate},
+ * with the mutations of every row and column family merged into one
+ * mutation map.
+ *
+ * <p>Every write returns a future that completes once the batch holding
+ * it has been acknowledged, or completes exceptionally if the batch
+ * failed.  Every write keeps its own timestamp, so coalescing does not
+ * change which of two writes to the same column wins.
+ *
+ * @author Abel Perez
+ */
+public class WriteCoalescer
+{
+    /**
+     * Default logger used by this coalescer.
+     */
+    private static final Logger logger = Logger.getLogger(WriteCoalescer.class.getName());
+
+    /**
+     * The default time in milliseconds a write may wait for its batch.
+     */
+    public static final long DEFAULT_MAX_DELAY = 10;
+
+    /**
+     * The default max amount of writes in a batch.
+     */
+    public static final int DEFAULT_MAX_WRITES = 500;
+
+    /**
+     * The default max amount of bytes of row keys, column names and
+     * values in a batch.
+     */
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * Sends a batch mutation to Cassandra.
+     */
+    private final Sender sender;
+
+    /**
+     * The consistency level batches are written with.
+     */
+    private final ConsistencyLevel consistencyLevel;
+
+    /**
+     * The time in milliseconds a write may wait for its batch.
+     */
+    private final long maxDelay;
+
+    /**
+     * The max amount of writes in a batch.
+     */
+    private final int maxWrites;
+
+    /**
+     * The max amount of bytes in a batch.
+     */
+    private final int maxBytes;
+
+    /**
+     * The lock that guards the batch being filled.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The batch being filled.
+     */
+    private Batch batch = new Batch();
+
+    /**
+     * The scheduled flush of the batch being filled, or <tt>null</tt> if
+     * the batch is empty.
+     */
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * The scheduler that closes batch windows.
+     */
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cassandra-write-coalescer"));
+
+    /**
+     * The executor batches are sent on, so that neither the scheduler nor
+     * the writer that filled a batch is blocked by the round trip.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Indicates that this coalescer has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructs this coalescer in front of the specified gateway with the
+     * default batch window.
+     *
+     * @param gateway the gateway batches are sent through.
+     */
+    public WriteCoalescer(ThriftCassandraGateway gateway) {
+        this(gateway, DEFAULT_MAX_DELAY, DEFAULT_MAX_WRITES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructs this coalescer in front of the specified gateway.
+     *
+     * @param gateway the gateway batches are sent through.
+     * @param maxDelay the time in milliseconds a write may wait for its batch.
+     * @param maxWrites the max amount of writes in a batch.
+     * @param maxBytes the max amount of bytes in a batch.
+     */
+    public WriteCoalescer(final ThriftCassandraGateway gateway, long maxDelay, int maxWrites, int maxBytes) {
+        this(new Sender() {
+            public void send(CassandraFunction<Cassandra.Client> function) throws Exception {
+                gateway.execute(function);
+            }
+        }, gateway.getConsistencyLevel(), maxDelay, maxWrites, maxBytes, gateway.getMaxConnections());
+    }
+
+    /**
+     * Constructs this coalescer in front of the specified cluster gateway.
+     * Batches span rows, so every batch is sent to the next node in line
+     * rather than to a replica.
+     *
+     * @param gateway the gateway batches are sent through.
+     * @param maxDelay the time in milliseconds a write may wait for its batch.
+     * @param maxWrites the max amount of writes in a batch.
+     * @param maxBytes the max amount of bytes in a batch.
+     */
+    public WriteCoalescer(final ClusterCassandraGateway gateway, long maxDelay, int maxWrites, int maxBytes) {
+        this(new Sender() {
+            public void send(final CassandraFunction<Cassandra.Client> function) throws Exception {
+                gateway.execute(null, new CassandraFunction<ThriftCassandraGateway>() {
+                    public void execute(ThriftCassandraGateway node) throws Exception {
+                        node.execute(function);
+                    }
+                });
+            }
+        }, gateway.getConsistencyLevel(), maxDelay, maxWrites, maxBytes, gateway.maxConnections());
+    }
+
+    /**
+     * Constructs this coalescer with the specified sender and settings.
+     *
+     * @param sender sends batch mutations to Cassandra.
+     * @param consistencyLevel the consistency level batches are written with.
+     * @param maxDelay the time in milliseconds a write may wait for its batch.
+     * @param maxWrites the max amount of writes in a batch.
+     * @param maxBytes the max amount of bytes in a batch.
+     * @param maxThreads the max amount of batches sent at once where
+     * virtual threads are not supported.
+     */
+    private WriteCoalescer(Sender sender, ConsistencyLevel consistencyLevel,
+                           long maxDelay, int maxWrites, int maxBytes, int maxThreads) {
+        if (maxDelay < 0 || maxWrites <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("invalid batch window [maxDelay: " + maxDelay
+                    + ", maxWrites: " + maxWrites + ", maxBytes: " + maxBytes + "]");
+        }
+        this.sender = sender;
+        this.consistencyLevel = consistencyLevel;
+        this.maxDelay = maxDelay;
+        this.maxWrites = maxWrites;
+        this.maxBytes = maxBytes;
+        this.executor = VirtualThreads.newExecutor("cassandra-write-batch", maxThreads);
+    }
+
+    /**
+     * Buffers the insert of a column.
+     *
+     * @param columnFamily the column family to insert into.
+     * @param rowid the row to insert into.
+     * @param pair the name and value of the column.
+     *
+     * @return a future that completes once the insert is acknowledged.
+     */
+    public CompletableFuture<Void> insert(String columnFamily, String rowid, Pair pair) {
+        Mutation mutation = ThriftUtil.getMutation(ThriftUtil.makeColumn(pair));
+        int bytes = ThriftUtil.encodedLength(rowid) + ThriftUtil.encodedLength(pair.getKey())
+                + ThriftUtil.encodedLength(pair.getVal());
+        return add(columnFamily, rowid, mutation, bytes);
+    }
+
+    /**
+     * Buffers the delete of a column.
+     *
+     * @param columnFamily the column family to delete from.
+     * @param rowid the row to delete from.
+     * @param column the name of the column to delete.
+     *
+     * @return a future that completes once the delete is acknowledged.
+     */
+    public CompletableFuture<Void> delete(String columnFamily, String rowid, String column) {
+        List<ByteBuffer> columns = new ArrayList<ByteBuffer>(1);
+        columns.add(ThriftUtil.toByteBuffer(column));
+
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.column_names = columns;
+
+        Deletion deletion = new Deletion();
+        deletion.predicate = predicate;
+        deletion.timestamp = System.currentTimeMillis();
+
+        Mutation mutation = new Mutation();
+        mutation.deletion = deletion;
+
+        return add(columnFamily, rowid, mutation,
+                ThriftUtil.encodedLength(rowid) + ThriftUtil.encodedLength(column));
+    }
+
+    /**
+     * Sends the batch being filled right away, without waiting for its
+     * window to close.
+     *
+     * @return a future that completes once the batch is acknowledged.
+     */
+    public CompletableFuture<Void> flush() {
+        Batch full;
+
+        lock.lock();
+        try {
+            full = swap();
+        } finally {
+            lock.unlock();
+        }
+
+        if (full == null) return CompletableFuture.completedFuture(null);
+        return send(full);
+    }
+
+    /**
+     * Closes this coalescer.  The batch being filled is sent, writes
+     * buffered afterwards fail.
+     *
+     * @return a future that completes once the last batch is acknowledged.
+     */
+    public CompletableFuture<Void> close() {
+        closed = true;
+        CompletableFuture<Void> last = flush();
+        scheduler.shutdownNow();
+        executor.shutdown();
+        return last;
+    }
+
+    /**
+     * Adds the specified mutation to the batch being filled, scheduling
+     * the batch's flush if it's the first write, or sending the batch right
+     * away if it's full.
+     *
+     * @param columnFamily the column family the mutation applies to.
+     * @param rowid the row the mutation applies to.
+     * @param mutation the mutation to add.
+     * @param bytes the approximate size of the mutation.
+     *
+     * @return a future that completes once the mutation is acknowledged.
+     */
+    private CompletableFuture<Void> add(String columnFamily, String rowid, Mutation mutation, int bytes) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        Batch full = null;
+
+        lock.lock();
+        try {
+            if (closed) {
+                future.completeExceptionally(new ConnectionException("Write coalescer closed."));
+                return future;
+            }
+
+            batch.add(columnFamily, rowid, mutation, bytes, future);
+
+            if (batch.writes >= maxWrites || batch.bytes >= maxBytes) {
+                full = swap();
+
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelay, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (full != null) send(full);
+        return future;
+    }
+
+    /**
+     * Takes the batch being filled and starts a new one.  The caller must
+     * hold the lock of this coalescer.
+     *
+     * @return the batch that was being filled, or <tt>null</tt> if it was
+     * empty.
+     */
+    private Batch swap() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (batch.writes == 0) return null;
+
+        Batch full = batch;
+        batch = new Batch();
+        return full;
+    }
+
+    /**
+     * Sends the specified batch in a single batch mutation and completes
+     * the future of every write in it.
+     *
+     * @param full the batch to send.
+     *
+     * @return a future that completes once the batch is acknowledged.
+     */
+    private CompletableFuture<Void> send(final Batch full) {
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        Runnable task = new Runnable() {
+            public void run() {
+                Exception failure = null;
+                try {
+                    sender.send(new CassandraFunction<Cassandra.Client>() {
+                        public void execute(Cassandra.Client client) throws Exception {
+                            client.batch_mutate(full.mutations, consistencyLevel);
+                        }
+                    });
+
+                } catch (Exception exception) {
+                    logger.log(Level.SEVERE, "Failed to write batch of " + full.writes + " writes.", exception);
+                    failure = exception;
+                }
+
+                for (CompletableFuture<Void> future : full.futures) {
+                    if (failure == null) future.complete(null);
+                    else future.completeExceptionally(failure);
+                }
+                if (failure == null) done.complete(null);
+                else done.completeExceptionally(failure);
+            }
+        };
+
+        try {
+            executor.execute(task);
+
+        } catch (RuntimeException exception) {
+            // the executor is shut down, send the last batch inline.
+            task.run();
+        }
+        return done;
+    }
+
+    /**
+     * Sends a batch mutation to Cassandra through a gateway.
+     */
+    private interface Sender
+    {
+        /**
+         * Executes the specified function with a pooled client.
+         *
+         * @param function the function to execute.
+         *
+         * @throws Exception can occur if the function fails.
+         */
+        void send(CassandraFunction<Cassandra.Client> function) throws Exception;
+    }
+
+    /**
+     * The mutations buffered for a single batch mutation and the futures
+     * of the writes they came from.
+     */
+    private static class Batch
+    {
+        /**
+         * The mutations of this batch, keyed by row and column family.
+         */
+        final Map<ByteBuffer, Map<String, List<Mutation>>> mutations =
+                new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+
+        /**
+         * The future of every write in this batch.
+         */
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+
+        /**
+         * The amount of writes in this batch.
+         */
+        int writes;
+
+        /**
+         * The approximate amount of bytes in this batch.
+         */
+        int bytes;
+
+        /**
+         * Adds a mutation to this batch.
+         *
+         * @param columnFamily the column family the mutation applies to.
+         * @param rowid the row the mutation applies to.
+         * @param mutation the mutation to add.
+         * @param size the approximate size of the mutation.
+         * @param future the future of the write.
+         */
+        void add(String columnFamily, String rowid, Mutation mutation, int size, CompletableFuture<Void> future) {
+            ByteBuffer key = ThriftUtil.toByteBuffer(rowid);
+
+            Map<String, List<Mutation>> row = mutations.get(key);
+            if (row == null) {
+                row = new HashMap<String, List<Mutation>>();
+                mutations.put(key, row);
+            }
+
+            List<Mutation> family = row.get(columnFamily);
+            if (family == null) {
+                family = new ArrayList<Mutation>();
+                row.put(columnFamily, family);
+            }
+
+            family.add(mutation);
+            futures.add(future);
+            writes++;
+            bytes += size;
+        }
+    }
+}
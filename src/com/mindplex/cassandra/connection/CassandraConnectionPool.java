@@ -14,14 +14,46 @@
 
 package com.mindplex.cassandra.connection;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
 import com.mindplex.cassandra.CassandraNode;
+import com.mindplex.util.Check;
+import com.mindplex.util.NamedThreadFactory;
 
 /**
+ * An elastic pool of Cassandra connections.  This pool keeps a minimum
+ * amount of connections open at all times, grows on demand up to a max
+ * amount of connections and closes connections that sit idle longer than
+ * the configured idle timeout until it shrinks back to its minimum size.
+ * The sizing and timing settings of this pool are defined by a
+ * {@link PoolConfig}.
+ *
+ * <p>Idle connections are actively validated in the background, and
+ * optionally on borrow, so that connections broken by a node restart are
+ * replaced before anyone uses them.  When a max connection age is
+ * configured, connections past that age are closed as they are released,
+ * which lets the pool rebalance after the cluster changes.
+ *
+ * <p>Threads that find this pool exhausted wait in a FIFO queue.  A
+ * released connection is handed directly to the oldest waiting thread,
+ * so waiters are served in the order they arrived.  The time every borrow
+ * spends waiting is recorded in this pool's {@link PoolStatistics}.
  *
  * @author Abel Perez
  */
@@ -33,33 +65,61 @@ public class CassandraConnectionPool<T extends Connection<?>> implements Connect
     private static final Logger logger = Logger.getLogger(CassandraConnectionPool.class);
 
     /**
-     * The list of connections available in this queue.
+     * The lock that guards the idle connections, the waiting threads and
+     * the size of this pool.
      */
-    private final ArrayBlockingQueue<T> connections;
-    
+    private final ReentrantLock lock = new ReentrantLock();
+
     /**
-     * The default amount of max connections this pool will keep open
-     * at any given time.
+     * The list of idle connections available in this pool.  Connections are
+     * borrowed from and returned to the head of this deque, so the tail
+     * always holds the connections that have been idle the longest.
      */
-    private static final int DEFAULT_MAX_CONNECTIONS = 5;
+    private final Deque<T> connections = new ArrayDeque<T>();
 
     /**
-     * This constant value represents blocking forever in the context of
-     * controlling thread access. 
+     * The time each idle connection in this pool was returned to this pool.
+     */
+    private final Map<T, Long> idleSince = new HashMap<T, Long>();
+
+    /**
+     * Every connection this pool currently owns, idle or borrowed.
+     */
+    private final Set<T> members = new HashSet<T>();
+
+    /**
+     * The time every connection of this pool was opened at, used to retire
+     * connections past the configured max age.
+     */
+    private final Map<T, Long> openedAt = new HashMap<T, Long>();
+
+    /**
+     * The threads waiting for a connection, oldest first.
+     */
+    private final Deque<Waiter<T>> waiters = new ArrayDeque<Waiter<T>>();
+
+    /**
+     * The amount of connections this pool owns, including the connections
+     * that are currently being opened.
      */
-    private static final int BLOCK_FOREVER = -1;
+    private int size;
 
     /**
-     * The time interval to wait when polling this pool for a connection
-     * while it's exhausted.
+     * This constant value represents blocking forever in the context of
+     * controlling thread access. 
      */
-    private static final int POLL_INTERVAL = 100;
+    private static final int BLOCK_FOREVER = PoolConfig.BLOCK_FOREVER;
 
     /**
      * The Cassandra node that connections in this pool point to.
      */
     private CassandraNode node;
 
+    /**
+     * The sizing and timing settings of this pool.
+     */
+    private final PoolConfig config;
+
     /**
      * The max time to wait for the next available connection in this pool
      * while the pool is exhausted.
@@ -70,22 +130,42 @@ public class CassandraConnectionPool<T extends Connection<?>> implements Connect
      * The connection factory this connection pool uses to create new connections.
      */
     private ConnectionFactory<T> factory;
-    
+
+    /**
+     * The borrow statistics of this pool.
+     */
+    private final PoolStatistics statistics = new PoolStatistics();
+
+    /**
+     * The progress of this pool opening its initial connections.
+     */
+    private final WarmUp warmUp;
+
+    /**
+     * The background task runner that evicts and validates idle connections
+     * in this pool.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Indicates that this pool has been closed.
+     */
+    private volatile boolean closed;
+
     /**
-     * Constructs this connection pool with the specified host, port, keyspace
-     * pool access fairness, and max wait time when pool is exhausted.
+     * Constructs this connection pool with the specified Cassandra node and
+     * connection factory and the default pool settings.
      *
-     * connection when this pool is exhausted.
      * @param factory factory for creating connections to store in this pool.
      * @param node the Cassandra node this connection pool is associated with.
      */
     public CassandraConnectionPool(CassandraNode node, ConnectionFactory<T> factory) {
-        this(node, BLOCK_FOREVER, factory);
+        this(node, new PoolConfig(), factory);
     }
 
     /**
-     * Constructs this connection pool with the specified host, port, keyspace
-     * pool access fairness, and max wait time when pool is exhausted.
+     * Constructs this connection pool with the specified Cassandra node,
+     * max wait time when pool is exhausted and connection factory.
      *
      * @param maxWaitTimeWhenExhausted the max wait time for the next available
      * connection when this pool is exhausted.
@@ -94,71 +174,145 @@ public class CassandraConnectionPool<T extends Connection<?>> implements Connect
      */
     public CassandraConnectionPool(CassandraNode node, int maxWaitTimeWhenExhausted,
                                     ConnectionFactory<T> factory) {
+        this(node, withMaxWaitTime(maxWaitTimeWhenExhausted), factory);
+    }
 
-        this.maxWaitTimeWhenExhausted = maxWaitTimeWhenExhausted;
-        this.factory = factory;
+    /**
+     * Constructs this connection pool with the specified Cassandra node,
+     * pool settings and connection factory.  The min amount of connections
+     * defined by the specified pool settings are opened in parallel.  This
+     * constructor returns once every one of them is open, or, with a
+     * background warm-up, as soon as the first one is open.
+     *
+     * @param node the Cassandra node this connection pool is associated with.
+     * @param config the sizing and timing settings of this pool.
+     * @param factory factory for creating connections to store in this pool.
+     */
+    public CassandraConnectionPool(CassandraNode node, PoolConfig config,
+                                    ConnectionFactory<T> factory) {
 
-        connections = new ArrayBlockingQueue<T>(DEFAULT_MAX_CONNECTIONS);
-        for (int i = 0; i < DEFAULT_MAX_CONNECTIONS; i++) {
-            T connection = factory.create(node.getKeyspace());
-            if (connection.isValid()) {
-                connections.add(connection);
-            }
+        Check.forNull(node);
+        Check.forNull(config).validate();
+
+        this.node = node;
+        this.config = config;
+        this.maxWaitTimeWhenExhausted = config.getMaxWaitTimeWhenExhausted();
+        this.factory = Check.forNull(factory);
+
+        warmUp = warmUp(config.getMinConnections());
+
+        // schedule the idle connection evictor and validator, unless
+        // both have been disabled.
+
+        if (config.getIdleTimeout() > 0 || config.getValidationInterval() > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("cassandra-pool-maintenance"));
+        } else {
+            scheduler = null;
+        }
+
+        if (config.getIdleTimeout() > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run() {
+                    evict();
+                }
+            }, config.getEvictionInterval(), config.getEvictionInterval(), TimeUnit.MILLISECONDS);
+        }
+
+        if (config.getValidationInterval() > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run() {
+                    try {
+                        validateIdle();
+                    } catch (RuntimeException exception) {
+                        logger.error("Failed to validate idle connections.", exception);
+                    }
+                }
+            }, config.getValidationInterval(), config.getValidationInterval(), TimeUnit.MILLISECONDS);
         }
     }
 
     /**
      * Gets the next available connection from this pool of Cassandra
-     * connections.  When this pool is exhausted, this operation will block for
-     * the total wait time this pool has been configured for.
+     * connections.  When no idle connection is available and this pool
+     * has not reached its max size, a new connection is opened.  When this
+     * pool is exhausted, the calling thread joins the queue of waiting
+     * threads for the total wait time this pool has been configured for.
      * 
      * @return a connection to Cassandra from this pool.
      * 
      * @throws ConnectionException can occur if a connection cannot be
-     * acquired.
+     * acquired, or if the calling thread is interrupted while waiting.
      */
     public T get() throws ConnectionException {
 
-        T connection = null;
-
-        // If the max time to wait for a connection to become
-        // available in the pool is forever, we continuously poll
-        // the queue until a connection becomes available.
-        
-        if (maxWaitTimeWhenExhausted == BLOCK_FOREVER) {
-            while (connection == null) {
-                try {
-                    connection = connections.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
-                  
-                } catch (InterruptedException exception) {
-                    logger.error("Interrupted while acquiring connection. [wait-time:"
-                            +maxWaitTimeWhenExhausted+"]", exception);
-                    break;
+        if (closed) {
+            throw new ConnectionException("Connection pool is closed.");
+        }
+
+        long waitTime = 0;
+
+        while (true) {
+            boolean grow = false;
+            long idleTime = 0;
+            T connection;
+
+            lock.lock();
+            try {
+                // prefer an idle connection, then a brand new connection
+                // if this pool can still grow; otherwise wait in line.
+
+                connection = connections.pollFirst();
+                if (connection != null) {
+                    idleTime = System.currentTimeMillis() - idleSince.remove(connection);
+
+                } else if (size < config.getMaxConnections()) {
+                    size++;
+                    grow = true;
+
+                } else {
+                    long start = System.nanoTime();
+                    Waiter<T> waiter = await();
+                    waitTime += System.nanoTime() - start;
+                    connection = waiter.connection;
+                    grow = waiter.slot;
                 }
+
+            } finally {
+                lock.unlock();
             }
-        } else {
-            // Wait the max time allowable for a connection to
-            // become available in the pool; otherwise bail.
-            try {
-                connection = connections.poll(maxWaitTimeWhenExhausted, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException exception) {
-                logger.error("Interrupted while acquiring connection. [wait-time:"
-                        +maxWaitTimeWhenExhausted+"]", exception);
+
+            // connections are opened and validated outside the lock,
+            // so that a slow round trip does not hold up every other
+            // borrower.
+
+            if (grow) {
+                connection = open();
+
+            } else if (config.isValidateOnBorrow()
+                    && idleTime >= config.getValidationIdleThreshold()
+                    && ! connection.validate()) {
+
+                logger.warn("Discarding broken connection on borrow. ["
+                        + node.getHost() + ":" + node.getPort() + "]");
+                discard(connection);
+                continue;
             }
-        }
 
-        // we are in bad shape, lets just throw up on the client.
-        if (connection == null) {
-            throw new ConnectionException("Failed to acquire connection from pool.");
+            statistics.recordBorrow(waitTime);
+            return connection;
         }
-        
-        return connection;
     }
 
     /**
-     * Returns the specified connection back to this pool.  If the specified
-     * connection is no longer valid, then a new connection is created and
-     * added to this pool.
+     * Returns the specified connection back to this pool.  If a thread is
+     * waiting for a connection, the specified connection is handed directly
+     * to the oldest waiting thread.  If the specified connection is no
+     * longer valid, then it is discarded and the slot it held is handed to
+     * the oldest waiting thread or, if this pool has dropped below its min
+     * size, filled with a new connection.
      * 
      * @param connection the connection to return back to this pool.
      *
@@ -170,22 +324,37 @@ public class CassandraConnectionPool<T extends Connection<?>> implements Connect
         // no need to continue if the specified connection is bogus.
         if (connection == null) return false;
 
+        boolean valid = ! closed && connection.isValid();
+
+        lock.lock();
         try {
-            // if the connection is valid we added back to this pool;
-            // otherwise we create a new connection in its place and
-            // add it to this pool.
+            if (! members.contains(connection)) return false;
 
-            if (connection.isValid()) {
-                return connections.add(connection);
-            } else {
-                return connections.add(factory.create(node));
+            // retire connections past their max age, so that they are
+            // reopened against the current cluster on demand.
+
+            valid = valid && ! expired(connection);
+
+            if (valid) {
+                // hand the connection to the oldest waiting thread, if
+                // any; otherwise add it back to the idle connections.
+
+                Waiter<T> waiter = waiters.pollFirst();
+                if (waiter != null) {
+                    waiter.connection = connection;
+                    waiter.condition.signal();
+                } else {
+                    idleSince.put(connection, System.currentTimeMillis());
+                    connections.offerFirst(connection);
+                }
+                return true;
             }
-            
-        } catch (IllegalStateException exception) {
-            logger.error("Failed to return connection to pool. [max connections exceeded].");
-            connection.close();
-            return false;
+
+        } finally {
+            lock.unlock();
         }
+
+        return discard(connection);
     }
 
     /**
@@ -198,13 +367,599 @@ public class CassandraConnectionPool<T extends Connection<?>> implements Connect
     }
 
     /**
-     * Removes the specified connection from this pool.
+     * Gets the sizing and timing settings of this pool.
+     *
+     * @return the sizing and timing settings of this pool.
+     */
+    public PoolConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the borrow statistics of this pool.
+     *
+     * @return the borrow statistics of this pool.
+     */
+    public PoolStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Gets the progress of this pool opening its initial connections.
+     *
+     * @return the warm-up progress of this pool.
+     */
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Gets the amount of connections this pool currently owns, idle or
+     * borrowed.
+     *
+     * @return the amount of connections this pool currently owns.
+     */
+    public int getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of idle connections in this pool.
+     *
+     * @return the amount of idle connections in this pool.
+     */
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return connections.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of threads waiting for a connection.
+     *
+     * @return the amount of threads waiting for a connection.
+     */
+    public int getWaiterCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the specified connection from this pool.  The specified
+     * connection is not closed, its ownership is handed over to the caller.
      * 
      * @param connection the connection to remove from this pool.
      */
     public void remove(T connection) {
-        if (connection != null) {
-            connections.remove(connection);
+        if (connection == null) return;
+
+        lock.lock();
+        try {
+            if (members.remove(connection)) {
+                connections.remove(connection);
+                idleSince.remove(connection);
+                openedAt.remove(connection);
+                size--;
+                handOverSlot();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes this pool.  Idle connections are closed right away, borrowed
+     * connections are closed as they are released.
+     */
+    public void close() {
+        closed = true;
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        List<T> idle = new ArrayList<T>();
+
+        lock.lock();
+        try {
+            idle.addAll(connections);
+            connections.clear();
+            idleSince.clear();
+            members.removeAll(idle);
+            openedAt.keySet().removeAll(idle);
+            size -= idle.size();
+
+            // wake every waiting thread, they will find nothing
+            // and give up.
+
+            for (Waiter<T> waiter : waiters) {
+                waiter.condition.signal();
+            }
+            
+        } finally {
+            lock.unlock();
+        }
+
+        for (T connection : idle) {
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle longer than the idle
+     * timeout of this pool, oldest first, until this pool shrinks back to
+     * its min size.
+     */
+    protected void evict() {
+        long now = System.currentTimeMillis();
+        List<T> expired = new ArrayList<T>();
+
+        lock.lock();
+        try {
+            // the tail of the deque is the connection that has been idle
+            // the longest, if it has not timed out neither has any other.
+            
+            while (size > config.getMinConnections() && ! connections.isEmpty()) {
+                T connection = connections.peekLast();
+                if (now - idleSince.get(connection) < config.getIdleTimeout()) break;
+
+                connections.pollLast();
+                idleSince.remove(connection);
+                members.remove(connection);
+                openedAt.remove(connection);
+                size--;
+                expired.add(connection);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (T connection : expired) {
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Actively validates the connections that have been idle at least as
+     * long as the validation idle threshold of this pool, oldest first.
+     * Broken connections are discarded and replaced before anyone borrows
+     * them.  Each connection is taken out of this pool while it's being
+     * validated, so borrowers never receive a connection mid-validation.
+     */
+    protected void validateIdle() {
+        List<T> candidates = new ArrayList<T>();
+        long now = System.currentTimeMillis();
+
+        // snapshot the connections past the threshold first, since a
+        // validated connection goes back to the tail of the deque, where
+        // it would otherwise be picked again instead of the next one.
+
+        lock.lock();
+        try {
+            Iterator<T> idle = connections.descendingIterator();
+            while (idle.hasNext()) {
+                T connection = idle.next();
+                if (now - idleSince.get(connection) < config.getValidationIdleThreshold()) break;
+                candidates.add(connection);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (T connection : candidates) {
+            if (closed) break;
+            long since;
+
+            // skip the connection if it was borrowed or evicted meanwhile.
+
+            lock.lock();
+            try {
+                if (! connections.removeLastOccurrence(connection)) continue;
+                since = idleSince.remove(connection);
+
+            } finally {
+                lock.unlock();
+            }
+
+            if (connection.validate()) {
+                restore(connection, since);
+            } else {
+                logger.warn("Discarding broken idle connection. ["
+                        + node.getHost() + ":" + node.getPort() + "]");
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Puts a validated connection back where it was taken from, at the tail
+     * of the idle connections with its original idle time, so that
+     * validation does not keep it from being evicted.  If a thread started
+     * waiting in the meantime, the connection is handed to it instead.
+     *
+     * @param connection the validated connection.
+     * @param since the time the connection became idle.
+     */
+    private void restore(T connection, long since) {
+        lock.lock();
+        try {
+            if (! closed && members.contains(connection)) {
+                Waiter<T> waiter = waiters.pollFirst();
+                if (waiter != null) {
+                    waiter.connection = connection;
+                    waiter.condition.signal();
+                } else {
+                    idleSince.put(connection, since);
+                    connections.offerLast(connection);
+                }
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // the pool was closed in the meantime, release disposes of it.
+        release(connection);
+    }
+
+    /**
+     * Discards the specified borrowed connection.  The slot it held is
+     * handed to the oldest waiting thread or, if this pool has dropped below
+     * its min size, filled with a new connection.
+     *
+     * @param connection the connection to discard.
+     *
+     * @return <tt>true</tt> if a new connection is added to this pool in
+     * place of the discarded one; otherwise <tt>false</tt>.
+     */
+    private boolean discard(T connection) {
+        lock.lock();
+        try {
+            if (! members.remove(connection)) return false;
+            openedAt.remove(connection);
+            size--;
+
+        } finally {
+            lock.unlock();
+        }
+
+        destroy(connection);
+        return ! closed && replenish();
+    }
+
+    /**
+     * Opens the specified amount of initial connections in parallel, each
+     * including its keyspace round trip, and waits until all of them are
+     * open, or only until the first one is open when a background warm-up
+     * is configured.
+     *
+     * @param count the amount of connections to open.
+     *
+     * @return the progress of the warm-up.
+     *
+     * @throws ConnectionException if not a single connection could be opened,
+     * or if the calling thread is interrupted.
+     */
+    private WarmUp warmUp(int count) throws ConnectionException {
+
+        final WarmUp progress = new WarmUp(count);
+        if (count == 0) return progress;
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(count, config.getWarmUpThreads()),
+                new NamedThreadFactory("cassandra-pool-warmup"));
+
+        for (int i = 0; i < count; i++) {
+            reserve();
+            executor.execute(new Runnable()
+            {
+                public void run() {
+                    try {
+                        release(open());
+                        progress.opened();
+
+                    } catch (RuntimeException exception) {
+                        logger.error("Failed to open connection during warm-up. ["
+                                + node.getHost() + ":" + node.getPort() + "]", exception);
+                        progress.failed(exception);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            if (config.isBackgroundWarmUp()) {
+                progress.awaitReady(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } else {
+                progress.awaitComplete(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+
+        } catch (InterruptedException exception) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new ConnectionException("Interrupted while warming up connection pool.", exception);
+        }
+
+        if (! progress.isReady()) {
+            throw new ConnectionException("Failed to open connection. ["
+                    + node.getHost() + ":" + node.getPort() + "]", progress.getFailure());
+        }
+
+        logger.info("Connection pool ready. [" + node.getHost() + ":" + node.getPort()
+                + ", warm-up:" + progress + "]");
+        return progress;
+    }
+
+    /**
+     * Enqueues the calling thread as a waiter and waits until it is handed
+     * a connection or a free slot, or until the max wait time of this pool
+     * expires.  The lock of this pool must be held by the calling thread.
+     *
+     * @return the waiter of the calling thread, holding either a connection
+     * or a free slot.
+     *
+     * @throws ConnectionException if the wait times out, the pool is closed
+     * or the calling thread is interrupted.
+     */
+    private Waiter<T> await() throws ConnectionException {
+
+        Waiter<T> waiter = new Waiter<T>(lock.newCondition());
+        waiters.offerLast(waiter);
+
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitTimeWhenExhausted);
+        try {
+            while (waiter.connection == null && ! waiter.slot && ! closed) {
+                if (maxWaitTimeWhenExhausted == BLOCK_FOREVER) {
+                    waiter.condition.await();
+                } else {
+                    if (remaining <= 0) break;
+                    remaining = waiter.condition.awaitNanos(remaining);
+                }
+            }
+
+        } catch (InterruptedException exception) {
+            // a connection handed over while we were being interrupted
+            // is passed on to the next waiter.
+            
+            waiters.remove(waiter);
+            abandon(waiter);
+            Thread.currentThread().interrupt();
+            throw new ConnectionException("Interrupted while acquiring connection. [wait-time:"
+                    + maxWaitTimeWhenExhausted + "]", exception);
+        }
+
+        if (waiter.connection == null && ! waiter.slot) {
+            waiters.remove(waiter);
+            statistics.recordTimeout();
+            throw new ConnectionException("Failed to acquire connection from pool.");
+        }
+
+        return waiter;
+    }
+
+    /**
+     * Passes a connection or slot that was handed to a waiter which gave up
+     * on to the next waiter in line.  The lock of this pool must be held by
+     * the calling thread.
+     *
+     * @param waiter the waiter that gave up.
+     */
+    private void abandon(Waiter<T> waiter) {
+        if (waiter.connection != null) {
+            Waiter<T> next = waiters.pollFirst();
+            if (next != null) {
+                next.connection = waiter.connection;
+                next.condition.signal();
+            } else {
+                idleSince.put(waiter.connection, System.currentTimeMillis());
+                connections.offerFirst(waiter.connection);
+            }
+        } else if (waiter.slot) {
+            size--;
+            handOverSlot();
+        }
+    }
+
+    /**
+     * Hands a free slot of this pool to the oldest waiting thread, which
+     * will open a new connection in it.  The lock of this pool must be held
+     * by the calling thread.
+     */
+    private void handOverSlot() {
+        if (size < config.getMaxConnections()) {
+            Waiter<T> waiter = waiters.pollFirst();
+            if (waiter != null) {
+                size++;
+                waiter.slot = true;
+                waiter.condition.signal();
+            }
+        }
+    }
+
+    /**
+     * Reserves a slot in this pool for a connection about to be opened.
+     */
+    private void reserve() {
+        lock.lock();
+        try {
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a slot reserved for a connection that could not be opened.
+     */
+    private void unreserve() {
+        lock.lock();
+        try {
+            size--;
+            handOverSlot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens a new connection in a slot already reserved in {@link #size}.
+     * If the connection cannot be opened the reserved slot is given back.
+     *
+     * @return a new valid connection.
+     *
+     * @throws ConnectionException can occur if a connection cannot be opened.
+     */
+    private T open() throws ConnectionException {
+        T connection;
+        try {
+            connection = factory.create(node);
+
+        } catch (RuntimeException exception) {
+            unreserve();
+            throw exception;
+        }
+
+        if (connection == null || ! connection.isValid()) {
+            unreserve();
+            if (connection != null) factory.destroy(connection);
+            throw new ConnectionException("Failed to open connection. ["
+                    + node.getHost() + ":" + node.getPort() + "]");
+        }
+
+        lock.lock();
+        try {
+            members.add(connection);
+            openedAt.put(connection, System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        return connection;
+    }
+
+    /**
+     * Fills the slot freed by a discarded connection.  The slot is handed to
+     * the oldest waiting thread if there is one; otherwise a new connection
+     * is added to this pool if it has dropped below its min size.
+     *
+     * @return <tt>true</tt> if a new connection is added to this pool;
+     * otherwise <tt>false</tt>.
+     */
+    private boolean replenish() {
+
+        lock.lock();
+        try {
+            if (! waiters.isEmpty()) {
+                handOverSlot();
+                return false;
+            }
+            if (size >= config.getMinConnections()) {
+                return false;
+            }
+            size++;
+
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            return release(open());
+            
+        } catch (ConnectionException exception) {
+            logger.error("Failed to replace broken connection.", exception);
+            return false;
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified connection has been open
+     * longer than the configured max connection age.  The caller must hold
+     * the lock of this pool.
+     *
+     * @param connection the connection to check.
+     *
+     * @return <tt>true</tt> if the connection should be retired; otherwise
+     * <tt>false</tt>.
+     */
+    private boolean expired(T connection) {
+        long maxAge = config.getMaxConnectionAge();
+        if (maxAge <= 0) return false;
+
+        Long opened = openedAt.get(connection);
+        return opened != null && System.currentTimeMillis() - opened >= maxAge;
+    }
+
+    /**
+     * Closes the specified connection, which no longer holds a slot in
+     * this pool.
+     *
+     * @param connection the connection to close.
+     */
+    private void destroy(T connection) {
+        try {
+            factory.destroy(connection);
+
+        } catch (Exception exception) {
+            logger.error("Failed to close connection.", exception);
+        }
+    }
+
+    /**
+     * Creates the pool settings for a pool that waits the specified time
+     * for a connection when it's exhausted.
+     *
+     * @param maxWaitTimeWhenExhausted the max wait time for the next
+     * available connection when a pool is exhausted.
+     *
+     * @return default pool settings with the specified max wait time.
+     */
+    private static PoolConfig withMaxWaitTime(int maxWaitTimeWhenExhausted) {
+        PoolConfig config = new PoolConfig();
+        config.setMaxWaitTimeWhenExhausted(maxWaitTimeWhenExhausted);
+        return config;
+    }
+
+    /**
+     * A thread waiting for a connection.  A releasing thread hands the
+     * waiter either a connection or a free slot to open one in, and then
+     * signals it.
+     */
+    private static class Waiter<T>
+    {
+        /**
+         * The condition the waiting thread waits on.
+         */
+        final Condition condition;
+
+        /**
+         * The connection handed to the waiting thread.
+         */
+        T connection;
+
+        /**
+         * Indicates that the waiting thread was handed a free slot.
+         */
+        boolean slot;
+
+        /**
+         * Constructs this waiter with the specified condition.
+         *
+         * @param condition the condition the waiting thread waits on.
+         */
+        Waiter(Condition condition) {
+            this.condition = condition;
         }
     }
 }
@@ -34,6 +34,16 @@ public interface Connection<T> extends Closeable
      */
     public boolean isValid();
 
+    /**
+     * Actively validates this connection by making a cheap round trip to
+     * its target endpoint.  Unlike {@code isValid}, this detects connections
+     * that look open but can no longer reach the endpoint, such as sockets
+     * left half-open by a node restart.
+     *
+     * @return <tt>true</tt> if the round trip succeeds; otherwise <tt>false</tt>.
+     */
+    public boolean validate();
+
     /**
      * Gets the underlying connection wrapped by this connection. Multiple
      * calls to this method always return the same underlying connection.
@@ -54,4 +54,10 @@ public interface ConnectionPool<T>
      * @param connection the connection to remove from this pool.
      */
     public void remove(T connection);
+
+    /**
+     * Closes this pool and every connection it holds.  Once closed, this
+     * pool no longer hands out connections.
+     */
+    public void close();
 }
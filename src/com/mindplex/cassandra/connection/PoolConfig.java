@@ -0,0 +1,458 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.connection;
+
+/**
+ * A {@code PoolConfig} holds the sizing and timing settings of a Cassandra
+ * connection pool.  A pool keeps {@link #getMinConnections()} connections
+ * open at all times, grows on demand up to {@link #getMaxConnections()} and
+ * closes connections that have been idle longer than
+ * {@link #getIdleTimeout()} until it is back to its minimum size.
+ *
+ * @author Abel Perez
+ */
+public class PoolConfig
+{
+    /**
+     * This constant value represents blocking forever in the context of
+     * controlling thread access.
+     */
+    public static final int BLOCK_FOREVER = -1;
+
+    /**
+     * The default amount of connections a pool keeps open at all times.
+     */
+    public static final int DEFAULT_MIN_CONNECTIONS = 5;
+
+    /**
+     * The default amount of max connections a pool will keep open at any
+     * given time.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 25;
+
+    /**
+     * The default time in milliseconds a connection can sit idle before it
+     * becomes eligible for eviction.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    /**
+     * The default time in milliseconds between runs of the idle connection
+     * evictor.
+     */
+    public static final long DEFAULT_EVICTION_INTERVAL = 30000;
+
+    /**
+     * The default time in milliseconds between runs of the idle connection
+     * validator.
+     */
+    public static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+
+    /**
+     * The default time in milliseconds a connection must have been idle
+     * before it is actively validated.
+     */
+    public static final long DEFAULT_VALIDATION_IDLE_THRESHOLD = 10000;
+
+    /**
+     * The default max amount of threads a pool opens its initial connections
+     * with.
+     */
+    public static final int DEFAULT_WARM_UP_THREADS = 8;
+
+    /**
+     * The default time in milliseconds a connection waits for its socket
+     * to connect and for every read.
+     */
+    public static final int DEFAULT_SOCKET_TIMEOUT = 10000;
+
+    /**
+     * The amount of connections a pool keeps open at all times.
+     */
+    private int minConnections = DEFAULT_MIN_CONNECTIONS;
+
+    /**
+     * The max amount of connections a pool will keep open at any given time.
+     */
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    /**
+     * The max time to wait for the next available connection while a pool
+     * is exhausted.
+     */
+    private int maxWaitTimeWhenExhausted = BLOCK_FOREVER;
+
+    /**
+     * The time in milliseconds a connection can sit idle before it becomes
+     * eligible for eviction.  A value equal to or less than zero disables
+     * idle eviction.
+     */
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * The time in milliseconds between runs of the idle connection evictor.
+     */
+    private long evictionInterval = DEFAULT_EVICTION_INTERVAL;
+
+    /**
+     * The time in milliseconds between runs of the idle connection
+     * validator.  A value equal to or less than zero disables background
+     * validation.
+     */
+    private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
+    /**
+     * The time in milliseconds a connection must have been idle before it
+     * is actively validated, either in the background or on borrow.
+     */
+    private long validationIdleThreshold = DEFAULT_VALIDATION_IDLE_THRESHOLD;
+
+    /**
+     * Indicates that idle connections are actively validated before they
+     * are handed to a borrower.
+     */
+    private boolean validateOnBorrow;
+
+    /**
+     * The max amount of threads a pool opens its initial connections with.
+     */
+    private int warmUpThreads = DEFAULT_WARM_UP_THREADS;
+
+    /**
+     * Indicates that a pool is usable as soon as its first connection is
+     * open, while the rest of its initial connections open in the background.
+     */
+    private boolean backgroundWarmUp;
+
+    /**
+     * The time in milliseconds a connection may stay open before it is
+     * closed on release and replaced on demand.  A value equal to or less
+     * than zero lets connections live for as long as they are valid.
+     */
+    private long maxConnectionAge;
+
+    /**
+     * The time in milliseconds a connection waits for its socket to connect
+     * and for every read.  Zero waits forever.
+     */
+    private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+
+    /**
+     * Constructs this pool config with the default settings.
+     */
+    public PoolConfig() {
+    }
+
+    /**
+     * Constructs this pool config with the specified min and max amount
+     * of connections.
+     *
+     * @param minConnections the amount of connections a pool keeps open
+     * at all times.
+     * @param maxConnections the max amount of connections a pool will keep
+     * open at any given time.
+     */
+    public PoolConfig(int minConnections, int maxConnections) {
+        setMinConnections(minConnections);
+        setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Gets the amount of connections a pool keeps open at all times.
+     *
+     * @return the amount of connections a pool keeps open at all times.
+     */
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * Sets the amount of connections a pool keeps open at all times.
+     *
+     * @param minConnections the amount of connections a pool keeps open
+     * at all times.
+     */
+    public void setMinConnections(int minConnections) {
+        if (minConnections < 0) {
+            throw new IllegalArgumentException("min connections cannot be negative: " + minConnections);
+        }
+        this.minConnections = minConnections;
+    }
+
+    /**
+     * Gets the max amount of connections a pool will keep open at any
+     * given time.
+     *
+     * @return the max amount of connections a pool will keep open.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the max amount of connections a pool will keep open at any
+     * given time.
+     *
+     * @param maxConnections the max amount of connections a pool will keep
+     * open at any given time.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("max connections must be positive: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Gets the max time to wait for the next available connection while
+     * a pool is exhausted.
+     *
+     * @return the max time to wait for a connection, or {@link #BLOCK_FOREVER}.
+     */
+    public int getMaxWaitTimeWhenExhausted() {
+        return maxWaitTimeWhenExhausted;
+    }
+
+    /**
+     * Sets the max time to wait for the next available connection while
+     * a pool is exhausted.
+     *
+     * @param maxWaitTimeWhenExhausted the max time to wait for a connection,
+     * or {@link #BLOCK_FOREVER}.
+     */
+    public void setMaxWaitTimeWhenExhausted(int maxWaitTimeWhenExhausted) {
+        this.maxWaitTimeWhenExhausted = maxWaitTimeWhenExhausted;
+    }
+
+    /**
+     * Gets the time in milliseconds a connection can sit idle before it
+     * becomes eligible for eviction.
+     *
+     * @return the idle timeout in milliseconds.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds a connection can sit idle before it
+     * becomes eligible for eviction.  A value equal to or less than zero
+     * disables idle eviction.
+     *
+     * @param idleTimeout the idle timeout in milliseconds.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Gets the time in milliseconds between runs of the idle connection
+     * evictor.
+     *
+     * @return the eviction interval in milliseconds.
+     */
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds between runs of the idle connection
+     * evictor.
+     *
+     * @param evictionInterval the eviction interval in milliseconds.
+     */
+    public void setEvictionInterval(long evictionInterval) {
+        if (evictionInterval <= 0) {
+            throw new IllegalArgumentException("eviction interval must be positive: " + evictionInterval);
+        }
+        this.evictionInterval = evictionInterval;
+    }
+
+    /**
+     * Gets the time in milliseconds between runs of the idle connection
+     * validator.
+     *
+     * @return the validation interval in milliseconds.
+     */
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Sets the time in milliseconds between runs of the idle connection
+     * validator.  A value equal to or less than zero disables background
+     * validation.
+     *
+     * @param validationInterval the validation interval in milliseconds.
+     */
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * Gets the time in milliseconds a connection must have been idle
+     * before it is actively validated.
+     *
+     * @return the validation idle threshold in milliseconds.
+     */
+    public long getValidationIdleThreshold() {
+        return validationIdleThreshold;
+    }
+
+    /**
+     * Sets the time in milliseconds a connection must have been idle
+     * before it is actively validated.  Connections used more recently
+     * than this threshold are assumed to be healthy.
+     *
+     * @param validationIdleThreshold the validation idle threshold in
+     * milliseconds.
+     */
+    public void setValidationIdleThreshold(long validationIdleThreshold) {
+        if (validationIdleThreshold < 0) {
+            throw new IllegalArgumentException("validation idle threshold cannot be negative: "
+                    + validationIdleThreshold);
+        }
+        this.validationIdleThreshold = validationIdleThreshold;
+    }
+
+    /**
+     * Returns <tt>true</tt> if idle connections are actively validated
+     * before they are handed to a borrower.
+     *
+     * @return <tt>true</tt> if connections are validated on borrow;
+     * otherwise <tt>false</tt>.
+     */
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    /**
+     * Sets whether idle connections are actively validated before they are
+     * handed to a borrower.  Only connections idle longer than the
+     * validation idle threshold are validated.
+     *
+     * @param validateOnBorrow <tt>true</tt> to validate connections on borrow.
+     */
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    /**
+     * Gets the max amount of threads a pool opens its initial connections
+     * with.
+     *
+     * @return the max amount of warm-up threads.
+     */
+    public int getWarmUpThreads() {
+        return warmUpThreads;
+    }
+
+    /**
+     * Sets the max amount of threads a pool opens its initial connections
+     * with.
+     *
+     * @param warmUpThreads the max amount of warm-up threads.
+     */
+    public void setWarmUpThreads(int warmUpThreads) {
+        if (warmUpThreads <= 0) {
+            throw new IllegalArgumentException("warm-up threads must be positive: " + warmUpThreads);
+        }
+        this.warmUpThreads = warmUpThreads;
+    }
+
+    /**
+     * Returns <tt>true</tt> if a pool is usable as soon as its first
+     * connection is open.
+     *
+     * @return <tt>true</tt> if initial connections open in the background;
+     * otherwise <tt>false</tt>.
+     */
+    public boolean isBackgroundWarmUp() {
+        return backgroundWarmUp;
+    }
+
+    /**
+     * Sets whether a pool is usable as soon as its first connection is
+     * open, while the rest of its initial connections open in the background.
+     *
+     * @param backgroundWarmUp <tt>true</tt> to open initial connections in
+     * the background.
+     */
+    public void setBackgroundWarmUp(boolean backgroundWarmUp) {
+        this.backgroundWarmUp = backgroundWarmUp;
+    }
+
+    /**
+     * Gets the time in milliseconds a connection may stay open before it
+     * is closed on release.
+     *
+     * @return the max age of a connection, or a value equal to or less than
+     * zero if connections are not aged.
+     */
+    public long getMaxConnectionAge() {
+        return maxConnectionAge;
+    }
+
+    /**
+     * Sets the time in milliseconds a connection may stay open before it
+     * is closed on release.  Rotating connections lets a pool rebalance
+     * across coordinators after the cluster changes.
+     *
+     * @param maxConnectionAge the max age of a connection, or a value equal
+     * to or less than zero to let connections live as long as they are valid.
+     */
+    public void setMaxConnectionAge(long maxConnectionAge) {
+        this.maxConnectionAge = maxConnectionAge;
+    }
+
+    /**
+     * Gets the time in milliseconds a connection waits for its socket to
+     * connect and for every read.
+     *
+     * @return the socket timeout, or zero if connections wait forever.
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds a connection waits for its socket to
+     * connect and for every read.  Without a timeout a node that stops
+     * responding blocks every thread that sends it a request, and never
+     * fails a request that could trip its circuit breaker.
+     *
+     * @param socketTimeout the socket timeout, or zero to wait forever.
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        if (socketTimeout < 0) {
+            throw new IllegalArgumentException("socket timeout cannot be negative: " + socketTimeout);
+        }
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Verifies that the settings of this pool config are consistent with
+     * each other.
+     *
+     * @throws IllegalArgumentException if the min amount of connections
+     * exceeds the max amount of connections.
+     */
+    public void validate() {
+        if (minConnections > maxConnections) {
+            throw new IllegalArgumentException("min connections (" + minConnections
+                    + ") cannot exceed max connections (" + maxConnections + ").");
+        }
+    }
+}
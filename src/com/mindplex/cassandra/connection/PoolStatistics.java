@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Borrow statistics of a connection pool.  Every borrow records how long
+ * the borrowing thread waited for a connection, which tells how much of an
+ * operation's latency comes from the pool rather than from Cassandra.
+ *
+ * @author Abel Perez
+ */
+public class PoolStatistics
+{
+    /**
+     * The amount of connections borrowed from the pool.
+     */
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    /**
+     * The amount of borrows that had to wait for a connection.
+     */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /**
+     * The amount of borrows that gave up waiting for a connection.
+     */
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    /**
+     * The total time in nanoseconds spent waiting for connections.
+     */
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    /**
+     * The longest time in nanoseconds a single borrow waited for a connection.
+     */
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * Records a borrow that waited the specified time for a connection.
+     *
+     * @param waitTime the time in nanoseconds the borrow waited.
+     */
+    public void recordBorrow(long waitTime) {
+        borrowCount.incrementAndGet();
+        if (waitTime <= 0) return;
+
+        waitCount.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+
+        long max = maxWaitTime.get();
+        while (waitTime > max && ! maxWaitTime.compareAndSet(max, waitTime)) {
+            max = maxWaitTime.get();
+        }
+    }
+
+    /**
+     * Records a borrow that gave up waiting for a connection.
+     */
+    public void recordTimeout() {
+        timeoutCount.incrementAndGet();
+    }
+
+    /**
+     * Gets the amount of connections borrowed from the pool.
+     *
+     * @return the amount of connections borrowed from the pool.
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * Gets the amount of borrows that had to wait for a connection.
+     *
+     * @return the amount of borrows that had to wait for a connection.
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Gets the amount of borrows that gave up waiting for a connection.
+     *
+     * @return the amount of borrows that gave up waiting for a connection.
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Gets the total time spent waiting for connections.
+     *
+     * @param unit the time unit of the returned value.
+     *
+     * @return the total time spent waiting for connections.
+     */
+    public long getTotalWaitTime(TimeUnit unit) {
+        return unit.convert(totalWaitTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the longest time a single borrow waited for a connection.
+     *
+     * @param unit the time unit of the returned value.
+     *
+     * @return the longest time a single borrow waited for a connection.
+     */
+    public long getMaxWaitTime(TimeUnit unit) {
+        return unit.convert(maxWaitTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the average time a borrow waited for a connection, across all
+     * borrows including the ones that did not wait.
+     *
+     * @param unit the time unit of the returned value.
+     *
+     * @return the average time a borrow waited for a connection.
+     */
+    public long getAverageWaitTime(TimeUnit unit) {
+        long borrows = borrowCount.get();
+        if (borrows == 0) return 0;
+        return unit.convert(totalWaitTime.get() / borrows, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override public String toString() {
+        return "[borrows:" + getBorrowCount()
+                + ", waits:" + getWaitCount()
+                + ", timeouts:" + getTimeoutCount()
+                + ", avg-wait-us:" + getAverageWaitTime(TimeUnit.MICROSECONDS)
+                + ", max-wait-us:" + getMaxWaitTime(TimeUnit.MICROSECONDS) + "]";
+    }
+}
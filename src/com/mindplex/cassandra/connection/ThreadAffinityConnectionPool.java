@@ -0,0 +1,753 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.connection;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.mindplex.cassandra.CassandraNode;
+import com.mindplex.util.Check;
+import com.mindplex.util.NamedThreadFactory;
+
+/**
+ * A connection pool that avoids a shared lock on the borrow and release
+ * path.  Every connection in this pool is wrapped in an entry whose state
+ * is claimed with a compare-and-set.  A borrowing thread first tries the
+ * connections it released most recently, then scans the shared array of
+ * entries, and only when both fail does it wait on a hand-off queue that
+ * releasing threads feed directly.
+ *
+ * <p>Under heavy contention most borrows are satisfied by the calling
+ * thread's own list without touching any shared state besides the claimed
+ * entry.  This pool honors the same {@link PoolConfig} settings as
+ * {@link CassandraConnectionPool}, including the parallel warm-up and the
+ * max connection age, so both can be swapped for one another.
+ *
+ * <p>The affinity only pays off for long lived threads.  Virtual threads
+ * are created per task and never borrow twice, so gateways that run on
+ * virtual threads are better served by {@link CassandraConnectionPool}.
+ *
+ * @author Abel Perez
+ */
+public class ThreadAffinityConnectionPool<T extends Connection<?>> implements ConnectionPool<T>
+{
+    /**
+     * The default logger for this connection pool.
+     */
+    private static final Logger logger = Logger.getLogger(ThreadAffinityConnectionPool.class);
+
+    /**
+     * The max amount of recently released connections each thread remembers.
+     */
+    private static final int MAX_THREAD_LOCAL_ENTRIES = 16;
+
+    /**
+     * Entry state of a connection that is idle and can be claimed.
+     */
+    private static final int IDLE = 0;
+
+    /**
+     * Entry state of a connection that has been borrowed.
+     */
+    private static final int IN_USE = 1;
+
+    /**
+     * Entry state of a connection that is no longer part of this pool.
+     */
+    private static final int REMOVED = -1;
+
+    /**
+     * Every connection entry this pool owns, idle or borrowed.
+     */
+    private final CopyOnWriteArrayList<Entry<T>> entries = new CopyOnWriteArrayList<Entry<T>>();
+
+    /**
+     * The entry of each connection this pool owns, keyed by connection.
+     */
+    private final ConcurrentMap<T, Entry<T>> entriesByConnection = new ConcurrentHashMap<T, Entry<T>>();
+
+    /**
+     * The connections each thread released most recently.  Weak references
+     * keep a thread's list from holding on to connections removed from
+     * this pool.
+     */
+    private final ThreadLocal<List<WeakReference<Entry<T>>>> threadEntries =
+            new ThreadLocal<List<WeakReference<Entry<T>>>>()
+    {
+        @Override protected List<WeakReference<Entry<T>>> initialValue() {
+            return new ArrayList<WeakReference<Entry<T>>>(MAX_THREAD_LOCAL_ENTRIES);
+        }
+    };
+
+    /**
+     * The queue releasing threads use to hand connections directly to
+     * threads waiting on an exhausted pool.
+     */
+    private final SynchronousQueue<Entry<T>> handoff = new SynchronousQueue<Entry<T>>(true);
+
+    /**
+     * The amount of threads currently waiting for a connection.
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * The amount of connections this pool owns, including the connections
+     * that are currently being opened.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * The Cassandra node that connections in this pool point to.
+     */
+    private final CassandraNode node;
+
+    /**
+     * The sizing and timing settings of this pool.
+     */
+    private final PoolConfig config;
+
+    /**
+     * The connection factory this connection pool uses to create new connections.
+     */
+    private final ConnectionFactory<T> factory;
+
+    /**
+     * The borrow statistics of this pool.
+     */
+    private final PoolStatistics statistics = new PoolStatistics();
+
+    /**
+     * The progress of this pool opening its initial connections.
+     */
+    private final WarmUp warmUp;
+
+    /**
+     * The background task runner that evicts and validates idle connections
+     * in this pool.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Indicates that this pool has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructs this connection pool with the specified Cassandra node and
+     * connection factory and the default pool settings.
+     *
+     * @param node the Cassandra node this connection pool is associated with.
+     * @param factory factory for creating connections to store in this pool.
+     */
+    public ThreadAffinityConnectionPool(CassandraNode node, ConnectionFactory<T> factory) {
+        this(node, new PoolConfig(), factory);
+    }
+
+    /**
+     * Constructs this connection pool with the specified Cassandra node,
+     * pool settings and connection factory.  The min amount of connections
+     * defined by the specified pool settings are opened in parallel before
+     * this constructor returns, or, with a background warm-up, as soon as
+     * the first one is open.
+     *
+     * @param node the Cassandra node this connection pool is associated with.
+     * @param config the sizing and timing settings of this pool.
+     * @param factory factory for creating connections to store in this pool.
+     */
+    public ThreadAffinityConnectionPool(CassandraNode node, PoolConfig config,
+                                        ConnectionFactory<T> factory) {
+
+        Check.forNull(config).validate();
+
+        this.node = Check.forNull(node);
+        this.config = config;
+        this.factory = Check.forNull(factory);
+
+        warmUp = warmUp(config.getMinConnections());
+
+        if (config.getIdleTimeout() > 0 || config.getValidationInterval() > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("cassandra-pool-maintenance"));
+        } else {
+            scheduler = null;
+        }
+
+        if (config.getIdleTimeout() > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run() {
+                    evict();
+                }
+            }, config.getEvictionInterval(), config.getEvictionInterval(), TimeUnit.MILLISECONDS);
+        }
+
+        if (config.getValidationInterval() > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run() {
+                    try {
+                        validateIdle();
+                    } catch (RuntimeException exception) {
+                        logger.error("Failed to validate idle connections.", exception);
+                    }
+                }
+            }, config.getValidationInterval(), config.getValidationInterval(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the next available connection from this pool.  The connections
+     * the calling thread released most recently are tried first, then every
+     * connection in this pool, then a new connection is opened if this pool
+     * can still grow.  When this pool is exhausted this operation waits for
+     * a connection to be handed over by a releasing thread for the max wait
+     * time this pool has been configured for.
+     *
+     * @return a connection to Cassandra from this pool.
+     *
+     * @throws ConnectionException can occur if a connection cannot be
+     * acquired.
+     */
+    public T get() throws ConnectionException {
+
+        if (closed) {
+            throw new ConnectionException("Connection pool is closed.");
+        }
+
+        long waitTime = 0;
+
+        while (true) {
+            Entry<T> entry = claim();
+            if (entry == null) {
+                entry = grow();
+            }
+            if (entry == null) {
+                long start = System.nanoTime();
+                entry = await();
+                waitTime += System.nanoTime() - start;
+            }
+
+            if (config.isValidateOnBorrow()
+                    && System.currentTimeMillis() - entry.lastAccess >= config.getValidationIdleThreshold()
+                    && ! entry.connection.validate()) {
+
+                logger.warn("Discarding broken connection on borrow. ["
+                        + node.getHost() + ":" + node.getPort() + "]");
+                destroy(entry);
+                replenish();
+                continue;
+            }
+
+            statistics.recordBorrow(waitTime);
+            return entry.connection;
+        }
+    }
+
+    /**
+     * Returns the specified connection back to this pool.  If a thread is
+     * waiting for a connection, the specified connection is handed directly
+     * to it.  If the specified connection is no longer valid, then it is
+     * discarded and, if this pool has dropped below its min size, a new
+     * connection is created in its place.
+     *
+     * @param connection the connection to return back to this pool.
+     *
+     * @return <tt>true</tt> if the connection is successfully returned
+     * to this pool; otherwise <tt>false</tt>.
+     */
+    public boolean release(T connection) {
+
+        // no need to continue if the specified connection is bogus.
+        if (connection == null) return false;
+
+        Entry<T> entry = entriesByConnection.get(connection);
+        if (entry == null || entry.state.get() != IN_USE) return false;
+
+        // retire connections past their max age, so that they are
+        // reopened against the current cluster on demand.
+
+        if (closed || ! connection.isValid() || expired(entry)) {
+            destroy(entry);
+            return ! closed && replenish();
+        }
+
+        entry.lastAccess = System.currentTimeMillis();
+        entry.state.set(IDLE);
+
+        // hand the connection over to a thread that is polling for one, if
+        // any.  We never spin: a waiter that is not polling right now, or
+        // is busy opening a connection, claims the idle entry through its
+        // next scan of the shared entries.
+
+        if (waiters.get() > 0 && handoff.offer(entry)) {
+            return true;
+        }
+
+        List<WeakReference<Entry<T>>> local = threadEntries.get();
+        if (local.size() < MAX_THREAD_LOCAL_ENTRIES) {
+            local.add(new WeakReference<Entry<T>>(entry));
+        }
+        return true;
+    }
+
+    /**
+     * Removes the specified connection from this pool.  The specified
+     * connection is not closed, its ownership is handed over to the caller.
+     *
+     * @param connection the connection to remove from this pool.
+     */
+    public void remove(T connection) {
+        if (connection == null) return;
+
+        Entry<T> entry = entriesByConnection.remove(connection);
+        if (entry != null) {
+            entry.state.set(REMOVED);
+            entries.remove(entry);
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes this pool.  Idle connections are closed right away, borrowed
+     * connections are closed as they are released.
+     */
+    public void close() {
+        closed = true;
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        for (Entry<T> entry : entries) {
+            if (entry.state.compareAndSet(IDLE, IN_USE)) {
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * Gets the amount of connections this pool currently owns, idle or
+     * borrowed.
+     *
+     * @return the amount of connections this pool currently owns.
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Gets the sizing and timing settings of this pool.
+     *
+     * @return the sizing and timing settings of this pool.
+     */
+    public PoolConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the borrow statistics of this pool.
+     *
+     * @return the borrow statistics of this pool.
+     */
+    public PoolStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Gets the progress of this pool opening its initial connections.
+     *
+     * @return the warm-up progress of this pool.
+     */
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Gets the amount of threads currently waiting for a connection.
+     *
+     * @return the amount of threads currently waiting for a connection.
+     */
+    public int getWaiterCount() {
+        return waiters.get();
+    }
+
+    /**
+     * Closes the connections that have been idle longer than the idle
+     * timeout of this pool until this pool shrinks back to its min size.
+     */
+    protected void evict() {
+        long now = System.currentTimeMillis();
+
+        for (Entry<T> entry : entries) {
+            if (size.get() <= config.getMinConnections()) break;
+
+            if (now - entry.lastAccess >= config.getIdleTimeout()
+                    && entry.state.compareAndSet(IDLE, IN_USE)) {
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * Actively validates the idle connections that have been idle at least
+     * as long as the validation idle threshold of this pool.  Broken
+     * connections, and idle connections past the max connection age, are
+     * discarded and replaced before anyone borrows them.  Each connection
+     * is claimed while it's being validated, so borrowers never receive a
+     * connection mid-validation.
+     */
+    protected void validateIdle() {
+        long now = System.currentTimeMillis();
+
+        for (Entry<T> entry : entries) {
+            if (closed) break;
+
+            boolean expired = expired(entry);
+            if ((! expired && now - entry.lastAccess < config.getValidationIdleThreshold())
+                    || ! entry.state.compareAndSet(IDLE, IN_USE)) {
+                continue;
+            }
+
+            if (expired) {
+                destroy(entry);
+                replenish();
+                continue;
+            }
+
+            if (entry.connection.validate()) {
+                entry.state.set(IDLE);
+            } else {
+                logger.warn("Discarding broken idle connection. ["
+                        + node.getHost() + ":" + node.getPort() + "]");
+                destroy(entry);
+                replenish();
+            }
+        }
+    }
+
+    /**
+     * Claims an idle connection without waiting.  The connections the
+     * calling thread released most recently are tried first, newest first,
+     * since they are the most likely to be idle, then every connection in
+     * this pool.
+     *
+     * @return the entry of the claimed connection, or <tt>null</tt> if no
+     * connection is idle.
+     */
+    private Entry<T> claim() {
+        List<WeakReference<Entry<T>>> local = threadEntries.get();
+        for (int i = local.size() - 1; i >= 0; i--) {
+            Entry<T> entry = local.remove(i).get();
+            if (entry != null && entry.state.compareAndSet(IDLE, IN_USE)) {
+                return entry;
+            }
+        }
+
+        for (Entry<T> entry : entries) {
+            if (entry.state.compareAndSet(IDLE, IN_USE)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for a connection to be handed over by a releasing thread, or to
+     * be claimable through a scan, for the max wait time of this pool.
+     *
+     * @return the entry of the claimed connection.
+     *
+     * @throws ConnectionException if no connection becomes available in time,
+     * the pool is closed or the waiting thread is interrupted.
+     */
+    private Entry<T> await() throws ConnectionException {
+
+        int maxWaitTime = config.getMaxWaitTimeWhenExhausted();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitTime);
+
+        waiters.incrementAndGet();
+        try {
+            while (! closed) {
+
+                // wait in short slices so that connections released
+                // before we registered as a waiter and room freed up
+                // by discarded connections are not missed.
+
+                long timeout = TimeUnit.MILLISECONDS.toNanos(10);
+                if (maxWaitTime != PoolConfig.BLOCK_FOREVER) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    timeout = Math.min(timeout, remaining);
+                }
+
+                Entry<T> entry = handoff.poll(timeout, TimeUnit.NANOSECONDS);
+                if (entry != null && entry.state.compareAndSet(IDLE, IN_USE)) {
+                    return entry;
+                }
+
+                for (Entry<T> candidate : entries) {
+                    if (candidate.state.compareAndSet(IDLE, IN_USE)) {
+                        return candidate;
+                    }
+                }
+
+                entry = grow();
+                if (entry != null) {
+                    return entry;
+                }
+            }
+
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionException("Interrupted while acquiring connection. [wait-time:"
+                    + maxWaitTime + "]", exception);
+
+        } finally {
+            waiters.decrementAndGet();
+        }
+
+        // a pool closed while we were waiting is not a timeout.
+
+        if (closed) {
+            throw new ConnectionException("Connection pool is closed.");
+        }
+
+        statistics.recordTimeout();
+        throw new ConnectionException("Failed to acquire connection from pool.");
+    }
+
+    /**
+     * Opens the specified amount of initial connections in parallel, the
+     * same way {@link CassandraConnectionPool} does, and waits until all
+     * of them are open, or only until the first one is open when a
+     * background warm-up is configured.
+     *
+     * @param count the amount of connections to open.
+     *
+     * @return the progress of the warm-up.
+     *
+     * @throws ConnectionException if not a single connection could be opened,
+     * or if the calling thread is interrupted.
+     */
+    private WarmUp warmUp(int count) throws ConnectionException {
+
+        final WarmUp progress = new WarmUp(count);
+        if (count == 0) return progress;
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(count, config.getWarmUpThreads()),
+                new NamedThreadFactory("cassandra-pool-warmup"));
+
+        for (int i = 0; i < count; i++) {
+            size.incrementAndGet();
+            executor.execute(new Runnable()
+            {
+                public void run() {
+                    try {
+                        open().state.set(IDLE);
+                        progress.opened();
+
+                    } catch (RuntimeException exception) {
+                        logger.error("Failed to open connection during warm-up. ["
+                                + node.getHost() + ":" + node.getPort() + "]", exception);
+                        progress.failed(exception);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            if (config.isBackgroundWarmUp()) {
+                progress.awaitReady(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } else {
+                progress.awaitComplete(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+
+        } catch (InterruptedException exception) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new ConnectionException("Interrupted while warming up connection pool.", exception);
+        }
+
+        if (! progress.isReady()) {
+            throw new ConnectionException("Failed to open connection. ["
+                    + node.getHost() + ":" + node.getPort() + "]", progress.getFailure());
+        }
+
+        logger.info("Connection pool ready. [" + node.getHost() + ":" + node.getPort()
+                + ", warm-up:" + progress + "]");
+        return progress;
+    }
+
+    /**
+     * Opens a new connection, already claimed by the caller, if this pool
+     * has not reached its max size.
+     *
+     * @return the entry of a new connection, or <tt>null</tt> if this pool
+     * is at its max size.
+     */
+    private Entry<T> grow() throws ConnectionException {
+        while (true) {
+            int current = size.get();
+            if (current >= config.getMaxConnections()) {
+                return null;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                return open();
+            }
+        }
+    }
+
+    /**
+     * Adds a new idle connection to this pool if it has dropped below its
+     * min size.
+     *
+     * @return <tt>true</tt> if a new connection is added to this pool;
+     * otherwise <tt>false</tt>.
+     */
+    private boolean replenish() {
+        while (true) {
+            int current = size.get();
+            if (current >= config.getMinConnections()) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                try {
+                    open().state.set(IDLE);
+                    return true;
+
+                } catch (ConnectionException exception) {
+                    logger.error("Failed to replace broken connection.", exception);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection in a slot already reserved in {@link #size}.
+     * The entry of the new connection starts out claimed by the caller.
+     * If the connection cannot be opened the reserved slot is given back.
+     *
+     * @return the entry of a new valid connection.
+     *
+     * @throws ConnectionException can occur if a connection cannot be opened.
+     */
+    private Entry<T> open() throws ConnectionException {
+        T connection;
+        try {
+            connection = factory.create(node);
+
+        } catch (RuntimeException exception) {
+            size.decrementAndGet();
+            throw exception;
+        }
+
+        if (connection == null || ! connection.isValid()) {
+            size.decrementAndGet();
+            if (connection != null) factory.destroy(connection);
+            throw new ConnectionException("Failed to open connection. ["
+                    + node.getHost() + ":" + node.getPort() + "]");
+        }
+
+        Entry<T> entry = new Entry<T>(connection);
+        entriesByConnection.put(connection, entry);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the connection of the specified entry has
+     * been open longer than the configured max connection age.
+     *
+     * @param entry the entry of the connection to check.
+     *
+     * @return <tt>true</tt> if the connection should be retired; otherwise
+     * <tt>false</tt>.
+     */
+    private boolean expired(Entry<T> entry) {
+        long maxAge = config.getMaxConnectionAge();
+        return maxAge > 0 && System.currentTimeMillis() - entry.openedAt >= maxAge;
+    }
+
+    /**
+     * Closes the connection of the specified claimed entry and gives up its
+     * slot in this pool.
+     *
+     * @param entry the entry of the connection to close.
+     */
+    private void destroy(Entry<T> entry) {
+        entry.state.set(REMOVED);
+        if (entriesByConnection.remove(entry.connection) != null) {
+            entries.remove(entry);
+            size.decrementAndGet();
+        }
+        try {
+            factory.destroy(entry.connection);
+
+        } catch (Exception exception) {
+            logger.error("Failed to close connection.", exception);
+        }
+    }
+
+    /**
+     * A connection owned by this pool along with its claim state.
+     */
+    private static class Entry<T>
+    {
+        /**
+         * The pooled connection.
+         */
+        final T connection;
+
+        /**
+         * The claim state of the pooled connection, one of {@code IDLE},
+         * {@code IN_USE} or {@code REMOVED}.
+         */
+        final AtomicInteger state = new AtomicInteger(IN_USE);
+
+        /**
+         * The last time the pooled connection was returned to the pool.
+         */
+        volatile long lastAccess = System.currentTimeMillis();
+
+        /**
+         * The time the pooled connection was opened.
+         */
+        final long openedAt = System.currentTimeMillis();
+
+        /**
+         * Constructs this entry with the specified connection.
+         *
+         * @param connection the pooled connection.
+         */
+        Entry(T connection) {
+            this.connection = connection;
+        }
+    }
+}
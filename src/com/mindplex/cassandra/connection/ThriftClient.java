@@ -24,7 +24,6 @@ import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 
 /**
- * TODO: add connection timeout
  * TODO: option for setting framed transport
  *
  * @author Abel Perez
@@ -63,6 +62,12 @@ public class ThriftClient //implements Connection<T>
      */
     private String keyspace;
 
+    /**
+     * The time in milliseconds to wait for the socket to connect and for
+     * every read, or zero to wait forever.
+     */
+    private int timeout;
+
     /**
      * The underlying thrift transport for this connection.
      */
@@ -92,6 +97,20 @@ public class ThriftClient //implements Connection<T>
      * @param keyspace the keyspace this connection is associated with.
      */
     private ThriftClient(String host, int port, String keyspace) {
+        this(host, port, keyspace, 0);
+    }
+
+    /**
+     * Constructs a new connection with the specified host, port, keyspace
+     * and socket timeout.
+     *
+     * @param host the host this connection points to.
+     * @param port the port this connection  points to.
+     * @param keyspace the keyspace this connection is associated with.
+     * @param timeout the time in milliseconds to wait for the socket to
+     * connect and for every read, or zero to wait forever.
+     */
+    private ThriftClient(String host, int port, String keyspace, int timeout) {
 
         if (host == null || "".equals(host)) {
             throw new IllegalArgumentException("host cannot be empty: " + host);
@@ -102,10 +121,14 @@ public class ThriftClient //implements Connection<T>
         if (keyspace == null || "".equals(host)) {
             throw new IllegalArgumentException("keyspace cannot be empty: " + keyspace);
         }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout cannot be negative: " + timeout);
+        }
 
         this.host = host;
         this.port = port;
         this.keyspace = keyspace;
+        this.timeout = timeout;
     }
     
     /**
@@ -134,6 +157,23 @@ public class ThriftClient //implements Connection<T>
         return new ThriftClient(host, port, keyspace);
     }
 
+    /**
+     * Creates a new connection with the specified host, port, keyspace
+     * and socket timeout.  A socket timeout keeps a request to a node that
+     * stopped responding from blocking its thread indefinitely.
+     *
+     * @param host the host this connection points to.
+     * @param port the port this connection  points to.
+     * @param keyspace the keyspace this connection is associated with.
+     * @param timeout the time in milliseconds to wait for the socket to
+     * connect and for every read, or zero to wait forever.
+     *
+     * @return connection based on the specified parameters.
+     */
+    public static ThriftClient getInstance(String host, int port, String keyspace, int timeout) {
+        return new ThriftClient(host, port, keyspace, timeout);
+    }
+
     /**
      * Checks if this connection is open by verifying that the underlying
      * client wrapped by this connection is valid and the thrift transport
@@ -165,7 +205,7 @@ public class ThriftClient //implements Connection<T>
 
         try {
             // create and open new framed transport.
-            transport = new TFramedTransport(new TSocket(host, port));
+            transport = new TFramedTransport(new TSocket(host, port, timeout));
             transport.open();
 
         } catch (Exception exception) {
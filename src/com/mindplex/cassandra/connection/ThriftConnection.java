@@ -14,6 +14,8 @@
 
 package com.mindplex.cassandra.connection;
 
+import org.apache.log4j.Logger;
+
 import com.mindplex.cassandra.CassandraNode;
 
 /**
@@ -23,6 +25,11 @@ import com.mindplex.cassandra.CassandraNode;
  */
 public class ThriftConnection implements Connection<ThriftClient>
 {
+    /**
+     * The default logger for this connection.
+     */
+    private static final Logger logger = Logger.getLogger(ThriftConnection.class);
+
     /**
      * The target resource this connection holds.
      */
@@ -35,7 +42,7 @@ public class ThriftConnection implements Connection<ThriftClient>
      */
     public ThriftConnection(String keyspace) {
         connection = ThriftClient.getInstance(keyspace);
-        connection.open();
+        connect();
     }
 
     /**
@@ -44,8 +51,39 @@ public class ThriftConnection implements Connection<ThriftClient>
      * @param node the Cassandra node to associate this connection with.
      */
     public ThriftConnection(CassandraNode node) {
-        connection = ThriftClient.getInstance(node.getKeyspace());
+        this(node, 0);
+    }
+
+    /**
+     * Constructs this connection with the specified Cassandra node and
+     * socket timeout.
+     *
+     * @param node the Cassandra node to associate this connection with.
+     * @param timeout the time in milliseconds to wait for the socket to
+     * connect and for every read, or zero to wait forever.
+     */
+    public ThriftConnection(CassandraNode node, int timeout) {
+        connection = ThriftClient.getInstance(node.getHost(), node.getPort(), node.getKeyspace(), timeout);
+        connect();
+    }
+
+    /**
+     * Opens the underlying client and sets its keyspace right away, so
+     * that the keyspace round trip is paid when this connection is created
+     * rather than by the first request that uses it.
+     *
+     * @throws ConnectionException if the client cannot be opened or its
+     * keyspace cannot be set.
+     */
+    private void connect() throws ConnectionException {
         connection.open();
+        try {
+            connection.getClient();
+
+        } catch (ConnectionException exception) {
+            connection.close();
+            throw exception;
+        }
     }
 
     /**
@@ -55,6 +93,24 @@ public class ThriftConnection implements Connection<ThriftClient>
         return connection.isOpen();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The round trip is a {@code describe_version} call, which is served
+     * by the node without touching any data.
+     */
+    public boolean validate() {
+        if (! connection.isOpen()) return false;
+        try {
+            connection.getClient().describe_version();
+            return true;
+
+        } catch (Exception exception) {
+            logger.warn("Connection failed validation.", exception);
+            return false;
+        }
+    }
+
     /**
      *{@inheritDoc}
      */
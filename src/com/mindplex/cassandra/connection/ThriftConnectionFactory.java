@@ -23,6 +23,32 @@ import com.mindplex.cassandra.CassandraNode;
  */
 public class ThriftConnectionFactory implements ConnectionFactory<ThriftConnection>
 {
+    /**
+     * The socket timeout in milliseconds of the connections created by
+     * this factory, or zero to wait forever.
+     */
+    private final int timeout;
+
+    /**
+     * Constructs this factory for connections without a socket timeout.
+     */
+    public ThriftConnectionFactory() {
+        this(0);
+    }
+
+    /**
+     * Constructs this factory with the specified socket timeout.
+     *
+     * @param timeout the time in milliseconds connections wait for their
+     * socket to connect and for every read, or zero to wait forever.
+     */
+    public ThriftConnectionFactory(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout cannot be negative: " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
     /**
      *{@inheritDoc}
      */
@@ -41,7 +67,7 @@ public class ThriftConnectionFactory implements ConnectionFactory<ThriftConnecti
      *{@inheritDoc}
      */
     public ThriftConnection create(CassandraNode node) {
-        return new ThriftConnection(node.getKeyspace());
+        return new ThriftConnection(node, timeout);
     }
 
     /**
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.connection;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the progress of a connection pool opening its initial connections.
+ * A pool is ready once its first connection is open, and its warm-up is
+ * complete once every initial connection has either opened or failed.
+ *
+ * @author Abel Perez
+ */
+public class WarmUp
+{
+    /**
+     * The amount of connections this warm-up opens.
+     */
+    private final int target;
+
+    /**
+     * The amount of connections opened so far.
+     */
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * The amount of connections that failed to open so far.
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Released once the first connection is open, or once every connection
+     * has failed.
+     */
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    /**
+     * Released once every connection has either opened or failed.
+     */
+    private final CountDownLatch complete = new CountDownLatch(1);
+
+    /**
+     * The time this warm-up started, in nanoseconds.
+     */
+    private final long start = System.nanoTime();
+
+    /**
+     * The time in nanoseconds it took to open the first connection.
+     */
+    private volatile long readyTime = -1;
+
+    /**
+     * The time in nanoseconds it took to complete this warm-up.
+     */
+    private volatile long warmUpTime = -1;
+
+    /**
+     * The first failure that occurred while opening a connection.
+     */
+    private volatile Exception failure;
+
+    /**
+     * Constructs this warm-up for the specified amount of connections.
+     *
+     * @param target the amount of connections this warm-up opens.
+     */
+    public WarmUp(int target) {
+        this.target = target;
+        if (target == 0) {
+            readyTime = 0;
+            warmUpTime = 0;
+            ready.countDown();
+            complete.countDown();
+        }
+    }
+
+    /**
+     * Records that a connection opened.
+     */
+    void opened() {
+        if (opened.incrementAndGet() == 1) {
+            readyTime = System.nanoTime() - start;
+            ready.countDown();
+        }
+        progress();
+    }
+
+    /**
+     * Records that a connection failed to open.
+     *
+     * @param exception the reason the connection failed to open.
+     */
+    void failed(Exception exception) {
+        if (failure == null) {
+            failure = exception;
+        }
+        failed.incrementAndGet();
+        progress();
+    }
+
+    /**
+     * Releases the waiting threads once every connection has either opened
+     * or failed.
+     */
+    private void progress() {
+        if (opened.get() + failed.get() == target) {
+            warmUpTime = System.nanoTime() - start;
+            ready.countDown();
+            complete.countDown();
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if at least one connection is open, or if no
+     * connections were to be opened at all.
+     *
+     * @return <tt>true</tt> if the pool can serve requests without opening
+     * a connection first; otherwise <tt>false</tt>.
+     */
+    public boolean isReady() {
+        return target == 0 || opened.get() > 0;
+    }
+
+    /**
+     * Returns <tt>true</tt> if every connection has either opened or failed.
+     *
+     * @return <tt>true</tt> if this warm-up is complete; otherwise <tt>false</tt>.
+     */
+    public boolean isComplete() {
+        return complete.getCount() == 0;
+    }
+
+    /**
+     * Waits until the first connection is open or every connection has failed.
+     *
+     * @param timeout the max time to wait.
+     * @param unit the time unit of the timeout.
+     *
+     * @return <tt>true</tt> if at least one connection is open; otherwise
+     * <tt>false</tt>.
+     *
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        ready.await(timeout, unit);
+        return isReady();
+    }
+
+    /**
+     * Waits until every connection has either opened or failed.
+     *
+     * @param timeout the max time to wait.
+     * @param unit the time unit of the timeout.
+     *
+     * @return <tt>true</tt> if this warm-up is complete; otherwise <tt>false</tt>.
+     *
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public boolean awaitComplete(long timeout, TimeUnit unit) throws InterruptedException {
+        return complete.await(timeout, unit);
+    }
+
+    /**
+     * Gets the amount of connections this warm-up opens.
+     *
+     * @return the amount of connections this warm-up opens.
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * Gets the amount of connections opened so far.
+     *
+     * @return the amount of connections opened so far.
+     */
+    public int getOpenedCount() {
+        return opened.get();
+    }
+
+    /**
+     * Gets the amount of connections that failed to open so far.
+     *
+     * @return the amount of connections that failed to open so far.
+     */
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Gets the first failure that occurred while opening a connection.
+     *
+     * @return the first failure, or <tt>null</tt> if no connection failed.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Gets the time it took to open the first connection.
+     *
+     * @param unit the time unit of the returned value.
+     *
+     * @return the time it took to become ready, or <tt>-1</tt> if no
+     * connection is open yet.
+     */
+    public long getReadyTime(TimeUnit unit) {
+        long time = readyTime;
+        return time < 0 ? -1 : unit.convert(time, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the time it took to complete this warm-up.
+     *
+     * @param unit the time unit of the returned value.
+     *
+     * @return the time it took to complete this warm-up, or <tt>-1</tt> if
+     * it's still in progress.
+     */
+    public long getWarmUpTime(TimeUnit unit) {
+        long time = warmUpTime;
+        return time < 0 ? -1 : unit.convert(time, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override public String toString() {
+        return "[target:" + target
+                + ", opened:" + getOpenedCount()
+                + ", failed:" + getFailedCount()
+                + ", ready-ms:" + getReadyTime(TimeUnit.MILLISECONDS)
+                + ", warm-up-ms:" + getWarmUpTime(TimeUnit.MILLISECONDS) + "]";
+    }
+}
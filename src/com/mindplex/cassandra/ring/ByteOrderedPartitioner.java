@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.ring;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The client side counterpart of Cassandra's {@code ByteOrderedPartitioner}.
+ * The token of a row key is the key itself.  Tokens are represented by
+ * their lower case hex encoding, as printed by {@code describe_ring}, which
+ * compares exactly like the unsigned bytes it encodes.
+ *
+ * @author Abel Perez
+ */
+public class ByteOrderedPartitioner extends Partitioner<String>
+{
+    /**
+     * The hex digits tokens are encoded with.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getToken(ByteBuffer key) {
+        StringBuilder token = new StringBuilder(key.remaining() * 2);
+        for (int i = key.position(); i < key.limit(); i++) {
+            int value = key.get(i) & 0xff;
+            token.append(HEX[value >> 4]).append(HEX[value & 0x0f]);
+        }
+        return token.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String parseToken(String token) {
+        return token.toLowerCase();
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.ring;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A client side counterpart of a Cassandra partitioner.  A partitioner
+ * computes the token of a row key exactly the way the cluster does, which
+ * allows the client to find the replicas that own a row without asking a
+ * coordinator node.
+ *
+ * @author Abel Perez
+ */
+public abstract class Partitioner<T extends Comparable<T>>
+{
+    /**
+     * The class name of Cassandra's random partitioner.
+     */
+    public static final String RANDOM = "org.apache.cassandra.dht.RandomPartitioner";
+
+    /**
+     * The class name of Cassandra's byte ordered partitioner.
+     */
+    public static final String BYTE_ORDERED = "org.apache.cassandra.dht.ByteOrderedPartitioner";
+
+    /**
+     * Computes the token of the specified row key.  The position of the
+     * specified buffer is not altered.
+     *
+     * @param key the row key to compute the token of.
+     *
+     * @return the token of the specified row key.
+     */
+    public abstract T getToken(ByteBuffer key);
+
+    /**
+     * Parses the specified token, as returned by {@code describe_ring}.
+     *
+     * @param token the string representation of a token.
+     *
+     * @return the parsed token.
+     */
+    public abstract T parseToken(String token);
+
+    /**
+     * Formats the specified token the way Cassandra expects it in a
+     * {@code KeyRange}.
+     *
+     * @param token the token to format.
+     *
+     * @return the string representation of the specified token.
+     */
+    public String toString(T token) {
+        return token.toString();
+    }
+
+    /**
+     * Computes the token of the specified row key, formatted the way
+     * Cassandra expects it in a {@code KeyRange}.
+     *
+     * @param key the row key to compute the token of.
+     *
+     * @return the string representation of the token of the row key.
+     */
+    public String getTokenString(ByteBuffer key) {
+        return toString(getToken(key));
+    }
+
+    /**
+     * Gets the client side partitioner for the specified Cassandra
+     * partitioner class name, as returned by {@code describe_partitioner}.
+     *
+     * @param className the class name of a Cassandra partitioner.
+     *
+     * @return the client side partitioner, or <tt>null</tt> if the specified
+     * partitioner is not supported.
+     */
+    public static Partitioner<?> forName(String className) {
+        if (RANDOM.equals(className)) {
+            return new RandomPartitioner();
+        }
+        if (BYTE_ORDERED.equals(className)) {
+            return new ByteOrderedPartitioner();
+        }
+        return null;
+    }
+}
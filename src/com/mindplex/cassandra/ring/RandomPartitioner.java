@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.ring;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The client side counterpart of Cassandra's {@code RandomPartitioner}.
+ * The token of a row key is the absolute value of the MD5 digest of the
+ * key, read as a signed big integer.
+ *
+ * @author Abel Perez
+ */
+public class RandomPartitioner extends Partitioner<BigInteger>
+{
+    /**
+     * A digest per thread, since message digests are not thread safe.
+     */
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>()
+    {
+        @Override protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+
+            } catch (NoSuchAlgorithmException exception) {
+                throw new IllegalStateException("MD5 is not supported.", exception);
+            }
+        }
+    };
+
+    /**
+     * {@inheritDoc}
+     */
+    public BigInteger getToken(ByteBuffer key) {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        digest.update(key.duplicate());
+        return new BigInteger(digest.digest()).abs();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BigInteger parseToken(String token) {
+        return new BigInteger(token);
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.cassandra.ring;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.cassandra.thrift.TokenRange;
+
+import com.mindplex.util.Check;
+
+/**
+ * A client side map of a keyspace's token ring, built from the token ranges
+ * returned by {@code describe_ring}.  Every range {@code (start, end]} is
+ * keyed by its end token, so the replicas that own a row are found with a
+ * single ceiling lookup of the row's token, wrapping around to the first
+ * range past the last token.
+ *
+ * @author Abel Perez
+ */
+public class TokenRing<T extends Comparable<T>>
+{
+    /**
+     * The partitioner that computes the tokens of row keys.
+     */
+    private final Partitioner<T> partitioner;
+
+    /**
+     * The replica endpoints of every token range, keyed by the end token
+     * of the range.
+     */
+    private final TreeMap<T, List<String>> ring = new TreeMap<T, List<String>>();
+
+    /**
+     * The token ranges this ring was built from.
+     */
+    private final List<TokenRange> ranges;
+
+    /**
+     * Constructs this ring with the specified partitioner and the token
+     * ranges of a keyspace.
+     *
+     * @param partitioner the partitioner the cluster uses.
+     * @param ranges the token ranges of a keyspace, as returned by
+     * {@code describe_ring}.
+     */
+    public TokenRing(Partitioner<T> partitioner, List<TokenRange> ranges) {
+        this.partitioner = Check.forNull(partitioner);
+        this.ranges = Collections.unmodifiableList(new ArrayList<TokenRange>(Check.forNull(ranges)));
+
+        for (TokenRange range : ranges) {
+            ring.put(partitioner.parseToken(range.getEnd_token()),
+                    Collections.unmodifiableList(new ArrayList<String>(range.getEndpoints())));
+        }
+    }
+
+    /**
+     * Creates a ring for the specified partitioner class name and token
+     * ranges.
+     *
+     * @param partitioner the class name of the partitioner the cluster uses,
+     * as returned by {@code describe_partitioner}.
+     * @param ranges the token ranges of a keyspace.
+     *
+     * @return a new ring, or <tt>null</tt> if the specified partitioner is
+     * not supported.
+     */
+    @SuppressWarnings("unchecked")
+    public static TokenRing<?> create(String partitioner, List<TokenRange> ranges) {
+        Partitioner<?> target = Partitioner.forName(partitioner);
+        if (target == null) {
+            return null;
+        }
+        return new TokenRing(target, ranges);
+    }
+
+    /**
+     * Gets the replica endpoints that own the row with the specified key.
+     *
+     * @param key the row key.
+     *
+     * @return the replica endpoints that own the row, primary replica first.
+     */
+    public List<String> getReplicas(ByteBuffer key) {
+        return getReplicas(partitioner.getToken(key));
+    }
+
+    /**
+     * Gets the replica endpoints that own the specified token.
+     *
+     * @param token the token to look up.
+     *
+     * @return the replica endpoints that own the token, primary replica first.
+     */
+    public List<String> getReplicas(T token) {
+        if (ring.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map.Entry<T, List<String>> entry = ring.ceilingEntry(token);
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Gets every endpoint that owns a part of this ring.
+     *
+     * @return every endpoint in this ring.
+     */
+    public Set<String> getEndpoints() {
+        Set<String> endpoints = new LinkedHashSet<String>();
+        for (List<String> replicas : ring.values()) {
+            endpoints.addAll(replicas);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Gets the token ranges this ring was built from.
+     *
+     * @return the token ranges of this ring.
+     */
+    public List<TokenRange> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Gets the partitioner that computes the tokens of row keys.
+     *
+     * @return the partitioner of this ring.
+     */
+    public Partitioner<T> getPartitioner() {
+        return partitioner;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+/**
+ * A load balanced list that tracks how many uses of each of its elements
+ * are in flight.  Every element acquired from such a list must be released
+ * back to it once it's no longer in use.
+ *
+ * @author Abel Perez
+ */
+public interface Acquirable<E>
+{
+    /**
+     * Picks the next element in line and marks it as in use.
+     *
+     * @return the acquired element, or <tt>null</tt> if this list is empty.
+     */
+    public E acquire();
+
+    /**
+     * Marks the specified element as in use, for elements the caller
+     * picked without consulting this list.
+     *
+     * @param element the element to acquire.
+     *
+     * @return <tt>true</tt> if the element is contained in this list and
+     * acquired; otherwise <tt>false</tt>.
+     */
+    public boolean acquire(E element);
+
+    /**
+     * Marks one use of the specified element as finished.
+     *
+     * @param element the element to release.
+     */
+    public void release(E element);
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free Bloom filter.  A Bloom filter answers whether an element may
+ * have been added to it: a negative answer is always right, a positive
+ * answer is wrong at the false positive rate the filter was sized for, as
+ * long as no more elements than its capacity have been added.  Elements
+ * cannot be removed, only the whole filter can be cleared.
+ *
+ * <p>The bit positions of an element are derived from its hash code by
+ * double hashing, so elements must have well distributed hash codes.
+ *
+ * @author Abel Perez
+ */
+public class BloomFilter<E>
+{
+    /**
+     * The bits of this filter, sixty four to a long.
+     */
+    private final AtomicLongArray bits;
+
+    /**
+     * The amount of bits of this filter.
+     */
+    private final int size;
+
+    /**
+     * The amount of bits set per element.
+     */
+    private final int hashes;
+
+    /**
+     * The amount of elements this filter was sized for.
+     */
+    private final int capacity;
+
+    /**
+     * The amount of elements added since this filter was last cleared.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Constructs this filter for the specified amount of elements and
+     * false positive rate.
+     *
+     * @param capacity the amount of elements this filter is sized for.
+     * @param falsePositiveRate the rate of false positives at capacity,
+     * between zero and one exclusive.
+     */
+    public BloomFilter(int capacity, double falsePositiveRate) {
+        if (capacity <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("invalid bloom filter [capacity: " + capacity
+                    + ", falsePositiveRate: " + falsePositiveRate + "]");
+        }
+
+        // the optimal amount of bits is -n ln p / (ln 2)^2, and the
+        // optimal amount of hashes is the bits per element times ln 2.
+
+        long optimal = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min((optimal + 63) / 64, Integer.MAX_VALUE / 64);
+
+        this.bits = new AtomicLongArray(words);
+        this.size = words * 64;
+        this.hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds the specified element.
+     *
+     * @param element the element to add.
+     */
+    public void put(E element) {
+        long hash = mix(element.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 0; i < hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current & mask) != 0) break;
+            } while (! bits.compareAndSet(word, current, current | mask));
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified element may have been added.
+     *
+     * @param element the element to check.
+     *
+     * @return <tt>false</tt> if the element has definitely not been added;
+     * otherwise <tt>true</tt>.
+     */
+    public boolean mightContain(E element) {
+        long hash = mix(element.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 0; i < hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes every element.
+     */
+    public void clear() {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0);
+        }
+        count.set(0);
+    }
+
+    /**
+     * Gets the amount of elements added since this filter was last cleared.
+     *
+     * @return the amount of elements added.
+     */
+    public int getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the amount of elements this filter was sized for.
+     *
+     * @return the capacity of this filter.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Mixes the bits of a hash code into a 64 bit hash, the low and high
+     * halves of which are the two hashes of double hashing.
+     *
+     * @param hash the hash code to mix.
+     *
+     * @return the mixed hash.
+     */
+    private static long mix(int hash) {
+        long mixed = hash * 0x9e3779b97f4a7c15L;
+        mixed ^= mixed >>> 32;
+        mixed *= 0xbf58476d1ce4e5b9L;
+        mixed ^= mixed >>> 29;
+        return mixed | 1L << 32;
+    }
+}
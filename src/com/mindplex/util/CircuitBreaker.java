@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A circuit breaker that passively detects a failing resource.  The
+ * breaker starts out closed and lets every request through.  After a
+ * number of consecutive failures it opens and rejects every request for a
+ * backoff period.  Once the backoff has passed the breaker is half open
+ * and lets a limited number of probe requests through: if enough probes
+ * succeed the breaker closes again, if any probe fails the breaker opens
+ * again with twice the backoff, up to a max backoff.
+ *
+ * <p>This breaker is safe for concurrent use.
+ *
+ * @author Abel Perez
+ */
+public class CircuitBreaker
+{
+    /**
+     * The states a circuit breaker can be in.
+     */
+    public static enum State
+    {
+        /**
+         * Every request is let through.
+         */
+        CLOSED,
+
+        /**
+         * Every request is rejected until the backoff has passed.
+         */
+        OPEN,
+
+        /**
+         * A limited number of probe requests are let through.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The default amount of consecutive failures that open a breaker.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The default time in milliseconds a breaker stays open the first time.
+     */
+    public static final long DEFAULT_BACKOFF = 5000;
+
+    /**
+     * The default max time in milliseconds a breaker stays open.
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 120000;
+
+    /**
+     * The default amount of successful probes that close a half open breaker.
+     */
+    public static final int DEFAULT_PROBES = 3;
+
+    /**
+     * The lock that guards the state of this breaker.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The amount of consecutive failures that open this breaker.
+     */
+    private final int failureThreshold;
+
+    /**
+     * The time in nanoseconds this breaker stays open the first time.
+     */
+    private final long initialBackoff;
+
+    /**
+     * The max time in nanoseconds this breaker stays open.
+     */
+    private final long maxBackoff;
+
+    /**
+     * The amount of successful probes that close this breaker while it's
+     * half open, which is also the max amount of probes in flight.
+     */
+    private final int probes;
+
+    /**
+     * The current state of this breaker.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * The amount of consecutive failures while closed.
+     */
+    private int failures;
+
+    /**
+     * The time in nanoseconds this breaker stays open the next time it opens.
+     */
+    private long backoff;
+
+    /**
+     * The time in nanoseconds this breaker was last opened at.
+     */
+    private long openedAt;
+
+    /**
+     * The amount of probes let through while half open that have not
+     * finished yet.
+     */
+    private int probesInFlight;
+
+    /**
+     * The amount of probes that succeeded while half open.
+     */
+    private int successes;
+
+    /**
+     * Constructs this breaker with the default settings.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_BACKOFF, DEFAULT_MAX_BACKOFF,
+                TimeUnit.MILLISECONDS, DEFAULT_PROBES);
+    }
+
+    /**
+     * Constructs this breaker with the specified settings.
+     *
+     * @param failureThreshold the amount of consecutive failures that open
+     * this breaker.
+     * @param backoff the time this breaker stays open the first time.
+     * @param maxBackoff the max time this breaker stays open.
+     * @param unit the time unit of the specified backoffs.
+     * @param probes the amount of successful probes that close this breaker.
+     */
+    public CircuitBreaker(int failureThreshold, long backoff, long maxBackoff, TimeUnit unit, int probes) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failure threshold must be positive: " + failureThreshold);
+        }
+        if (backoff <= 0 || maxBackoff < backoff) {
+            throw new IllegalArgumentException("invalid backoff: " + backoff + ", max: " + maxBackoff);
+        }
+        if (probes <= 0) {
+            throw new IllegalArgumentException("probes must be positive: " + probes);
+        }
+        this.failureThreshold = failureThreshold;
+        this.initialBackoff = unit.toNanos(backoff);
+        this.maxBackoff = unit.toNanos(maxBackoff);
+        this.probes = probes;
+        this.backoff = initialBackoff;
+    }
+
+    /**
+     * Asks this breaker to let a request through.  Every request let
+     * through must be followed by a call to {@link #recordSuccess()} or
+     * {@link #recordFailure()}.
+     *
+     * @return <tt>true</tt> if the request may proceed; otherwise <tt>false</tt>.
+     */
+    public boolean allowRequest() {
+        lock.lock();
+        try {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openedAt < backoff) return false;
+                state = State.HALF_OPEN;
+                probesInFlight = 0;
+                successes = 0;
+            }
+
+            if (state == State.HALF_OPEN) {
+                if (probesInFlight + successes >= probes) return false;
+                probesInFlight++;
+            }
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a request let through by this breaker succeeded.
+     *
+     * @return <tt>true</tt> if this breaker closed as a result; otherwise
+     * <tt>false</tt>.
+     */
+    public boolean recordSuccess() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                probesInFlight = Math.max(0, probesInFlight - 1);
+                if (++successes >= probes) {
+                    state = State.CLOSED;
+                    failures = 0;
+                    backoff = initialBackoff;
+                    return true;
+                }
+                return false;
+            }
+
+            failures = 0;
+            return false;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a request let through by this breaker failed.
+     *
+     * @return <tt>true</tt> if this breaker opened as a result; otherwise
+     * <tt>false</tt>.
+     */
+    public boolean recordFailure() {
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                backoff = Math.min(backoff * 2, maxBackoff);
+                open();
+                return true;
+            }
+
+            if (state == State.CLOSED && ++failures >= failureThreshold) {
+                open();
+                return true;
+            }
+            return false;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the current state of this breaker.  An open breaker whose
+     * backoff has passed is reported as open until the next request is let
+     * through.
+     *
+     * @return the state of this breaker.
+     */
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if this breaker is open and its backoff has
+     * passed, which means the next request is let through as a probe.
+     *
+     * @return <tt>true</tt> if this breaker is ready to be probed;
+     * otherwise <tt>false</tt>.
+     */
+    public boolean isBackoffElapsed() {
+        lock.lock();
+        try {
+            return state == State.OPEN && System.nanoTime() - openedAt >= backoff;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens this breaker.  The caller must hold the lock of this breaker.
+     */
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        failures = 0;
+        probesInFlight = 0;
+        successes = 0;
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load balanced list that favors the elements that have been responding
+ * the fastest.  This list keeps an exponentially weighted moving average
+ * (EWMA) of the latency reported for every element and picks elements by
+ * comparing two random candidates and taking the one with the lower
+ * latency relative to its weight.  Comparing two random candidates, rather
+ * than always taking the fastest element, keeps a burst of requests from
+ * piling onto a single element before its average catches up.
+ *
+ * <p>The average is peak sensitive: a sample above the average replaces
+ * it right away, while samples below the average pull it down gradually
+ * over the decay time.  An element that stalls, for example because it's
+ * compacting or pausing for garbage collection, is therefore avoided
+ * immediately and brought back slowly.  An element that is not picked for
+ * a while has its average decayed toward zero, so that it's eventually
+ * tried again and gets a fresh measurement.
+ *
+ * <p>Like {@link WeightedRoundRobinList}, this list is not safe for
+ * concurrent use.
+ *
+ * @author Abel Perez
+ */
+public class EwmaLoadBalancedList<E> implements LoadBalancedList<E>, LatencyFeedback<E>, Iterable<E>
+{
+    /**
+     * The default time in milliseconds over which old latency samples
+     * lose their influence.
+     */
+    public static final long DEFAULT_DECAY_TIME = 10000;
+
+    /**
+     * The default latency in milliseconds a failure is recorded as.
+     */
+    public static final long DEFAULT_FAILURE_PENALTY = 1000;
+
+    /**
+     * The backing list of elements contained in this list.
+     */
+    private final List<Element<E>> elements = new ArrayList<Element<E>>();
+
+    /**
+     * The latency average of every element contained in this list.
+     */
+    private final Map<E, Latency> latencies = new HashMap<E, Latency>();
+
+    /**
+     * The time in nanoseconds over which old latency samples lose their
+     * influence.
+     */
+    private final long decayTime;
+
+    /**
+     * The latency in nanoseconds a failure is recorded as.
+     */
+    private final long failurePenalty;
+
+    /**
+     * The source of the random candidates compared on every pick.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Constructs an empty {@code EwmaLoadBalancedList} with the default
+     * decay time and failure penalty.
+     */
+    public EwmaLoadBalancedList() {
+        this(DEFAULT_DECAY_TIME, DEFAULT_FAILURE_PENALTY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructs an empty {@code EwmaLoadBalancedList} with the specified
+     * decay time and failure penalty.
+     *
+     * @param decayTime the time over which old latency samples lose their
+     * influence.
+     * @param failurePenalty the latency a failure is recorded as.
+     * @param unit the time unit of the specified times.
+     */
+    public EwmaLoadBalancedList(long decayTime, long failurePenalty, TimeUnit unit) {
+        if (decayTime <= 0) {
+            throw new IllegalArgumentException("decay time must be positive: " + decayTime);
+        }
+        if (failurePenalty < 0) {
+            throw new IllegalArgumentException("failure penalty cannot be negative: " + failurePenalty);
+        }
+        this.decayTime = unit.toNanos(decayTime);
+        this.failurePenalty = unit.toNanos(failurePenalty);
+    }
+
+    /**
+     * Adds the specified {@code value} and it's corresponding {@code weight}
+     * to this list.  A weight with a value equal to or less than zero will
+     * prevent the specified value from being added to this list.  The weight
+     * of an element divides its latency when candidates are compared, so an
+     * element with twice the weight is preferred until it's twice as slow.
+     *
+     * <p>If the specified {@code value} exists in this list then only its
+     * weight is updated.  A new value starts with the average latency of
+     * the elements already in this list, so that it's neither flooded nor
+     * starved until its own latency is known.
+     *
+     * @param value the value to add to this list.
+     * @param weight the weight to apply to the specified value.
+     *
+     * @return LoadBalanceList this list.
+     */
+    public LoadBalancedList<E> add(E value, int weight) {
+        if (weight <= 0) return this;
+
+        Element<E> element = new Element<E>(value, weight);
+        int index = elements.indexOf(element);
+
+        if (index < 0) {
+            elements.add(element);
+            latencies.put(value, new Latency(averageLatency()));
+        } else {
+            elements.get(index).setWeight(weight);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the specified {@code value} and it's corresponding {@code weight}
+     * to this list.  This method is equivalent to {@link #add(Object, int)}.
+     *
+     * @param value the value to add to this list.
+     * @param weight the weight to apply to the specified value.
+     *
+     * @return LoadBalanceList this list.
+     */
+    public LoadBalancedList<E> set(E value, int weight) {
+        return add(value, weight);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean remove(E element) {
+        boolean changed = elements.remove(new Element<E>(element, 0));
+        if (changed) latencies.remove(element);
+        return changed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean removeAll(Collection<E> collection) {
+        boolean changed = false;
+        for (E element : collection) {
+            changed |= remove(element);
+        }
+        return changed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean retainAll(Collection<E> collection) {
+        boolean changed = false;
+        for (Element<E> element : new ArrayList<Element<E>>(elements)) {
+            if (! collection.contains(element.getValue())) {
+                changed |= remove(element.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the element with the lower weighted latency out of two random
+     * candidates.
+     *
+     * @return the picked element, or <tt>null</tt> if this list is empty.
+     */
+    public E get() {
+        int size = elements.size();
+        if (size == 0) return null;
+        if (size == 1) return elements.get(0).getValue();
+
+        // pick two distinct candidates at random.
+
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) second++;
+
+        long now = System.nanoTime();
+        Element<E> one = elements.get(first);
+        Element<E> two = elements.get(second);
+
+        return score(one, now) <= score(two, now) ? one.getValue() : two.getValue();
+    }
+
+    /**
+     * Records the time it took to use the specified element.  Samples
+     * above the current average replace it, samples below are blended in
+     * according to the time passed since the previous sample.
+     *
+     * @param element the element that was used.
+     * @param latency the time it took to use the element.
+     * @param unit the time unit of the specified latency.
+     */
+    public void record(E element, long latency, TimeUnit unit) {
+        Latency target = latencies.get(element);
+        if (target == null) return;
+
+        long now = System.nanoTime();
+        double sample = unit.toNanos(latency);
+
+        if (! target.sampled || sample > target.average) {
+            target.average = sample;
+        } else {
+            double weight = Math.exp(-(now - target.updated) / (double) decayTime);
+            target.average = target.average * weight + sample * (1 - weight);
+        }
+
+        target.sampled = true;
+        target.updated = now;
+    }
+
+    /**
+     * Records that using the specified element failed, as if it responded
+     * with the failure penalty of this list.
+     *
+     * @param element the element that failed.
+     */
+    public void recordFailure(E element) {
+        record(element, failurePenalty, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the current latency average of the specified element.
+     *
+     * @param element the element to get the latency of.
+     * @param unit the time unit to return the latency in.
+     *
+     * @return the latency average of the element, or <tt>-1</tt> if the
+     * element is not contained in this list.
+     */
+    public long getLatency(E element, TimeUnit unit) {
+        Latency target = latencies.get(element);
+        if (target == null) return -1;
+        return unit.convert((long) target.average, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean contains(E element) {
+        return latencies.containsKey(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean containsAll(Collection<E> collection) {
+        return latencies.keySet().containsAll(collection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEmpty() {
+        return elements.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        return elements.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() {
+        elements.clear();
+        latencies.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Element<E>> elements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    /**
+     * Gets an instance of {@code Iterator} that provides access to the
+     * elements contained in this list, in the order they were added.
+     *
+     * @return an {@code Iterator} for accessing the elements contained in
+     * this list.
+     */
+    public Iterator<E> iterator() {
+        List<E> values = new ArrayList<E>(elements.size());
+        for (Element<E> element : elements) {
+            values.add(element.getValue());
+        }
+        return Collections.unmodifiableList(values).iterator();
+    }
+
+    /**
+     * Computes the score of the specified element, its latency average
+     * decayed by the time since its last sample and divided by its weight.
+     * Lower is better.
+     *
+     * @param element the element to score.
+     * @param now the current time in nanoseconds.
+     *
+     * @return the score of the element.
+     */
+    private double score(Element<E> element, long now) {
+        Latency latency = latencies.get(element.getValue());
+        double idle = Math.exp(-(now - latency.updated) / (double) decayTime);
+        return latency.average * idle / element.getWeight();
+    }
+
+    /**
+     * Computes the average latency of the elements in this list that have
+     * been sampled.
+     *
+     * @return the average latency in nanoseconds, or zero if no element
+     * has been sampled yet.
+     */
+    private double averageLatency() {
+        double total = 0;
+        int count = 0;
+        for (Latency latency : latencies.values()) {
+            if (latency.sampled) {
+                total += latency.average;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * The latency average of a single element.
+     */
+    private static class Latency
+    {
+        /**
+         * The latency average in nanoseconds.
+         */
+        double average;
+
+        /**
+         * The time in nanoseconds the average was last updated at.
+         */
+        long updated = System.nanoTime();
+
+        /**
+         * Indicates that the average is based on at least one sample.
+         */
+        boolean sampled;
+
+        /**
+         * Constructs this latency with the specified initial average.
+         *
+         * @param average the initial latency average in nanoseconds.
+         */
+        Latency(double average) {
+            this.average = average;
+        }
+    }
+}
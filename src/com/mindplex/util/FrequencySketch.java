@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+/**
+ * A compact estimate of how often every element has been seen recently,
+ * used by {@link TinyLfuCache} to decide which of two entries is worth
+ * keeping.  This is a count-min sketch of four bit counters, sixteen to a
+ * long, four counters per element.  The estimate of an element is the
+ * smallest of its counters, which over counts on collisions but never
+ * under counts.  Once the sketch has counted ten samples per element of
+ * its capacity, every counter is halved, so the frequencies follow the
+ * recent history rather than all of it.
+ *
+ * <p>This class is not thread safe, its users guard it with their own lock.
+ *
+ * @author Abel Perez
+ */
+public class FrequencySketch<E>
+{
+    /**
+     * The seeds of the four hash functions, large odd numbers with well
+     * mixed bits.
+     */
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /**
+     * Keeps the low three bits of every counter, which halves all of the
+     * counters of a long once it is shifted right by one.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * The counters, sixteen four bit counters to a long.
+     */
+    private final long[] table;
+
+    /**
+     * The amount of samples after which every counter is halved.
+     */
+    private final int sampleSize;
+
+    /**
+     * The amount of samples counted since the counters were last halved.
+     */
+    private int size;
+
+    /**
+     * Constructs this sketch for the specified amount of elements.
+     *
+     * @param capacity the amount of elements whose frequencies are tracked.
+     */
+    public FrequencySketch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        int length = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+        this.table = new long[length];
+        this.sampleSize = 10 * Math.max(capacity, 8);
+    }
+
+    /**
+     * Counts a sample of the specified element, unless all of its counters
+     * are already saturated.
+     *
+     * @param element the element that was seen.
+     */
+    public void increment(E element) {
+        int hash = spread(element.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Gets the estimated amount of recent samples of the specified element.
+     *
+     * @param element the element to estimate.
+     *
+     * @return the estimated frequency, from zero to fifteen.
+     */
+    public int frequency(E element) {
+        int hash = spread(element.hashCode());
+        int start = (hash & 3) << 2;
+
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the specified counter, unless it is saturated.
+     *
+     * @param index the long that holds the counter.
+     * @param counter the position of the counter within the long.
+     *
+     * @return <tt>true</tt> if the counter was incremented.
+     */
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = size >>> 1;
+    }
+
+    /**
+     * Gets the long that holds the specified counter of an element.
+     *
+     * @param hash the spread hash code of the element.
+     * @param i the counter of the element, from zero to three.
+     *
+     * @return the index of the long in the table.
+     */
+    private int indexOf(int hash, int i) {
+        long mixed = (hash + SEEDS[i]) * SEEDS[i];
+        mixed += mixed >>> 32;
+        return ((int) mixed) & (table.length - 1);
+    }
+
+    /**
+     * Spreads the bits of a hash code, protecting the sketch from hash
+     * codes that only differ in their high bits.
+     *
+     * @param hash the hash code to spread.
+     *
+     * @return the spread hash code.
+     */
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded log of the keys invalidated most recently, which tells a cache
+ * whether a key was invalidated after a writer took its stamp.  Every
+ * invalidation advances a clock, and a stamp is the clock before the
+ * writer reads its source, so a write is stale if its own key was
+ * invalidated at a later time.  Invalidations of other keys do not turn
+ * it away.
+ *
+ * <p>Only the latest invalidation of every key is kept, and once more
+ * keys than the capacity of the log have been invalidated the oldest is
+ * forgotten.  Stamps taken before a forgotten invalidation are stale for
+ * every key, since the log can no longer tell which key it was for.
+ *
+ * <p>This class is not thread safe, except for {@link #stamp()}: the
+ * caches that use it guard it with their own lock.
+ *
+ * @author Abel Perez
+ */
+public class InvalidationLog<K>
+{
+    /**
+     * The max amount of keys whose invalidation is kept.
+     */
+    private final int capacity;
+
+    /**
+     * The amount of invalidations so far.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * The time every key was last invalidated at, oldest first.
+     */
+    private final LinkedHashMap<K, Long> invalidated = new LinkedHashMap<K, Long>();
+
+    /**
+     * The time of the latest invalidation that is no longer kept per key.
+     */
+    private long floor;
+
+    /**
+     * Constructs this log.
+     *
+     * @param capacity the max amount of keys whose invalidation is kept.
+     */
+    public InvalidationLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets a stamp of the invalidations so far, to be taken before a key
+     * is read from its source.
+     *
+     * @return the current stamp.
+     */
+    public long stamp() {
+        return clock.get();
+    }
+
+    /**
+     * Records the invalidation of the specified key.
+     *
+     * @param key the invalidated key.
+     */
+    public void invalidate(K key) {
+        long now = clock.incrementAndGet();
+        invalidated.remove(key);
+        invalidated.put(key, now);
+
+        if (invalidated.size() > capacity) {
+            Iterator<Map.Entry<K, Long>> oldest = invalidated.entrySet().iterator();
+            floor = oldest.next().getValue();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Records the invalidation of every key.
+     */
+    public void invalidateAll() {
+        floor = clock.incrementAndGet();
+        invalidated.clear();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified key has not been invalidated
+     * since the specified stamp was taken.
+     *
+     * @param key the key to check.
+     * @param stamp the stamp taken before the key was read.
+     *
+     * @return <tt>true</tt> if a write of the key read after the stamp is
+     * still current; otherwise <tt>false</tt>.
+     */
+    public boolean isCurrent(K key, long stamp) {
+        if (stamp < floor) return false;
+
+        Long invalidatedAt = invalidated.get(key);
+        return invalidatedAt == null || invalidatedAt <= stamp;
+    }
+}
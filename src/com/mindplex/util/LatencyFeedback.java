@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load balanced list that adapts to the latency observed when using its
+ * elements.  Whoever uses an element of such a list reports back how long
+ * each use took, or that it failed.
+ *
+ * @author Abel Perez
+ */
+public interface LatencyFeedback<E>
+{
+    /**
+     * Records the time it took to use the specified element.
+     *
+     * @param element the element that was used.
+     * @param latency the time it took to use the element.
+     * @param unit the time unit of the specified latency.
+     */
+    public void record(E element, long latency, TimeUnit unit);
+
+    /**
+     * Records that using the specified element failed.
+     *
+     * @param element the element that failed.
+     */
+    public void recordFailure(E element);
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock free histogram of latencies that answers percentile queries.
+ * Latencies are counted in logarithmic buckets, four per power of two
+ * microseconds, so every percentile is accurate to within 19%.  To follow
+ * changes in latency, every bucket is halved each time the histogram has
+ * collected a full window of samples, which lets old samples fade away.
+ *
+ * @author Abel Perez
+ */
+public class LatencyHistogram
+{
+    /**
+     * The default amount of samples after which every bucket is halved.
+     */
+    public static final int DEFAULT_WINDOW = 10000;
+
+    /**
+     * The amount of buckets per power of two.
+     */
+    private static final int BUCKETS_PER_OCTAVE = 4;
+
+    /**
+     * The amount of buckets, enough for latencies of over an hour.
+     */
+    private static final int BUCKETS = 32 * BUCKETS_PER_OCTAVE;
+
+    /**
+     * The amount of samples counted in every bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The amount of samples counted in all buckets.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The amount of samples after which every bucket is halved.
+     */
+    private final int window;
+
+    /**
+     * The lock held while the buckets are halved, so that only one thread
+     * halves them at a time.
+     */
+    private final ReentrantLock decay = new ReentrantLock();
+
+    /**
+     * Constructs this histogram with the default window.
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructs this histogram with the specified window.
+     *
+     * @param window the amount of samples after which every bucket is halved.
+     */
+    public LatencyHistogram(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        this.window = window;
+    }
+
+    /**
+     * Records the specified latency.
+     *
+     * @param latency the latency to record.
+     * @param unit the time unit of the specified latency.
+     */
+    public void record(long latency, TimeUnit unit) {
+        buckets.incrementAndGet(bucket(unit.toMicros(latency)));
+
+        if (count.incrementAndGet() >= window && decay.tryLock()) {
+            try {
+                long remaining = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    long value = buckets.get(i);
+                    while (! buckets.compareAndSet(i, value, value / 2)) {
+                        value = buckets.get(i);
+                    }
+                    remaining += value / 2;
+                }
+                count.set(remaining);
+
+            } finally {
+                decay.unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the latency below which the specified fraction of samples fall.
+     *
+     * @param percentile the fraction of samples, between 0 and 1.
+     * @param unit the time unit to return the latency in.
+     *
+     * @return the latency at the specified percentile, or <tt>-1</tt> if
+     * this histogram is empty.
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1: " + percentile);
+        }
+
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return -1;
+
+        long target = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target && snapshot[i] > 0) {
+                return unit.convert(upperBound(i), TimeUnit.MICROSECONDS);
+            }
+        }
+        return unit.convert(upperBound(BUCKETS - 1), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Gets the amount of samples currently counted by this histogram.
+     *
+     * @return the amount of samples in this histogram.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the bucket the specified latency is counted in.
+     *
+     * @param micros a latency in microseconds.
+     *
+     * @return the index of the bucket.
+     */
+    private static int bucket(long micros) {
+        if (micros <= 1) return 0;
+        int index = (int) (Math.log(micros) / Math.log(2) * BUCKETS_PER_OCTAVE);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * Gets the highest latency counted in the specified bucket.
+     *
+     * @param bucket the index of a bucket.
+     *
+     * @return the upper bound of the bucket in microseconds.
+     */
+    private static long upperBound(int bucket) {
+        return (long) Math.ceil(Math.pow(2, (bucket + 1) / (double) BUCKETS_PER_OCTAVE));
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A load balanced list that picks the element with the fewest uses in
+ * flight.  The in-flight count of every element is scaled by its weight,
+ * so an element with twice the weight is expected to carry twice as many
+ * uses.  Elements that are equally loaded are taken in turns.
+ *
+ * <p>Uses are tracked through the {@link Acquirable} contract: an element
+ * picked with {@link #acquire()} counts as in flight until it's passed to
+ * {@link #release(Object)}.  Elements picked with {@link #get()} are not
+ * counted.  The uses in flight of a removed element keep being tracked
+ * until they're released, so an element that is added back right away
+ * starts with the load it still carries.
+ *
+ * <p>Like {@link WeightedRoundRobinList}, this list is not safe for
+ * concurrent use.
+ *
+ * @author Abel Perez
+ */
+public class LeastOutstandingList<E> implements LoadBalancedList<E>, Acquirable<E>, Iterable<E>
+{
+    /**
+     * The backing list of elements contained in this list.
+     */
+    private final List<Element<E>> elements = new ArrayList<Element<E>>();
+
+    /**
+     * The amount of uses in flight of every element contained in this list.
+     */
+    private final Map<E, Integer> outstanding = new HashMap<E, Integer>();
+
+    /**
+     * The amount of uses still in flight of every removed element that
+     * has not released all of them yet.
+     */
+    private final Map<E, Integer> detached = new HashMap<E, Integer>();
+
+    /**
+     * The position the next search for the least loaded element starts at,
+     * which rotates so that equally loaded elements are taken in turns.
+     */
+    private int position;
+
+    /**
+     * Constructs an empty {@code LeastOutstandingList}.
+     */
+    public LeastOutstandingList() {
+    }
+
+    /**
+     * Adds the specified {@code value} and it's corresponding {@code weight}
+     * to this list.  A weight with a value equal to or less than zero will
+     * prevent the specified value from being added to this list.
+     *
+     * <p>If the specified {@code value} exists in this list then only its
+     * weight is updated.
+     *
+     * @param value the value to add to this list.
+     * @param weight the weight to apply to the specified value.
+     *
+     * @return LoadBalanceList this list.
+     */
+    public LoadBalancedList<E> add(E value, int weight) {
+        if (weight <= 0) return this;
+
+        Element<E> element = new Element<E>(value, weight);
+        int index = elements.indexOf(element);
+
+        if (index < 0) {
+            elements.add(element);
+
+            // an element added back still carries the uses it had in
+            // flight when it was removed.
+
+            Integer count = detached.remove(value);
+            outstanding.put(value, count == null ? 0 : count);
+        } else {
+            elements.get(index).setWeight(weight);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the specified {@code value} and it's corresponding {@code weight}
+     * to this list.  This method is equivalent to {@link #add(Object, int)}.
+     *
+     * @param value the value to add to this list.
+     * @param weight the weight to apply to the specified value.
+     *
+     * @return LoadBalanceList this list.
+     */
+    public LoadBalancedList<E> set(E value, int weight) {
+        return add(value, weight);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean remove(E element) {
+        boolean changed = elements.remove(new Element<E>(element, 0));
+        if (changed) {
+            Integer count = outstanding.remove(element);
+            if (count != null && count > 0) {
+                detached.put(element, count);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean removeAll(Collection<E> collection) {
+        boolean changed = false;
+        for (E element : collection) {
+            changed |= remove(element);
+        }
+        return changed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean retainAll(Collection<E> collection) {
+        boolean changed = false;
+        for (Element<E> element : new ArrayList<Element<E>>(elements)) {
+            if (! collection.contains(element.getValue())) {
+                changed |= remove(element.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the element with the fewest uses in flight relative to its
+     * weight, without marking it as in use.
+     *
+     * @return the least loaded element, or <tt>null</tt> if this list is
+     * empty.
+     */
+    public E get() {
+        int size = elements.size();
+        if (size == 0) return null;
+
+        int start = position++ % size;
+        if (position >= size) position = 0;
+
+        Element<E> best = null;
+        double lowest = Double.MAX_VALUE;
+
+        // an element counts its next use as well, so that weights
+        // matter even while nothing is in flight.
+
+        for (int i = 0; i < size; i++) {
+            Element<E> element = elements.get((start + i) % size);
+            double load = (outstanding.get(element.getValue()) + 1.0) / element.getWeight();
+
+            if (load < lowest) {
+                lowest = load;
+                best = element;
+            }
+        }
+        return best.getValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public E acquire() {
+        E element = get();
+        if (element != null) acquire(element);
+        return element;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean acquire(E element) {
+        Integer count = outstanding.get(element);
+        if (count == null) return false;
+
+        outstanding.put(element, count + 1);
+        return true;
+    }
+
+    /**
+     * Marks one use of the specified element as finished.  A use of an
+     * element that has been removed from this list is still released, so
+     * that it's not counted once the element is added back.
+     *
+     * @param element the element to release.
+     */
+    public void release(E element) {
+        Integer count = outstanding.get(element);
+        if (count != null) {
+            if (count > 0) outstanding.put(element, count - 1);
+            return;
+        }
+
+        count = detached.get(element);
+        if (count != null) {
+            if (count > 1) {
+                detached.put(element, count - 1);
+            } else {
+                detached.remove(element);
+            }
+        }
+    }
+
+    /**
+     * Gets the amount of uses of the specified element in flight.
+     *
+     * @param element the element to get the in-flight uses of.
+     *
+     * @return the amount of uses in flight, or <tt>-1</tt> if the element
+     * is not contained in this list.
+     */
+    public int getOutstanding(E element) {
+        Integer count = outstanding.get(element);
+        return count == null ? -1 : count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean contains(E element) {
+        return outstanding.containsKey(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean containsAll(Collection<E> collection) {
+        return outstanding.keySet().containsAll(collection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEmpty() {
+        return elements.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        return elements.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() {
+        elements.clear();
+        outstanding.clear();
+        detached.clear();
+        position = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Element<E>> elements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    /**
+     * Gets an instance of {@code Iterator} that provides access to the
+     * elements contained in this list, in the order they were added.
+     *
+     * @return an {@code Iterator} for accessing the elements contained in
+     * this list.
+     */
+    public Iterator<E> iterator() {
+        List<E> values = new ArrayList<E>(elements.size());
+        for (Element<E> element : elements) {
+            values.add(element.getValue());
+        }
+        return Collections.unmodifiableList(values).iterator();
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread factory that creates daemon threads with a common name prefix.
+ * Background tasks such as connection eviction should never keep the JVM
+ * from shutting down, and a recognizable name makes them easy to find in
+ * a thread dump.
+ *
+ * @author Abel Perez
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+    /**
+     * The prefix every thread created by this factory is named with.
+     */
+    private final String prefix;
+
+    /**
+     * The sequence number appended to the name of each new thread.
+     */
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * Constructs this thread factory with the specified thread name prefix.
+     *
+     * @param prefix the prefix every thread created by this factory is
+     * named with.
+     */
+    public NamedThreadFactory(String prefix) {
+        this.prefix = Check.forNull(prefix);
+    }
+
+    /**
+     * Creates a new daemon thread that runs the specified task.
+     *
+     * @param task the task the new thread runs.
+     *
+     * @return a new daemon thread.
+     */
+    public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, prefix + "-" + sequence.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
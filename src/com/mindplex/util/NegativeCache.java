@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, expiring set of keys known to be absent from a store.  The
+ * keys are held in a map ordered by the time they were marked absent, so
+ * the oldest key is the first to expire and the first to be evicted.  A
+ * {@link BloomFilter} of every marked key sits in front of the map, which
+ * answers the common case, a key that was never marked, without taking
+ * the lock.
+ *
+ * <p>Keys can be unmarked, but not removed from the filter, so the filter
+ * is rebuilt from the map once twice its capacity of keys has been added
+ * to it.  Writers that race with invalidations use {@link #stamp()} and
+ * {@link #markAbsent(Object, long)}: an absence observed before a key was
+ * invalidated is not recorded after it.  Invalidations are tracked per key
+ * by an {@link InvalidationLog}, so invalidating one key does not turn
+ * away the absences of the others.
+ *
+ * @author Abel Perez
+ */
+public class NegativeCache<K>
+{
+    /**
+     * The false positive rate of the filter at capacity.
+     */
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * The max amount of keys held.
+     */
+    private final int capacity;
+
+    /**
+     * The time in nanoseconds a key is known to be absent.
+     */
+    private final long ttl;
+
+    /**
+     * The time every absent key expires at, oldest first.
+     */
+    private final LinkedHashMap<K, Long> absent = new LinkedHashMap<K, Long>();
+
+    /**
+     * The filter of every key that may be held.
+     */
+    private final BloomFilter<K> filter;
+
+    /**
+     * The lock that guards the map and the rebuilding of the filter.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The keys invalidated most recently, guarded by the lock.
+     */
+    private final InvalidationLog<K> invalidations;
+
+    /**
+     * The amount of lookups answered as absent.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Constructs this cache.
+     *
+     * @param capacity the max amount of keys held.
+     * @param ttl the time a key is known to be absent.
+     * @param unit the unit of the time to live.
+     */
+    public NegativeCache(int capacity, long ttl, TimeUnit unit) {
+        if (capacity <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("invalid negative cache [capacity: "
+                    + capacity + ", ttl: " + ttl + "]");
+        }
+        this.capacity = capacity;
+        this.ttl = unit.toNanos(ttl);
+        this.filter = new BloomFilter<K>(capacity, FALSE_POSITIVE_RATE);
+        this.invalidations = new InvalidationLog<K>(capacity);
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified key is known to be absent.
+     *
+     * @param key the key to check.
+     *
+     * @return <tt>true</tt> if the key is known to be absent; otherwise
+     * <tt>false</tt>.
+     */
+    public boolean isAbsent(K key) {
+        if (! filter.mightContain(key)) return false;
+
+        lock.lock();
+        try {
+            Long expiresAt = absent.get(key);
+            if (expiresAt == null) return false;
+
+            if (System.nanoTime() - expiresAt >= 0) {
+                absent.remove(key);
+                return false;
+            }
+            hits.incrementAndGet();
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the specified key is absent, unless the key has been
+     * invalidated since the specified stamp was taken.
+     *
+     * @param key the absent key.
+     * @param stamp the stamp taken before the key was looked up.
+     *
+     * @return <tt>true</tt> if the key was recorded.
+     */
+    public boolean markAbsent(K key, long stamp) {
+        lock.lock();
+        try {
+            if (! invalidations.isCurrent(key, stamp)) return false;
+
+            absent.remove(key);
+            absent.put(key, System.nanoTime() + ttl);
+
+            if (absent.size() > capacity) {
+                Iterator<K> oldest = absent.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+
+            // unmarked and evicted keys linger in the filter, so it's
+            // rebuilt from the map once it holds too many of them.
+
+            if (filter.getCount() >= 2 * capacity) {
+                filter.clear();
+                for (K held : absent.keySet()) {
+                    filter.put(held);
+                }
+            } else {
+                filter.put(key);
+            }
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a stamp of the invalidations of this cache, to be taken before
+     * a key is looked up in its store.
+     *
+     * @return the current stamp.
+     */
+    public long stamp() {
+        return invalidations.stamp();
+    }
+
+    /**
+     * Forgets that the specified key is absent.
+     *
+     * @param key the key that may now be present.
+     */
+    public void invalidate(K key) {
+        lock.lock();
+        try {
+            invalidations.invalidate(key);
+            if (filter.mightContain(key)) {
+                absent.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets every absent key.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            invalidations.invalidateAll();
+            absent.clear();
+            filter.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of keys held, including expired keys that have not
+     * been dropped yet.
+     *
+     * @return the amount of keys held.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return absent.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of lookups answered as absent.
+     *
+     * @return the amount of hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override public String toString() {
+        return "NegativeCache [size: " + size() + ", capacity: " + capacity + ", hits: " + hits.get() + "]";
+    }
+}
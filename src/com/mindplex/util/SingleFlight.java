@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent calls with equal keys into a single call.  The
+ * first caller of a key executes the call on its own thread, every caller
+ * of the same key that arrives while it is in flight waits for it and
+ * gets the same result, or the same failure.  Once the call has finished,
+ * the next caller of the key starts a new call; results are never cached.
+ *
+ * <p>For example:
+ *
+ * <pre>
+ * {@code
+ * SingleFlight flight = new SingleFlight();
+ * String value = flight.execute(Arrays.asList(columnFamily, rowid, key), new Callable<String>() {
+ *     public String call() throws Exception {
+ *         return gateway.findColumn(columnFamily, rowid, key);
+ *     }
+ * });
+ * }
+ * </pre>
+ *
+ * @author Abel Perez
+ */
+public class SingleFlight
+{
+    /**
+     * The call in flight for every key.
+     */
+    private final ConcurrentMap<Object, FutureTask<?>> calls = new ConcurrentHashMap<Object, FutureTask<?>>();
+
+    /**
+     * The amount of callers that joined a call in flight.
+     */
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Executes the specified call, or joins the call in flight for the
+     * specified key.
+     *
+     * @param key the key of the call, equal for calls that can share a
+     * result.
+     * @param callable the call to execute if none is in flight.
+     *
+     * @return the result of the call.
+     *
+     * @throws Exception the failure of the call.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Object key, Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        FutureTask<T> existing = (FutureTask<T>) calls.putIfAbsent(key, task);
+
+        if (existing != null) {
+            shared.incrementAndGet();
+            return get(existing);
+        }
+
+        try {
+            task.run();
+        } finally {
+            calls.remove(key, task);
+        }
+        return get(task);
+    }
+
+    /**
+     * Gets the amount of calls in flight.
+     *
+     * @return the amount of calls in flight.
+     */
+    public int getInFlightCount() {
+        return calls.size();
+    }
+
+    /**
+     * Gets the amount of callers that joined a call in flight instead of
+     * executing their own.
+     *
+     * @return the amount of shared calls.
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    /**
+     * Waits for the result of the specified call.
+     *
+     * @param task the call to wait for.
+     *
+     * @return the result of the call.
+     *
+     * @throws Exception the failure of the call.
+     */
+    private static <T> T get(FutureTask<T> task) throws Exception {
+        try {
+            return task.get();
+
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache with W-TinyLFU admission and eviction.  New entries
+ * enter a small LRU window, one percent of the capacity, which absorbs
+ * bursts of one time reads.  An entry pushed out of the window only makes
+ * it into the main space if it has been asked for more often than the
+ * entry the main space would evict for it, as estimated by a
+ * {@link FrequencySketch}.  The main space is a segmented LRU: entries hit
+ * while on probation are promoted to the protected segment, eighty percent
+ * of the main space, and entries pushed out of the protected segment are
+ * put back on probation.
+ *
+ * <p>Entries may expire a fixed time after they were written.  Expired
+ * entries are dropped when they are next read, and otherwise age out of
+ * the cache like any other entry.
+ *
+ * <p>Writers that race with invalidations use {@link #stamp()} and
+ * {@link #put(Object, Object, long)}: a value read from the source before
+ * its key was invalidated is not cached after it.  Invalidations are
+ * tracked per key by an {@link InvalidationLog}, so invalidating one key
+ * does not turn away the writes of the others.
+ *
+ * <p>All operations are guarded by a single lock, which is only held for
+ * the few map operations of a read or write.
+ *
+ * @author Abel Perez
+ */
+public class TinyLfuCache<K, V>
+{
+    /**
+     * The max amount of entries in this cache.
+     */
+    private final int capacity;
+
+    /**
+     * The max amount of entries in the window.
+     */
+    private final int windowCapacity;
+
+    /**
+     * The max amount of entries in the protected segment.
+     */
+    private final int protectedCapacity;
+
+    /**
+     * The time in nanoseconds entries live after they were written, or
+     * zero if entries do not expire.
+     */
+    private final long ttl;
+
+    /**
+     * The newest entries, least recently used first.
+     */
+    private final LinkedHashMap<K, Node<V>> window = new LinkedHashMap<K, Node<V>>();
+
+    /**
+     * The entries of the main space that have not been hit since they
+     * were admitted or demoted, least recently used first.
+     */
+    private final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<K, Node<V>>();
+
+    /**
+     * The entries of the main space that have been hit, least recently
+     * used first.
+     */
+    private final LinkedHashMap<K, Node<V>> protectedSegment = new LinkedHashMap<K, Node<V>>();
+
+    /**
+     * The recent frequency of every key asked for.
+     */
+    private final FrequencySketch<K> sketch;
+
+    /**
+     * The lock that guards the segments and the sketch.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The keys invalidated most recently, guarded by the lock.
+     */
+    private final InvalidationLog<K> invalidations;
+
+    /**
+     * The amount of reads that found an entry.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The amount of reads that found no entry.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The amount of entries evicted or refused to make room.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructs this cache with entries that do not expire.
+     *
+     * @param capacity the max amount of entries in this cache.
+     */
+    public TinyLfuCache(int capacity) {
+        this(capacity, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Constructs this cache.
+     *
+     * @param capacity the max amount of entries in this cache.
+     * @param ttl the time entries live after they were written, or zero if
+     * entries do not expire.
+     * @param unit the unit of the time to live.
+     */
+    public TinyLfuCache(int capacity, long ttl, TimeUnit unit) {
+        if (capacity <= 0 || ttl < 0) {
+            throw new IllegalArgumentException("invalid cache [capacity: " + capacity + ", ttl: " + ttl + "]");
+        }
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (int) ((capacity - windowCapacity) * 0.8);
+        this.ttl = unit.toNanos(ttl);
+        this.sketch = new FrequencySketch<K>(capacity);
+        this.invalidations = new InvalidationLog<K>(capacity);
+    }
+
+    /**
+     * Gets the value of the specified key.
+     *
+     * @param key the key to look up.
+     *
+     * @return the value of the key, or <tt>null</tt> if it is not cached
+     * or has expired.
+     */
+    public V get(K key) {
+        lock.lock();
+        try {
+            sketch.increment(key);
+
+            Node<V> node = window.get(key);
+            if (node != null) {
+                if (expired(node)) {
+                    window.remove(key);
+                } else {
+                    window.remove(key);
+                    window.put(key, node);
+                    hits.incrementAndGet();
+                    return node.value;
+                }
+            }
+
+            node = probation.get(key);
+            if (node != null) {
+                probation.remove(key);
+                if (! expired(node)) {
+                    promote(key, node);
+                    hits.incrementAndGet();
+                    return node.value;
+                }
+            }
+
+            node = protectedSegment.get(key);
+            if (node != null) {
+                protectedSegment.remove(key);
+                if (! expired(node)) {
+                    protectedSegment.put(key, node);
+                    hits.incrementAndGet();
+                    return node.value;
+                }
+            }
+
+            misses.incrementAndGet();
+            return null;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Caches the specified value.
+     *
+     * @param key the key of the value.
+     * @param value the value to cache.
+     */
+    public void put(K key, V value) {
+        lock.lock();
+        try {
+            write(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Caches the specified value, unless its key has been invalidated
+     * since the specified stamp was taken.
+     *
+     * @param key the key of the value.
+     * @param value the value to cache.
+     * @param stamp the stamp taken before the value was read.
+     *
+     * @return <tt>true</tt> if the value was cached.
+     */
+    public boolean put(K key, V value, long stamp) {
+        lock.lock();
+        try {
+            if (! invalidations.isCurrent(key, stamp)) return false;
+            write(key, value);
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a stamp of the invalidations of this cache, to be taken before
+     * a value is read from its source.
+     *
+     * @return the current stamp.
+     */
+    public long stamp() {
+        return invalidations.stamp();
+    }
+
+    /**
+     * Removes the value of the specified key.
+     *
+     * @param key the key to remove.
+     */
+    public void invalidate(K key) {
+        lock.lock();
+        try {
+            invalidations.invalidate(key);
+            if (window.remove(key) == null && probation.remove(key) == null) {
+                protectedSegment.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every value.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            invalidations.invalidateAll();
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the amount of entries in this cache, including expired entries
+     * that have not been dropped yet.
+     *
+     * @return the amount of entries.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return window.size() + probation.size() + protectedSegment.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the max amount of entries in this cache.
+     *
+     * @return the capacity of this cache.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the amount of reads that found an entry.
+     *
+     * @return the amount of hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the amount of reads that found no entry.
+     *
+     * @return the amount of misses.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the amount of entries evicted, or refused admission, to make
+     * room for others.
+     *
+     * @return the amount of evictions.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the ratio of reads that found an entry.
+     *
+     * @return the hit ratio, or zero if nothing has been read.
+     */
+    public double getHitRatio() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override public String toString() {
+        return "TinyLfuCache [size: " + size() + ", capacity: " + capacity + ", hits: " + hits.get()
+                + ", misses: " + misses.get() + ", evictions: " + evictions.get() + "]";
+    }
+
+    /**
+     * Writes the specified value into the segment of its key, or into the
+     * window for a new key, and makes room if the window overflows.  The
+     * caller holds the lock.
+     *
+     * @param key the key of the value.
+     * @param value the value to cache.
+     */
+    private void write(K key, V value) {
+        sketch.increment(key);
+        Node<V> node = new Node<V>(value, ttl == 0 ? 0 : System.nanoTime() + ttl);
+
+        if (probation.remove(key) != null) {
+            promote(key, node);
+            return;
+        }
+        if (protectedSegment.remove(key) != null) {
+            protectedSegment.put(key, node);
+            return;
+        }
+
+        window.remove(key);
+        window.put(key, node);
+        if (window.size() > windowCapacity) {
+            admit();
+        }
+    }
+
+    /**
+     * Moves the least recently used entry of the window into the main
+     * space, if there is room for it or if it is asked for more often than
+     * the entry the main space would evict for it.  The caller holds the
+     * lock.
+     */
+    private void admit() {
+        Iterator<Map.Entry<K, Node<V>>> oldest = window.entrySet().iterator();
+        Map.Entry<K, Node<V>> candidate = oldest.next();
+        oldest.remove();
+
+        if (window.size() + probation.size() + protectedSegment.size() < capacity) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        LinkedHashMap<K, Node<V>> segment = probation.isEmpty() ? protectedSegment : probation;
+        if (segment.isEmpty()) {
+            evictions.incrementAndGet();
+            return;
+        }
+
+        // the candidate only replaces the victim if it's more popular,
+        // which keeps a scan of one time reads from flushing the cache.
+
+        K victim = segment.keySet().iterator().next();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+            segment.remove(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        }
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Moves an entry that was hit on probation into the protected
+     * segment, demoting the least recently used protected entry if the
+     * segment overflows.  The caller holds the lock.
+     *
+     * @param key the key of the entry.
+     * @param node the entry.
+     */
+    private void promote(K key, Node<V> node) {
+        protectedSegment.put(key, node);
+        if (protectedSegment.size() > protectedCapacity) {
+            Iterator<Map.Entry<K, Node<V>>> oldest = protectedSegment.entrySet().iterator();
+            Map.Entry<K, Node<V>> demoted = oldest.next();
+            oldest.remove();
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified entry has expired.
+     *
+     * @param node the entry to check.
+     *
+     * @return <tt>true</tt> if the entry has expired; otherwise <tt>false</tt>.
+     */
+    private boolean expired(Node<V> node) {
+        return node.expiresAt != 0 && System.nanoTime() - node.expiresAt >= 0;
+    }
+
+    /**
+     * A cached value and the time it expires.
+     */
+    private static class Node<V>
+    {
+        /**
+         * The cached value.
+         */
+        final V value;
+
+        /**
+         * The time in nanoseconds this entry expires at, or zero if it
+         * does not expire.
+         */
+        final long expiresAt;
+
+        /**
+         * Constructs this entry.
+         *
+         * @param value the cached value.
+         * @param expiresAt the time this entry expires at, or zero.
+         */
+        Node(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2011 Mindplex Media, LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.mindplex.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates executors that run every task on its own virtual thread when the
+ * running JVM supports virtual threads, and on a bounded pool of daemon
+ * platform threads otherwise.  Platform threads are too expensive to
+ * create one per task, so the fallback pool queues the tasks beyond its
+ * size, which callers match to the connections the tasks can use anyway.
+ * The virtual thread API is looked up reflectively, so this class compiles
+ * and runs on older JVMs.
+ *
+ * <p>Blocking a virtual thread is cheap as long as it does not happen
+ * while holding a monitor, which would pin the carrier thread.  The
+ * connection pools and gateways of this library wait on
+ * {@link java.util.concurrent.locks.Condition}s rather than monitors for
+ * that reason.
+ *
+ * @author Abel Perez
+ */
+public final class VirtualThreads
+{
+    /**
+     * The factory method of the virtual thread per task executor, or
+     * <tt>null</tt> if the running JVM does not support virtual threads.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = lookup();
+
+    /**
+     * The time in seconds an idle fallback platform thread is kept alive.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * This class is not meant to be instantiated.
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns <tt>true</tt> if the running JVM supports virtual threads.
+     *
+     * @return <tt>true</tt> if virtual threads are supported; otherwise
+     * <tt>false</tt>.
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that runs every task on a new virtual thread, or
+     * on a pool of at most the specified amount of daemon threads named
+     * with the specified prefix if virtual threads are not supported.
+     * Idle fallback threads are let go after a minute.
+     *
+     * @param prefix the name prefix of the fallback platform threads.
+     * @param maxThreads the max amount of fallback platform threads.
+     *
+     * @return a new executor.
+     */
+    public static ExecutorService newExecutor(String prefix, int maxThreads) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads must be positive. [" + maxThreads + "]");
+        }
+
+        if (NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+
+            } catch (Exception exception) {
+                // fall back to platform threads.
+            }
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory(prefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Looks up the factory method of the virtual thread per task executor.
+     *
+     * @return the factory method, or <tt>null</tt> if it does not exist.
+     */
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+        } catch (NoSuchMethodException exception) {
+            return null;
+        }
+    }
+}